@@ -0,0 +1,54 @@
+package com.example.android.inventory;
+
+import android.os.SystemClock;
+import android.support.test.rule.ActivityTestRule;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Instrumentation test launching {@link InventoryActivity} and checking that every
+ * {@link LaunchMilestones} milestone is reached, in order. The time of each is logged under the
+ * tag of this class, to compare launches between builds.
+ *
+ * The provider is created when the test process starts rather than on launch, so the times are
+ * those of a warm process. For a true cold start, read the LaunchMilestones log of a launch from
+ * the launcher after force stopping the app.
+ */
+@RunWith(AndroidJUnit4.class)
+public class InventoryActivityLaunchTest {
+
+    private static final String LOG = InventoryActivityLaunchTest.class.getSimpleName();
+
+    /** How long to wait for the list to be drawn */
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    @Rule
+    public ActivityTestRule<InventoryActivity> mActivityRule =
+            new ActivityTestRule<>(InventoryActivity.class);
+
+    @Test
+    public void launch_reachesEveryMilestoneInOrder() throws InterruptedException {
+        long deadline = SystemClock.elapsedRealtime() + TIMEOUT_MILLIS;
+        while (LaunchMilestones.getTime(LaunchMilestones.FIRST_FRAME) < 0
+                && SystemClock.elapsedRealtime() < deadline) {
+            Thread.sleep(50);
+        }
+
+        String[] milestones = { LaunchMilestones.PROVIDER_CREATE, LaunchMilestones.DB_OPEN,
+                LaunchMilestones.FIRST_CURSOR, LaunchMilestones.FIRST_FRAME };
+        long previous = 0;
+        for (String milestone : milestones) {
+            long time = LaunchMilestones.getTime(milestone);
+            Log.i(LOG, milestone + ": +" + time + " ms");
+            assertTrue(milestone + " was not reached", time >= 0);
+            assertTrue(milestone + " was reached out of order", time >= previous);
+            previous = time;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.example.android.inventory;
+
+import android.content.Context;
+import android.database.MatrixCursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.view.ContextThemeWrapper;
+import android.view.View;
+
+import com.example.android.inventory.benchmark.Benchmark;
+import com.example.android.inventory.benchmark.BenchmarkReport;
+import com.example.android.inventory.data.ItemContract.ItemEntry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+/**
+ * Microbenchmark of making and binding the rows of the item list, on the main thread as
+ * RecyclerView does while scrolling. Items have no thumbnail, so the time is that of the bind
+ * itself and of starting Glide's load, not of decoding an image. It runs on a device, since on
+ * the JVM Robolectric doesn't measure or lay out text.
+ *
+ * The results are written to the app's external files, under benchmarks.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ItemCursorAdapterBenchmark {
+
+    /** Untimed runs of each operation before it is timed */
+    private static final int WARMUP = 50;
+
+    /** Timed runs of each operation */
+    private static final int ITERATIONS = 500;
+
+    /** Rows in the list, as in the list's first page */
+    private static final int ROWS = 50;
+
+    @Test
+    public void bind() throws Throwable {
+        final Context context = new ContextThemeWrapper(
+                InstrumentationRegistry.getTargetContext(), R.style.AppTheme);
+        final BenchmarkReport report = new BenchmarkReport(getClass().getSimpleName(),
+                InstrumentationRegistry.getArguments().getString("commit"));
+        final Throwable[] error = new Throwable[1];
+
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    measure(context, report);
+                } catch (Throwable e) {
+                    error[0] = e;
+                }
+            }
+        });
+        if (error[0] != null) {
+            throw error[0];
+        }
+
+        File directory = context.getExternalFilesDir("benchmarks");
+        report.writeTo(directory != null
+                ? directory : new File(context.getFilesDir(), "benchmarks"));
+    }
+
+    private static void measure(Context context, BenchmarkReport report) throws Exception {
+        final RecyclerView parent = new RecyclerView(context);
+        parent.setLayoutManager(new LinearLayoutManager(context));
+        final ItemCursorAdapter adapter = new ItemCursorAdapter(context, null);
+        adapter.swapCursor(createCursor());
+
+        report.add(Benchmark.measure("create_view_holder", WARMUP, ITERATIONS,
+                new Benchmark.Operation() {
+                    @Override
+                    public void run(int iteration) {
+                        adapter.onCreateViewHolder(parent, 0);
+                    }
+                }));
+
+        final ItemCursorAdapter.ItemViewHolder holder = adapter.onCreateViewHolder(parent, 0);
+        report.add(Benchmark.measure("bind_view_holder", WARMUP, ITERATIONS,
+                new Benchmark.Operation() {
+                    @Override
+                    public void run(int iteration) {
+                        adapter.onBindViewHolder(holder, iteration % ROWS);
+                    }
+                }));
+
+        // A bound row is measured before it is shown, which is where its text is laid out
+        final int widthSpec = View.MeasureSpec.makeMeasureSpec(
+                context.getResources().getDisplayMetrics().widthPixels, View.MeasureSpec.EXACTLY);
+        final int heightSpec = View.MeasureSpec.makeMeasureSpec(0, View.MeasureSpec.UNSPECIFIED);
+        report.add(Benchmark.measure("bind_and_measure", WARMUP, ITERATIONS,
+                new Benchmark.Operation() {
+                    @Override
+                    public void run(int iteration) {
+                        adapter.onBindViewHolder(holder, iteration % ROWS);
+                        holder.itemView.measure(widthSpec, heightSpec);
+                    }
+                }));
+    }
+
+    private static MatrixCursor createCursor() {
+        MatrixCursor cursor = new MatrixCursor(new String[] {
+                ItemEntry._ID,
+                ItemEntry.COLUMN_ITEM_NAME,
+                ItemEntry.COLUMN_ITEM_SUPPLIER,
+                ItemEntry.COLUMN_ITEM_PRICE,
+                ItemEntry.COLUMN_ITEM_QUANTITY,
+                ItemEntry.COLUMN_ITEM_THUMBNAIL_REF });
+        for (int i = 0; i < ROWS; i++) {
+            // Every tenth item has no supplier, and shows the unknown supplier text instead
+            cursor.addRow(new Object[] { i + 1, "Item " + i, i % 10 == 0 ? null : "Supplier " + i,
+                    1 + i % 100, i % 20, null });
+        }
+        return cursor;
+    }
+}
@@ -0,0 +1,100 @@
+package com.example.android.inventory.benchmark;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.inventory.data.SampleDataGenerator;
+import com.example.android.inventory.data.Utils;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.Random;
+
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Microbenchmark of converting images to and from the JPEG bytes that are saved, at the sizes the
+ * app actually handles: a list thumbnail, a small photo, and a photo scaled down to
+ * {@link Utils#IMAGE_MAX_SIZE}. It runs on a device, since on the JVM Robolectric stands in for
+ * Bitmap and doesn't encode or decode anything.
+ *
+ * The results are written to the app's external files, under benchmarks:
+ * ./gradlew connectedAndroidTest -Pandroid.testInstrumentationRunnerArguments.package=\
+ *     com.example.android.inventory.benchmark
+ */
+@RunWith(AndroidJUnit4.class)
+public class ImageBenchmark {
+
+    /** Untimed runs of each operation before it is timed */
+    private static final int WARMUP = 5;
+
+    /** Timed runs of each operation */
+    private static final int ITERATIONS = 30;
+
+    /** Width and height of each image size measured */
+    private static final int[][] SIZES = {
+            { Utils.THUMBNAIL_MAX_SIZE, Utils.THUMBNAIL_MAX_SIZE },
+            { 640, 480 },
+            { Utils.IMAGE_MAX_SIZE, Utils.IMAGE_MAX_SIZE * 3 / 4 } };
+
+    private Bitmap mBitmap;
+
+    @After
+    public void tearDown() {
+        if (mBitmap != null) {
+            mBitmap.recycle();
+        }
+    }
+
+    @Test
+    public void conversions() throws Exception {
+        Context context = InstrumentationRegistry.getTargetContext();
+        BenchmarkReport report = new BenchmarkReport(getClass().getSimpleName(),
+                InstrumentationRegistry.getArguments().getString("commit"));
+
+        for (int[] size : SIZES) {
+            String sizeName = size[0] + "x" + size[1];
+            if (mBitmap != null) {
+                mBitmap.recycle();
+            }
+            mBitmap = SampleDataGenerator.createPhotoLikeBitmap(new Random(size[0]), size[0],
+                    size[1]);
+            final byte[] jpeg = Utils.convertBitmapToByteArray(mBitmap);
+
+            report.add(Benchmark.measure("bitmap_to_bytes", WARMUP, ITERATIONS,
+                    new Benchmark.Operation() {
+                        @Override
+                        public void run(int iteration) {
+                            Utils.convertBitmapToByteArray(mBitmap);
+                        }
+                    }), "size", sizeName, "bytes", jpeg.length);
+
+            report.add(Benchmark.measure("bytes_to_bitmap", WARMUP, ITERATIONS,
+                    new Benchmark.Operation() {
+                        @Override
+                        public void run(int iteration) {
+                            Bitmap bitmap = Utils.convertByteArrayToBitmap(jpeg);
+                            assertNotNull(bitmap);
+                            bitmap.recycle();
+                        }
+                    }), "size", sizeName, "bytes", jpeg.length);
+
+            report.add(Benchmark.measure("create_thumbnail", WARMUP, ITERATIONS,
+                    new Benchmark.Operation() {
+                        @Override
+                        public void run(int iteration) {
+                            assertNotNull(Utils.createThumbnailByteArray(jpeg));
+                        }
+                    }), "size", sizeName, "bytes", jpeg.length);
+        }
+
+        File directory = context.getExternalFilesDir("benchmarks");
+        report.writeTo(directory != null
+                ? directory : new File(context.getFilesDir(), "benchmarks"));
+    }
+}
@@ -0,0 +1,425 @@
+package com.example.android.inventory.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.inventory.R;
+import com.example.android.inventory.data.ItemContract.ItemEntry;
+import com.example.android.inventory.data.ItemContract.SummaryEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Instrumentation test upgrading a version 1 database, seeded in a file of its own, to the
+ * current version with {@link ItemDbHelper}. The time taken by the schema upgrade, which runs
+ * while the database is opened, and by moving the data of each version is logged under the tag
+ * of this class.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ItemDbHelperMigrationTest {
+
+    private static final String LOG = ItemDbHelperMigrationTest.class.getSimpleName();
+
+    private static final String TEST_DATABASE = "migration_test.db";
+
+    /** Size of the inventory the full upgrade is timed over */
+    private static final int LARGE_INVENTORY_SIZE = 100000;
+
+    /** One in this many version 1 items has an image, the rest have an empty BLOB */
+    private static final int ITEMS_PER_IMAGE = 10;
+
+    /**
+     * One in this many items with an image shares the same image, as copies of the placeholder
+     * used to. The others each have an image of their own, as photos do
+     */
+    private static final int IMAGES_PER_SHARED_IMAGE = 4;
+
+    private Context mContext;
+    private ItemDbHelper mDbHelper;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(TEST_DATABASE);
+    }
+
+    @After
+    public void tearDown() {
+        if (mDbHelper != null) {
+            deleteTestImages(mDbHelper.getWritableDatabase());
+            mDbHelper.close();
+        }
+        mContext.deleteDatabase(TEST_DATABASE);
+    }
+
+    @Test
+    public void upgradeFromVersion1_largeInventory() {
+        seedVersion1Database(LARGE_INVENTORY_SIZE);
+
+        long start = SystemClock.elapsedRealtime();
+        mDbHelper = new ItemDbHelper(mContext, TEST_DATABASE);
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        Log.i(LOG, "schema upgrade: " + (SystemClock.elapsedRealtime() - start) + " ms");
+        // The items are moved into the new table by the migrations, none while opening
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, ItemEntry.TABLE_NAME));
+        assertTrue(mDbHelper.hasPendingMigrations());
+
+        assertTrue(mDbHelper.runPendingMigrations(new TimingListener()));
+        assertMigrated(db, LARGE_INVENTORY_SIZE);
+    }
+
+    @Test
+    public void upgradeFromVersion1_resumesAfterBeingStopped() {
+        final int size = 2000;
+        seedVersion1Database(size);
+
+        // Stop part way through each migration, as if the app had been killed
+        for (final int stopAt : new int[] { 2, 3, 4 }) {
+            mDbHelper = new ItemDbHelper(mContext, TEST_DATABASE);
+            mDbHelper.runPendingMigrations(new ItemDbHelper.MigrationListener() {
+                private int mChunks;
+
+                @Override
+                public boolean onMigrationProgress(int version, int done, int total) {
+                    return version < stopAt || ++mChunks <= 5;
+                }
+
+                @Override
+                public void onMigrationFinished(int version) {
+                }
+            });
+            mDbHelper.close();
+        }
+
+        mDbHelper = new ItemDbHelper(mContext, TEST_DATABASE);
+        assertTrue(mDbHelper.runPendingMigrations(null));
+        assertMigrated(mDbHelper.getWritableDatabase(), size);
+    }
+
+    @Test
+    public void upgradeFromVersion1_countsItemsChangedPartWay() {
+        final int size = 5000;
+        seedVersion1Database(size);
+        mDbHelper = new ItemDbHelper(mContext, TEST_DATABASE);
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+
+        // Change items either side of how far the image counts, then the summary, have got;
+        // the first item and one near the end have an image, as do those deleted
+        for (int version : new int[] { ItemDbHelper.VERSION_IMAGE_REF_COUNTS,
+                ItemDbHelper.VERSION_SUMMARY }) {
+            assertFalse(mDbHelper.runPendingMigrations(new StopListener(version, 2)));
+            for (long id : new long[] { 1, size - 9 }) {
+                db.execSQL("UPDATE " + ItemEntry.TABLE_NAME + " SET "
+                        + ItemEntry.COLUMN_ITEM_QUANTITY + " = 0, "
+                        + ItemEntry.COLUMN_ITEM_PRICE + " = " + ItemEntry.COLUMN_ITEM_PRICE
+                        + " + 1 WHERE " + ItemEntry._ID + " = " + id);
+                db.execSQL("INSERT INTO " + ItemEntry.TABLE_NAME + " ("
+                        + ItemEntry.COLUMN_ITEM_NAME + ", " + ItemEntry.COLUMN_ITEM_PRICE + ", "
+                        + ItemEntry.COLUMN_ITEM_QUANTITY + ", "
+                        + ItemEntry.COLUMN_ITEM_IMAGE_REF + ", "
+                        + ItemEntry.COLUMN_ITEM_THUMBNAIL_REF + ") SELECT 'Copy', "
+                        + ItemEntry.COLUMN_ITEM_PRICE + ", 3, "
+                        + ItemEntry.COLUMN_ITEM_IMAGE_REF + ", "
+                        + ItemEntry.COLUMN_ITEM_THUMBNAIL_REF + " FROM " + ItemEntry.TABLE_NAME
+                        + " WHERE " + ItemEntry._ID + " = " + id);
+            }
+            // Items with an image, one either side
+            long counted = version * 10 + 1;
+            long notCounted = size - version * 10 - 9;
+            db.delete(ItemEntry.TABLE_NAME, ItemEntry._ID + " IN (?, ?)",
+                    new String[] { String.valueOf(counted), String.valueOf(notCounted) });
+        }
+        assertTrue(mDbHelper.runPendingMigrations(null));
+
+        assertImagesCounted(db);
+        assertEquals(DatabaseUtils.queryNumEntries(db, ItemEntry.TABLE_NAME),
+                DatabaseUtils.longForQuery(db, "SELECT " + SummaryEntry.COLUMN_ITEM_COUNT
+                        + " FROM " + SummaryEntry.TABLE_NAME, null));
+        assertEquals(DatabaseUtils.longForQuery(db, "SELECT SUM(" + ItemEntry.COLUMN_ITEM_PRICE
+                        + " * " + ItemEntry.COLUMN_ITEM_QUANTITY + ") FROM " + ItemEntry.TABLE_NAME,
+                null), DatabaseUtils.longForQuery(db, "SELECT " + SummaryEntry.COLUMN_TOTAL_VALUE
+                + " FROM " + SummaryEntry.TABLE_NAME, null));
+        assertEquals(DatabaseUtils.queryNumEntries(db, ItemEntry.TABLE_NAME,
+                ItemEntry.COLUMN_ITEM_QUANTITY + " <= 0", null), DatabaseUtils.longForQuery(db,
+                "SELECT " + SummaryEntry.COLUMN_OUT_OF_STOCK_COUNT + " FROM "
+                        + SummaryEntry.TABLE_NAME, null));
+        // Low on stock are the items at or below their reorder level, as the low stock list has
+        assertEquals(DatabaseUtils.queryNumEntries(db, ItemEntry.TABLE_NAME,
+                ItemEntry.COLUMN_ITEM_QUANTITY + " <= " + ItemEntry.COLUMN_ITEM_REORDER_LEVEL,
+                null), DatabaseUtils.longForQuery(db, "SELECT "
+                + SummaryEntry.COLUMN_LOW_STOCK_COUNT + " FROM " + SummaryEntry.TABLE_NAME, null));
+    }
+
+    @Test
+    public void upgradeFromVersion1_keepsNumberingNewItemsAfterOldOnes() {
+        seedVersion1Database(10);
+        // The last item was deleted, so its _ID must not be given to a new item
+        SQLiteDatabase v1 = mContext.openOrCreateDatabase(TEST_DATABASE, Context.MODE_PRIVATE, null);
+        v1.delete(ItemEntry.TABLE_NAME, ItemEntry._ID + " = 10", null);
+        v1.close();
+
+        mDbHelper = new ItemDbHelper(mContext, TEST_DATABASE);
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        SQLiteStatement insert = db.compileStatement("INSERT INTO " + ItemEntry.TABLE_NAME
+                + " (" + ItemEntry.COLUMN_ITEM_NAME + ", " + ItemEntry.COLUMN_ITEM_PRICE + ")"
+                + " VALUES ('New', 1)");
+        assertEquals(11, insert.executeInsert());
+        assertTrue(mDbHelper.runPendingMigrations(null));
+        assertEquals(10, DatabaseUtils.queryNumEntries(db, ItemEntry.TABLE_NAME));
+    }
+
+    @Test
+    public void upgradeFromVersion1_deletesPlaceholderCopies() {
+        seedVersion1Database(20);
+        // Items used to be saved with a copy of the placeholder when they had no image
+        Bitmap placeholder = BitmapFactory.decodeResource(mContext.getResources(),
+                R.drawable.placeholder_thumbnail);
+        ByteArrayOutputStream placeholderBytes = new ByteArrayOutputStream();
+        placeholder.compress(Bitmap.CompressFormat.JPEG, 100, placeholderBytes);
+        placeholder.recycle();
+        SQLiteDatabase v1 = mContext.openOrCreateDatabase(TEST_DATABASE, Context.MODE_PRIVATE, null);
+        ContentValues values = new ContentValues();
+        values.put(ItemEntry.COLUMN_ITEM_IMAGE, placeholderBytes.toByteArray());
+        v1.update(ItemEntry.TABLE_NAME, values, ItemEntry._ID + " IN (2, 3)", null);
+        v1.close();
+
+        // Stop before the references are counted, to find the placeholder's thumbnail
+        mDbHelper = new ItemDbHelper(mContext, TEST_DATABASE);
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        assertFalse(mDbHelper.runPendingMigrations(
+                new StopListener(ItemDbHelper.VERSION_IMAGE_REF_COUNTS, 0)));
+        Cursor cursor = db.query(ItemEntry.TABLE_NAME, new String[] {
+                ItemEntry.COLUMN_ITEM_IMAGE_REF, ItemEntry.COLUMN_ITEM_THUMBNAIL_REF },
+                ItemEntry._ID + " = 2", null, null, null, null);
+        String placeholderRef;
+        String thumbnailRef;
+        try {
+            assertTrue(cursor.moveToFirst());
+            placeholderRef = cursor.getString(0);
+            thumbnailRef = cursor.getString(1);
+        } finally {
+            cursor.close();
+        }
+        ImageStore imageStore = new ImageStore(mContext);
+        assertTrue(imageStore.contains(placeholderRef));
+        assertTrue(imageStore.contains(thumbnailRef));
+
+        assertTrue(mDbHelper.runPendingMigrations(null));
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, ItemEntry.TABLE_NAME,
+                ItemEntry._ID + " IN (2, 3) AND (" + ItemEntry.COLUMN_ITEM_IMAGE_REF
+                        + " IS NOT NULL OR " + ItemEntry.COLUMN_ITEM_THUMBNAIL_REF
+                        + " IS NOT NULL)", null));
+        assertFalse(imageStore.contains(placeholderRef));
+        assertFalse(imageStore.contains(thumbnailRef));
+        assertImagesCounted(db);
+    }
+
+    /** Create a version 1 database, with images as BLOBs in the items table */
+    private void seedVersion1Database(int size) {
+        SQLiteDatabase db = mContext.openOrCreateDatabase(TEST_DATABASE, Context.MODE_PRIVATE, null);
+        try {
+            db.execSQL("CREATE TABLE " + ItemEntry.TABLE_NAME + " ("
+                    + ItemEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                    + ItemEntry.COLUMN_ITEM_NAME + " TEXT NOT NULL, "
+                    + ItemEntry.COLUMN_ITEM_SUPPLIER + " TEXT, "
+                    + ItemEntry.COLUMN_ITEM_PRICE + " INTEGER NOT NULL, "
+                    + ItemEntry.COLUMN_ITEM_QUANTITY + " INTEGER NOT NULL DEFAULT 0, "
+                    + ItemEntry.COLUMN_ITEM_IMAGE + " BLOB NOT NULL);");
+            Bitmap bitmap = Bitmap.createBitmap(64, 64, Bitmap.Config.ARGB_8888);
+            byte[] sharedImage = createTestImage(bitmap, 0);
+            byte[] noImage = new byte[0];
+            SQLiteStatement insert = db.compileStatement("INSERT INTO " + ItemEntry.TABLE_NAME
+                    + " VALUES (NULL, ?, ?, ?, ?, ?)");
+            db.beginTransaction();
+            try {
+                for (int i = 0; i < size; i++) {
+                    insert.bindString(1, "Item " + i);
+                    if (i % 50 == 0) {
+                        insert.bindNull(2);
+                    } else {
+                        insert.bindString(2, "Supplier " + (i % 50));
+                    }
+                    insert.bindLong(3, i % 100);
+                    insert.bindLong(4, i % 20);
+                    if (i % ITEMS_PER_IMAGE != 0) {
+                        insert.bindBlob(5, noImage);
+                    } else {
+                        int image = i / ITEMS_PER_IMAGE;
+                        insert.bindBlob(5, image % IMAGES_PER_SHARED_IMAGE == 0
+                                ? sharedImage : createTestImage(bitmap, image));
+                    }
+                    insert.executeInsert();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            db.setVersion(1);
+            bitmap.recycle();
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * @param bitmap drawn on to make the image
+     * @return an image of its own for each number, which has its bits drawn as white squares
+     */
+    private static byte[] createTestImage(Bitmap bitmap, int number) {
+        bitmap.eraseColor(Color.rgb(12, 34, 56));
+        for (int bit = 0; bit < 32; bit++) {
+            if ((number >>> bit & 1) != 0) {
+                int left = bit % 8 * 8;
+                int top = bit / 8 * 8;
+                for (int y = top; y < top + 8; y++) {
+                    for (int x = left; x < left + 8; x++) {
+                        bitmap.setPixel(x, y, Color.WHITE);
+                    }
+                }
+            }
+        }
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.JPEG, 90, stream);
+        return stream.toByteArray();
+    }
+
+    private static void assertMigrated(SQLiteDatabase db, int size) {
+        assertEquals(size, DatabaseUtils.queryNumEntries(db, ItemEntry.TABLE_NAME));
+        int withImage = (size + ITEMS_PER_IMAGE - 1) / ITEMS_PER_IMAGE;
+        assertEquals(withImage, DatabaseUtils.queryNumEntries(db, ItemEntry.TABLE_NAME,
+                ItemEntry.COLUMN_ITEM_IMAGE_REF + " IS NOT NULL", null));
+        assertEquals(withImage, DatabaseUtils.queryNumEntries(db, ItemEntry.TABLE_NAME,
+                ItemEntry.COLUMN_ITEM_THUMBNAIL_REF + " IS NOT NULL", null));
+        assertEquals(size, DatabaseUtils.queryNumEntries(db, ItemEntry.SEARCH_TABLE_NAME));
+        // The shared image, and one image for each of the other items with an image
+        int sharing = (withImage + IMAGES_PER_SHARED_IMAGE - 1) / IMAGES_PER_SHARED_IMAGE;
+        assertEquals(withImage - sharing + 1, DatabaseUtils.longForQuery(db,
+                "SELECT COUNT(DISTINCT " + ItemEntry.COLUMN_ITEM_IMAGE_REF + ") FROM "
+                        + ItemEntry.TABLE_NAME, null));
+        // Each image and its thumbnail, each counted once per item using it
+        assertEquals(2, DatabaseUtils.queryNumEntries(db, ItemDbHelper.IMAGES_TABLE,
+                ItemDbHelper.COLUMN_IMAGE_REF_COUNT + " = ?",
+                new String[] { String.valueOf(sharing) }));
+        assertEquals(2 * (withImage - sharing + 1),
+                DatabaseUtils.queryNumEntries(db, ItemDbHelper.IMAGES_TABLE));
+        assertImagesCounted(db);
+        // The summary adds up the items already saved when the table was added
+        assertEquals(size, DatabaseUtils.longForQuery(db, "SELECT "
+                + SummaryEntry.COLUMN_ITEM_COUNT + " FROM " + SummaryEntry.TABLE_NAME, null));
+        assertEquals(DatabaseUtils.longForQuery(db, "SELECT SUM(" + ItemEntry.COLUMN_ITEM_PRICE
+                        + " * " + ItemEntry.COLUMN_ITEM_QUANTITY + ") FROM " + ItemEntry.TABLE_NAME,
+                null), DatabaseUtils.longForQuery(db, "SELECT " + SummaryEntry.COLUMN_TOTAL_VALUE
+                + " FROM " + SummaryEntry.TABLE_NAME, null));
+        assertEquals(DatabaseUtils.queryNumEntries(db, ItemEntry.TABLE_NAME,
+                ItemEntry.COLUMN_ITEM_QUANTITY + " <= 0", null), DatabaseUtils.longForQuery(db,
+                "SELECT " + SummaryEntry.COLUMN_OUT_OF_STOCK_COUNT + " FROM "
+                        + SummaryEntry.TABLE_NAME, null));
+        // Low on stock are the items at or below their reorder level, as the low stock list has
+        assertEquals(DatabaseUtils.queryNumEntries(db, ItemEntry.TABLE_NAME,
+                ItemEntry.COLUMN_ITEM_QUANTITY + " <= " + ItemEntry.COLUMN_ITEM_REORDER_LEVEL,
+                null), DatabaseUtils.longForQuery(db, "SELECT "
+                + SummaryEntry.COLUMN_LOW_STOCK_COUNT + " FROM " + SummaryEntry.TABLE_NAME, null));
+        // Every item has the default reorder level, and its stock margin worked out from it
+        assertEquals(size, DatabaseUtils.queryNumEntries(db, ItemEntry.TABLE_NAME,
+                ItemEntry.COLUMN_ITEM_STOCK_MARGIN + " = " + ItemEntry.COLUMN_ITEM_QUANTITY
+                        + " - " + ItemEntry.DEFAULT_REORDER_LEVEL, null));
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, "sqlite_master", "name = ?",
+                new String[] { ItemMigrations.V1_ITEMS_TABLE }));
+        // Missing suppliers are empty, so the supplier sort order can page over them
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, ItemEntry.TABLE_NAME,
+                ItemEntry.COLUMN_ITEM_SUPPLIER + " IS NULL", null));
+        assertEquals((size + 49) / 50, DatabaseUtils.queryNumEntries(db, ItemEntry.TABLE_NAME,
+                ItemEntry.COLUMN_ITEM_SUPPLIER + " = ''", null));
+    }
+
+    /** Assert that each image's count is the number of items using it, as image or thumbnail */
+    private static void assertImagesCounted(SQLiteDatabase db) {
+        // Counted with one pass over the items, as nothing indexes the references
+        assertEquals(0, DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM "
+                + ItemDbHelper.IMAGES_TABLE + " LEFT JOIN (SELECT ref, COUNT(*) AS uses FROM ("
+                + "SELECT " + ItemEntry.COLUMN_ITEM_IMAGE_REF + " AS ref FROM "
+                + ItemEntry.TABLE_NAME + " UNION ALL SELECT "
+                + ItemEntry.COLUMN_ITEM_THUMBNAIL_REF + " FROM " + ItemEntry.TABLE_NAME
+                + ") WHERE ref IS NOT NULL GROUP BY ref) ON ref = "
+                + ItemDbHelper.COLUMN_IMAGE_REF + " WHERE "
+                + ItemDbHelper.COLUMN_IMAGE_REF_COUNT + " != IFNULL(uses, 0)", null));
+    }
+
+    /** Delete the files the test's images and their thumbnails were moved into */
+    private void deleteTestImages(SQLiteDatabase db) {
+        ImageStore imageStore = new ImageStore(mContext);
+        Cursor cursor = db.rawQuery("SELECT DISTINCT " + ItemEntry.COLUMN_ITEM_IMAGE_REF + ", "
+                + ItemEntry.COLUMN_ITEM_THUMBNAIL_REF + " FROM " + ItemEntry.TABLE_NAME
+                + " WHERE " + ItemEntry.COLUMN_ITEM_IMAGE_REF + " IS NOT NULL", null);
+        try {
+            while (cursor.moveToNext()) {
+                imageStore.delete(cursor.getString(0));
+                if (!cursor.isNull(1)) {
+                    imageStore.delete(cursor.getString(1));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /** Stops the migrations once a number of chunks of one version have been moved */
+    private static class StopListener implements ItemDbHelper.MigrationListener {
+        private final int mVersion;
+        private int mChunksLeft;
+
+        StopListener(int version, int chunks) {
+            mVersion = version;
+            mChunksLeft = chunks;
+        }
+
+        @Override
+        public boolean onMigrationProgress(int version, int done, int total) {
+            return version != mVersion || mChunksLeft-- > 0;
+        }
+
+        @Override
+        public void onMigrationFinished(int version) {
+        }
+    }
+
+    /** Logs how long moving the data of each version takes */
+    private static class TimingListener implements ItemDbHelper.MigrationListener {
+        private long mStart = -1;
+
+        @Override
+        public boolean onMigrationProgress(int version, int done, int total) {
+            if (mStart < 0) {
+                mStart = SystemClock.elapsedRealtime();
+            }
+            return true;
+        }
+
+        @Override
+        public void onMigrationFinished(int version) {
+            Log.i(LOG, "data migration to version " + version + ": "
+                    + (SystemClock.elapsedRealtime() - mStart) + " ms");
+            mStart = -1;
+        }
+    }
+}
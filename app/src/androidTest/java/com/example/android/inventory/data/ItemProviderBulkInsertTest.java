@@ -0,0 +1,169 @@
+package com.example.android.inventory.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.SQLException;
+import android.os.SystemClock;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.inventory.data.ItemContract.ItemEntry;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+/**
+ * Instrumentation test for receiving a delivery through {@link ItemProvider}. It measures the
+ * rows per second of inserting row by row (what the framework's default bulkInsert does) against
+ * the transactional bulkInsert and applyBatch, and logs them under the tag of this class. A
+ * bulkInsert or applyBatch that fails must leave neither rows nor image files behind.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ItemProviderBulkInsertTest {
+
+    private static final String LOG = ItemProviderBulkInsertTest.class.getSimpleName();
+
+    /** Bytes saved as an image. They aren't decoded, so needn't be a real one */
+    private static final byte[] IMAGE = { 1, 2, 3, 4 };
+
+    /** Size of the delivery inserted by each test */
+    private static final int DELIVERY_SIZE = 2000;
+
+    @Rule
+    public final ItemProviderRule mProvider = new ItemProviderRule();
+
+    private ContentResolver mResolver;
+
+    @Before
+    public void setUp() {
+        mResolver = mProvider.getResolver();
+    }
+
+    @Test
+    public void bulkInsert_isFasterThanRowByRow() throws Exception {
+        ContentValues[] delivery = createDelivery();
+
+        long start = SystemClock.elapsedRealtime();
+        for (ContentValues row : delivery) {
+            mResolver.insert(ItemEntry.CONTENT_URI, new ContentValues(row));
+        }
+        double rowByRow = rowsPerSecond(start);
+        assertEquals(DELIVERY_SIZE, mProvider.countItems());
+        mResolver.delete(ItemEntry.CONTENT_URI, null, null);
+
+        start = SystemClock.elapsedRealtime();
+        int inserted = mResolver.bulkInsert(ItemEntry.CONTENT_URI, delivery);
+        double bulk = rowsPerSecond(start);
+        assertEquals(DELIVERY_SIZE, inserted);
+        assertEquals(DELIVERY_SIZE, mProvider.countItems());
+
+        Log.i(LOG, String.format("insert row by row: %.0f rows/s, bulkInsert: %.0f rows/s (%.1fx)",
+                rowByRow, bulk, bulk / rowByRow));
+    }
+
+    @Test
+    public void applyBatch_insertsAllRows() throws Exception {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        for (ContentValues row : createDelivery()) {
+            operations.add(ContentProviderOperation.newInsert(ItemEntry.CONTENT_URI)
+                    .withValues(row)
+                    .build());
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        mResolver.applyBatch(ItemContract.CONTENT_AUTHORITY, operations);
+        Log.i(LOG, String.format("applyBatch: %.0f rows/s", rowsPerSecond(start)));
+        assertEquals(DELIVERY_SIZE, mProvider.countItems());
+    }
+
+    @Test
+    public void bulkInsert_withInvalidRow_insertsNothing() {
+        ContentValues[] delivery = createDelivery();
+        delivery[DELIVERY_SIZE - 1].put(ItemEntry.COLUMN_ITEM_PRICE, -1);
+        try {
+            mResolver.bulkInsert(ItemEntry.CONTENT_URI, delivery);
+            fail("Expected the invalid price to be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(0, mProvider.countItems());
+    }
+
+    @Test
+    public void bulkInsert_failing_givesUpSavedImages() throws Exception {
+        ContentValues[] delivery = createDelivery();
+        byte[] image = IMAGE;
+        delivery[0].put(ItemEntry.COLUMN_ITEM_IMAGE, image);
+        delivery[DELIVERY_SIZE - 1].put("no_such_column", 1);
+        try {
+            mResolver.bulkInsert(ItemEntry.CONTENT_URI, delivery);
+            fail("Expected the unknown column to fail the insert");
+        } catch (SQLException e) {
+            // expected
+        }
+        assertEquals(0, mProvider.countItems());
+        assertFalse(isStored(image));
+    }
+
+    @Test
+    public void applyBatch_failing_givesUpSavedImages() throws Exception {
+        ContentValues withImage = createDelivery()[0];
+        byte[] image = IMAGE;
+        withImage.put(ItemEntry.COLUMN_ITEM_IMAGE, image);
+        ContentValues failing = createDelivery()[1];
+        failing.put("no_such_column", 1);
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(ContentProviderOperation.newInsert(ItemEntry.CONTENT_URI)
+                .withValues(withImage)
+                .build());
+        operations.add(ContentProviderOperation.newInsert(ItemEntry.CONTENT_URI)
+                .withValues(failing)
+                .build());
+        try {
+            mResolver.applyBatch(ItemContract.CONTENT_AUTHORITY, operations);
+            fail("Expected the unknown column to fail the batch");
+        } catch (OperationApplicationException e) {
+            // expected
+        }
+        assertEquals(0, mProvider.countItems());
+        assertFalse(isStored(image));
+    }
+
+    /** @return true if the image has a file in the store, which names it by its SHA-1 */
+    private boolean isStored(byte[] image) throws Exception {
+        StringBuilder ref = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("SHA-1").digest(image)) {
+            ref.append(String.format("%02x", b));
+        }
+        return new ImageStore(mProvider.getContext()).contains(ref.toString());
+    }
+
+    private static ContentValues[] createDelivery() {
+        ContentValues[] delivery = new ContentValues[DELIVERY_SIZE];
+        for (int i = 0; i < DELIVERY_SIZE; i++) {
+            ContentValues values = new ContentValues();
+            values.put(ItemEntry.COLUMN_ITEM_NAME, "Item " + i);
+            values.put(ItemEntry.COLUMN_ITEM_SUPPLIER, "Supplier " + (i % 10));
+            values.put(ItemEntry.COLUMN_ITEM_PRICE, i % 100);
+            values.put(ItemEntry.COLUMN_ITEM_QUANTITY, i % 20);
+            delivery[i] = values;
+        }
+        return delivery;
+    }
+
+    private static double rowsPerSecond(long startMillis) {
+        long elapsed = Math.max(1, SystemClock.elapsedRealtime() - startMillis);
+        return DELIVERY_SIZE * 1000.0 / elapsed;
+    }
+}
@@ -0,0 +1,193 @@
+package com.example.android.inventory.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.inventory.data.ItemContract.ItemEntry;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Instrumentation benchmark of list queries running while quantities are being updated, as
+ * happens when the sale button is pressed while the list is being scrolled. Several threads
+ * query pages of the list while another streams quantity updates, all through
+ * {@link ItemProvider}. The p50/p99 latency of each is logged under the tag of this class.
+ *
+ * The rows, the updates and the pages read are all chosen with a fixed seed, so runs compare.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ItemProviderContentionTest {
+
+    private static final String LOG = ItemProviderContentionTest.class.getSimpleName();
+
+    private static final int ROW_COUNT = 2000;
+    private static final int READER_THREADS = 3;
+    private static final int QUERIES_PER_READER = 200;
+    private static final int UPDATES = 1000;
+    private static final int PAGE_SIZE = 50;
+    private static final long SEED = 42;
+
+    @Rule
+    public final ItemProviderRule mProvider = new ItemProviderRule();
+
+    private ContentResolver mResolver;
+    private long[] mIds;
+
+    @Before
+    public void setUp() {
+        mResolver = mProvider.getResolver();
+
+        ContentValues[] rows = new ContentValues[ROW_COUNT];
+        for (int i = 0; i < ROW_COUNT; i++) {
+            ContentValues values = new ContentValues();
+            values.put(ItemEntry.COLUMN_ITEM_NAME, "Item " + i);
+            values.put(ItemEntry.COLUMN_ITEM_SUPPLIER, "Supplier " + (i % 10));
+            values.put(ItemEntry.COLUMN_ITEM_PRICE, i % 100);
+            values.put(ItemEntry.COLUMN_ITEM_QUANTITY, 100);
+            rows[i] = values;
+        }
+        mResolver.bulkInsert(ItemEntry.CONTENT_URI, rows);
+        mIds = queryIds();
+        assertEquals(ROW_COUNT, mIds.length);
+    }
+
+    @Test
+    public void journalMode_isWal() {
+        // The test's own database, which the provider has already opened and set up
+        ItemDbHelper dbHelper = new ItemDbHelper(mProvider.getContext());
+        try {
+            SQLiteDatabase database = dbHelper.getWritableDatabase();
+            Cursor cursor = database.rawQuery("PRAGMA journal_mode", null);
+            try {
+                cursor.moveToFirst();
+                assertEquals("wal", cursor.getString(0).toLowerCase());
+            } finally {
+                cursor.close();
+            }
+        } finally {
+            dbHelper.close();
+        }
+    }
+
+    @Test
+    public void listQueries_duringQuantityUpdates() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final long[][] queryNanos = new long[READER_THREADS][QUERIES_PER_READER];
+        final long[] updateNanos = new long[UPDATES];
+
+        Thread[] threads = new Thread[READER_THREADS + 1];
+        for (int t = 0; t < READER_THREADS; t++) {
+            final int reader = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        Random random = new Random(SEED + reader);
+                        for (int i = 0; i < QUERIES_PER_READER; i++) {
+                            long after = mIds[random.nextInt(ROW_COUNT - PAGE_SIZE)];
+                            long begin = System.nanoTime();
+                            readPage(after);
+                            queryNanos[reader][i] = System.nanoTime() - begin;
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+        }
+        threads[READER_THREADS] = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    start.await();
+                    Random random = new Random(SEED);
+                    ContentValues values = new ContentValues();
+                    for (int i = 0; i < UPDATES; i++) {
+                        Uri uri = ContentUris.withAppendedId(ItemEntry.CONTENT_URI,
+                                mIds[random.nextInt(ROW_COUNT)]);
+                        values.put(ItemEntry.COLUMN_ITEM_QUANTITY, random.nextInt(100));
+                        long begin = System.nanoTime();
+                        mResolver.update(uri, values, null, null);
+                        updateNanos[i] = System.nanoTime() - begin;
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            }
+        });
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        long[] allQueries = new long[READER_THREADS * QUERIES_PER_READER];
+        for (int t = 0; t < READER_THREADS; t++) {
+            System.arraycopy(queryNanos[t], 0, allQueries, t * QUERIES_PER_READER,
+                    QUERIES_PER_READER);
+        }
+        Log.i(LOG, String.format("list query: p50 %.2f ms, p99 %.2f ms (%d queries, %d threads)",
+                percentileMillis(allQueries, 50), percentileMillis(allQueries, 99),
+                allQueries.length, READER_THREADS));
+        Log.i(LOG, String.format("quantity update: p50 %.2f ms, p99 %.2f ms (%d updates)",
+                percentileMillis(updateNanos, 50), percentileMillis(updateNanos, 99), UPDATES));
+    }
+
+    /** Read a page of the list the way the list does, starting after the given id */
+    private void readPage(long afterId) {
+        Uri pageUri = ItemEntry.buildPageUri(PAGE_SIZE, new String[] { String.valueOf(afterId) });
+        Cursor cursor = mResolver.query(pageUri, null, null, null, ItemSortOrder.ID.toSql());
+        try {
+            while (cursor.moveToNext()) {
+                cursor.getInt(cursor.getColumnIndex(ItemEntry.COLUMN_ITEM_QUANTITY));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static double percentileMillis(long[] nanos, int percentile) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        int index = Math.min(sorted.length - 1, sorted.length * percentile / 100);
+        return sorted[index] / 1000000.0;
+    }
+
+    private long[] queryIds() {
+        Cursor cursor = mResolver.query(ItemEntry.CONTENT_URI, new String[] { ItemEntry._ID },
+                null, null, ItemSortOrder.ID.toSql());
+        try {
+            long[] ids = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.example.android.inventory.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.net.Uri;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.inventory.data.ItemContract.ItemEntry;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Instrumentation test for streaming an item's image and thumbnail from {@link ItemProvider}'s
+ * image URIs.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ItemProviderImageTest {
+
+    @Rule
+    public final ItemProviderRule mProvider = new ItemProviderRule();
+
+    private ContentResolver mResolver;
+
+    @Before
+    public void setUp() {
+        mResolver = mProvider.getResolver();
+    }
+
+    @Test
+    public void imageUri_streamsTheSavedImage() throws IOException {
+        byte[] image = createTestImage();
+        long id = insert(image);
+
+        assertEquals(ItemEntry.IMAGE_TYPE, mResolver.getType(ItemEntry.buildImageUri(id)));
+        assertArrayEquals(image, readAll(ItemEntry.buildImageUri(id)));
+        // The thumbnail is made from the image when it is saved
+        assertTrue(readAll(ItemEntry.buildThumbnailUri(id)).length > 0);
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void imageUri_ofItemWithoutImage_isNotFound() throws IOException {
+        long id = insert(null);
+        mResolver.openInputStream(ItemEntry.buildImageUri(id));
+    }
+
+    private long insert(byte[] image) {
+        ContentValues values = new ContentValues();
+        values.put(ItemEntry.COLUMN_ITEM_NAME, "Image test item");
+        values.put(ItemEntry.COLUMN_ITEM_SUPPLIER, "Acme");
+        values.put(ItemEntry.COLUMN_ITEM_PRICE, 1);
+        if (image != null) {
+            values.put(ItemEntry.COLUMN_ITEM_IMAGE, image);
+        }
+        return mProvider.insertItem(values);
+    }
+
+    private byte[] readAll(Uri uri) throws IOException {
+        InputStream in = mResolver.openInputStream(uri);
+        assertNotNull(in);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] createTestImage() {
+        Bitmap bitmap = Bitmap.createBitmap(64, 64, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(Color.rgb(98, 76, 54));
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.JPEG, 90, stream);
+        bitmap.recycle();
+        return stream.toByteArray();
+    }
+}
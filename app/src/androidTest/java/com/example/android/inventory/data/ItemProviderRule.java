@@ -0,0 +1,173 @@
+package com.example.android.inventory.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.pm.ProviderInfo;
+import android.database.Cursor;
+import android.database.DatabaseErrorHandler;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.test.mock.MockContentResolver;
+
+import com.example.android.inventory.data.ItemContract.ItemEntry;
+
+import org.junit.rules.ExternalResource;
+
+import java.io.File;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test rule giving each test an {@link ItemProvider} of its own, with its own database file and
+ * image directory, so tests never read or write the app's real stock. The provider is reached
+ * through {@link #getResolver()}, or through {@link #getContext()}'s resolver, which is the
+ * same; both are thrown away, database and images included, after each test. Change
+ * notifications are not delivered.
+ */
+public class ItemProviderRule extends ExternalResource {
+
+    /** Put in front of the name of the test's database, and of its files directory */
+    private static final String PREFIX = "test_";
+
+    private IsolatedContext mContext;
+    private ItemProvider mProvider;
+
+    @Override
+    protected void before() {
+        mContext = new IsolatedContext(InstrumentationRegistry.getTargetContext());
+        mContext.deleteFiles();
+        mProvider = new ItemProvider();
+        ProviderInfo info = new ProviderInfo();
+        info.authority = ItemContract.CONTENT_AUTHORITY;
+        // Calls the provider's onCreate
+        mProvider.attachInfo(mContext, info);
+        mContext.mResolver.addProvider(ItemContract.CONTENT_AUTHORITY, mProvider);
+    }
+
+    @Override
+    protected void after() {
+        mProvider.shutdown();
+        mContext.deleteFiles();
+    }
+
+    /** @return a context whose database, files and content resolver are the test's own */
+    public Context getContext() {
+        return mContext;
+    }
+
+    public ContentResolver getResolver() {
+        return mContext.mResolver;
+    }
+
+    /** @return the _ID of a new item with the values given */
+    public long insertItem(String name, String supplier, int price, int quantity) {
+        ContentValues values = new ContentValues();
+        values.put(ItemEntry.COLUMN_ITEM_NAME, name);
+        values.put(ItemEntry.COLUMN_ITEM_SUPPLIER, supplier);
+        values.put(ItemEntry.COLUMN_ITEM_PRICE, price);
+        values.put(ItemEntry.COLUMN_ITEM_QUANTITY, quantity);
+        return insertItem(values);
+    }
+
+    /** @return the _ID of a new item with the values given */
+    public long insertItem(ContentValues values) {
+        Uri uri = getResolver().insert(ItemEntry.CONTENT_URI, values);
+        assertNotNull(uri);
+        return ContentUris.parseId(uri);
+    }
+
+    /** @return the quantity of the item, which must exist */
+    public int queryQuantity(long id) {
+        Cursor cursor = getResolver().query(ContentUris.withAppendedId(ItemEntry.CONTENT_URI, id),
+                new String[] { ItemEntry.COLUMN_ITEM_QUANTITY }, null, null, null);
+        assertNotNull(cursor);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /** @return the number of items */
+    public int countItems() {
+        Cursor cursor = getResolver().query(ItemEntry.CONTENT_URI,
+                new String[] { ItemEntry._ID }, null, null, null);
+        assertNotNull(cursor);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Context that renames the databases it opens and moves the files directory, and whose
+     * content resolver only knows the test's provider
+     */
+    private static class IsolatedContext extends ContextWrapper {
+        private final MockContentResolver mResolver = new MockContentResolver();
+
+        IsolatedContext(Context base) {
+            super(base);
+        }
+
+        @Override
+        public ContentResolver getContentResolver() {
+            return mResolver;
+        }
+
+        @Override
+        public Context getApplicationContext() {
+            return this;
+        }
+
+        @Override
+        public File getFilesDir() {
+            return getBaseContext().getDir(PREFIX + "files", MODE_PRIVATE);
+        }
+
+        @Override
+        public File getDatabasePath(String name) {
+            return super.getDatabasePath(PREFIX + name);
+        }
+
+        @Override
+        public SQLiteDatabase openOrCreateDatabase(String name, int mode,
+                SQLiteDatabase.CursorFactory factory) {
+            return super.openOrCreateDatabase(PREFIX + name, mode, factory);
+        }
+
+        @Override
+        public SQLiteDatabase openOrCreateDatabase(String name, int mode,
+                SQLiteDatabase.CursorFactory factory, DatabaseErrorHandler errorHandler) {
+            return super.openOrCreateDatabase(PREFIX + name, mode, factory, errorHandler);
+        }
+
+        @Override
+        public boolean deleteDatabase(String name) {
+            return super.deleteDatabase(PREFIX + name);
+        }
+
+        /** Delete the test's database and every file it saved, such as images */
+        void deleteFiles() {
+            deleteDatabase(ItemDbHelper.DATABASE_NAME);
+            deleteRecursively(getFilesDir());
+        }
+
+        private static void deleteRecursively(File file) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    deleteRecursively(child);
+                }
+            }
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.example.android.inventory.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.inventory.data.ItemContract.ItemEntry;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Instrumentation test for searching items through {@link ItemProvider}'s search URI. Besides
+ * checking the matches and their order, it times prefix searches over a large inventory and logs
+ * them under the tag of this class.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ItemProviderSearchTest {
+
+    private static final String LOG = ItemProviderSearchTest.class.getSimpleName();
+
+    /** Number of items the search is timed over */
+    private static final int LARGE_INVENTORY_SIZE = 100000;
+
+    /** Number of rows inserted per bulkInsert while filling the large inventory */
+    private static final int ROWS_PER_INSERT = 5000;
+
+    private static final String[] WORDS = { "bolt", "bracket", "cable", "clamp", "drill",
+            "gasket", "hinge", "nut", "pipe", "screw", "spring", "valve", "washer", "wire" };
+
+    @Rule
+    public final ItemProviderRule mProvider = new ItemProviderRule();
+
+    private ContentResolver mResolver;
+
+    @Before
+    public void setUp() {
+        mResolver = mProvider.getResolver();
+    }
+
+    @Test
+    public void search_ranksNameMatchesBeforeSupplierMatches() {
+        insert("Blue box", "Acme");
+        insert("Red cup", "Acme Bluebird");
+        insert("blue mug", "Acme");
+        insert("Green box", "Acme");
+
+        List<String> names = search("blu");
+        assertEquals(3, names.size());
+        assertEquals("Blue box", names.get(0));
+        assertEquals("blue mug", names.get(1));
+        assertEquals("Red cup", names.get(2));
+
+        names = search("BOX gre");
+        assertEquals(1, names.size());
+        assertEquals("Green box", names.get(0));
+    }
+
+    @Test
+    public void search_seesUpdatesAndDeletes() {
+        insert("Hammer", "Acme");
+        assertEquals(1, search("hamm").size());
+
+        ContentValues values = new ContentValues();
+        values.put(ItemEntry.COLUMN_ITEM_NAME, "Mallet");
+        mResolver.update(ItemEntry.CONTENT_URI, values, null, null);
+        assertEquals(0, search("hamm").size());
+        assertEquals(1, search("mall").size());
+
+        mResolver.delete(ItemEntry.CONTENT_URI, null, null);
+        assertEquals(0, search("mall").size());
+    }
+
+    @Test
+    public void search_ignoresQuerySyntax() {
+        insert("Nuts OR bolts", "Acme");
+        assertEquals(1, search("\"nuts\" OR -bolts*").size());
+        assertEquals(0, search("* - \"").size());
+    }
+
+    @Test
+    public void search_largeInventory() {
+        ContentValues[] rows = new ContentValues[ROWS_PER_INSERT];
+        for (int inserted = 0; inserted < LARGE_INVENTORY_SIZE; inserted += ROWS_PER_INSERT) {
+            for (int i = 0; i < ROWS_PER_INSERT; i++) {
+                int n = inserted + i;
+                ContentValues values = new ContentValues();
+                values.put(ItemEntry.COLUMN_ITEM_NAME, WORDS[n % WORDS.length] + " "
+                        + WORDS[(n / WORDS.length) % WORDS.length] + " " + n);
+                values.put(ItemEntry.COLUMN_ITEM_SUPPLIER, "Supplier " + (n % 50));
+                values.put(ItemEntry.COLUMN_ITEM_PRICE, n % 100);
+                values.put(ItemEntry.COLUMN_ITEM_QUANTITY, n % 20);
+                rows[i] = values;
+            }
+            mResolver.bulkInsert(ItemEntry.CONTENT_URI, rows);
+        }
+
+        for (String query : new String[] { "gas", "valve spr", "99999", "nothing" }) {
+            long start = System.nanoTime();
+            int count = search(query).size();
+            double millis = (System.nanoTime() - start) / 1000000.0;
+            Log.i(LOG, String.format("search \"%s\": %d results in %.2f ms", query, count, millis));
+        }
+        assertEquals(1, search("99999").size());
+    }
+
+    private void insert(String name, String supplier) {
+        mProvider.insertItem(name, supplier, 1, 0);
+    }
+
+    /** @return the names of the items found, in the order the provider ranked them */
+    private List<String> search(String query) {
+        Cursor cursor = mResolver.query(ItemEntry.buildSearchUri(query, 50),
+                new String[] { ItemEntry.COLUMN_ITEM_NAME }, null, null, null);
+        List<String> names = new ArrayList<>();
+        try {
+            while (cursor.moveToNext()) {
+                names.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return names;
+    }
+}
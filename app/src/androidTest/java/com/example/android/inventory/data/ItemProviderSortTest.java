@@ -0,0 +1,162 @@
+package com.example.android.inventory.data;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.inventory.Item;
+import com.example.android.inventory.data.ItemContract.ItemEntry;
+import com.example.android.inventory.data.ItemContract.SupplierEntry;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Instrumentation test for sorting and filtering the item list through {@link ItemProvider}.
+ * Each sort order is paged through by keyset, and each one's query plan is checked to read its
+ * index rather than sort the rows.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ItemProviderSortTest {
+
+    /** Small, so every sort order takes several pages */
+    private static final int PAGE_SIZE = 2;
+
+    @Rule
+    public final ItemProviderRule mProvider = new ItemProviderRule();
+
+    private ContentResolver mResolver;
+
+    @Before
+    public void setUp() {
+        mResolver = mProvider.getResolver();
+        mProvider.insertItem("Drill", "Kmart", 30, 0);
+        mProvider.insertItem("axe", "bunnings", 25, 4);
+        mProvider.insertItem("Box", "Bunnings", 2, 10);
+        mProvider.insertItem("Cable", null, 8, 4);
+        mProvider.insertItem("Tape", "Kmart", 2, 1);
+    }
+
+    @Test
+    public void sortOrders_pageInOrder() {
+        assertEquals(Arrays.asList("axe", "Box", "Cable", "Drill", "Tape"),
+                listAll(ItemSortOrder.NAME, null, false));
+        // Suppliers ignore case, and within a supplier items are by name
+        assertEquals(Arrays.asList("Cable", "axe", "Box", "Drill", "Tape"),
+                listAll(ItemSortOrder.SUPPLIER, null, false));
+        assertEquals(Arrays.asList("Box", "Tape", "Cable", "axe", "Drill"),
+                listAll(ItemSortOrder.PRICE, null, false));
+        assertEquals(Arrays.asList("Drill", "Tape", "axe", "Cable", "Box"),
+                listAll(ItemSortOrder.QUANTITY, null, false));
+    }
+
+    @Test
+    public void filters_limitTheList() {
+        assertEquals(Arrays.asList("axe", "Box"), listAll(ItemSortOrder.NAME, "BUNNINGS", false));
+        assertEquals(Arrays.asList("Tape"), listAll(ItemSortOrder.PRICE, "Kmart", true));
+        assertEquals(Arrays.asList("Cable"), listAll(ItemSortOrder.ID, "", false));
+        assertEquals(Arrays.asList("Box", "Tape", "Cable", "axe"),
+                listAll(ItemSortOrder.PRICE, null, true));
+    }
+
+    @Test
+    public void suppliers_areListedOnceWithTheirCounts() {
+        Cursor cursor = mResolver.query(SupplierEntry.CONTENT_URI, null, null, null, null);
+        List<String> suppliers = new ArrayList<>();
+        try {
+            while (cursor.moveToNext()) {
+                String supplier = cursor.getString(
+                        cursor.getColumnIndex(SupplierEntry.COLUMN_SUPPLIER_NAME));
+                int count = cursor.getInt(cursor.getColumnIndex(SupplierEntry.COLUMN_ITEM_COUNT));
+                if (supplier.equalsIgnoreCase("Bunnings")) {
+                    // Both spellings
+                    assertEquals(2, count);
+                }
+                suppliers.add(supplier.toLowerCase());
+            }
+        } finally {
+            cursor.close();
+        }
+        assertEquals(1, countOf(suppliers, "bunnings"));
+        assertEquals(1, countOf(suppliers, "kmart"));
+        // Items inserted without a supplier have an empty one
+        assertEquals(1, countOf(suppliers, ""));
+    }
+
+    @Test
+    public void sortOrders_readTheirIndex() {
+        ItemDbHelper dbHelper = new ItemDbHelper(mProvider.getContext());
+        try {
+            SQLiteDatabase db = dbHelper.getWritableDatabase();
+            for (ItemSortOrder order : ItemSortOrder.values()) {
+                String where = order.appendAfterSelection(null);
+                assertNoSort(db, "SELECT * FROM " + ItemEntry.TABLE_NAME + " WHERE " + where
+                        + " ORDER BY " + order.toSql() + " LIMIT 50",
+                        order.getColumnNames().length * 2 - 1);
+            }
+            // The items of one supplier are a range of the supplier index, already in name order
+            assertNoSort(db, "SELECT * FROM " + ItemEntry.TABLE_NAME + " WHERE "
+                    + ItemEntry.COLUMN_ITEM_SUPPLIER + " = ? COLLATE NOCASE ORDER BY "
+                    + ItemSortOrder.NAME.toSql() + " LIMIT 50", 1);
+        } finally {
+            dbHelper.close();
+        }
+    }
+
+    private static void assertNoSort(SQLiteDatabase db, String sql, int argCount) {
+        String[] args = new String[argCount];
+        Arrays.fill(args, "1");
+        Cursor plan = db.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        try {
+            while (plan.moveToNext()) {
+                String detail = plan.getString(plan.getColumnIndex("detail"));
+                assertFalse(sql + ": " + detail, detail.contains("TEMP B-TREE"));
+            }
+        } finally {
+            plan.close();
+        }
+    }
+
+    /** @return the names of the items, a page at a time as the list loads them */
+    private List<String> listAll(ItemSortOrder order, String supplier, boolean inStockOnly) {
+        List<String> names = new ArrayList<>();
+        String[] afterKey = null;
+        while (true) {
+            Uri uri = ItemEntry.buildPageUri(PAGE_SIZE, afterKey, supplier, inStockOnly);
+            Cursor cursor = mResolver.query(uri, null, null, null, order.toSql());
+            try {
+                while (cursor.moveToNext()) {
+                    Item item = Item.fromCursor(cursor);
+                    names.add(item.getName());
+                    afterKey = item.getSortKey(order);
+                }
+                if (cursor.getCount() < PAGE_SIZE) {
+                    return names;
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    private static int countOf(List<String> values, String value) {
+        int count = 0;
+        for (String each : values) {
+            if (each.equals(value)) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,171 @@
+package com.example.android.inventory.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.inventory.data.ItemContract.ItemEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Microbenchmark of the provider's hot writes, run against a database file of its own. Each
+ * operation is timed the way the provider used to do it, through SQLiteDatabase.update/insert
+ * with a selection string, and with the precompiled {@link ItemStatements}. The cost per
+ * operation of each is logged under the tag of this class.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ItemStatementsBenchmarkTest {
+
+    private static final String LOG = ItemStatementsBenchmarkTest.class.getSimpleName();
+
+    private static final String TEST_DATABASE = "statements_benchmark.db";
+
+    /** Number of times each operation is timed */
+    private static final int OPERATIONS = 5000;
+
+    /** Number of items updated in turn */
+    private static final int ITEM_COUNT = 100;
+
+    private Context mContext;
+    private ItemDbHelper mDbHelper;
+    private SQLiteDatabase mDatabase;
+    private ItemStatements mStatements;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(TEST_DATABASE);
+        mDbHelper = new ItemDbHelper(mContext, TEST_DATABASE);
+        mDatabase = mDbHelper.getWritableDatabase();
+        mStatements = new ItemStatements(mDatabase);
+        for (int i = 0; i < ITEM_COUNT; i++) {
+            mDatabase.insertOrThrow(ItemEntry.TABLE_NAME, null, createItem(i));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mDbHelper.close();
+        mContext.deleteDatabase(TEST_DATABASE);
+    }
+
+    @Test
+    public void quantityChange() {
+        long start = System.nanoTime();
+        for (int i = 0; i < OPERATIONS; i++) {
+            ContentValues values = new ContentValues();
+            values.put(ItemEntry.COLUMN_ITEM_QUANTITY, i);
+            mDatabase.update(ItemEntry.TABLE_NAME, values, ItemEntry._ID + "=?",
+                    new String[] { String.valueOf(i % ITEM_COUNT + 1) });
+        }
+        long before = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < OPERATIONS; i++) {
+            mStatements.updateQuantity(i % ITEM_COUNT + 1, i);
+        }
+        long after = System.nanoTime() - start;
+
+        log("quantity change", before, after);
+        assertEquals(OPERATIONS - 1, mStatements.queryQuantity(ITEM_COUNT));
+    }
+
+    @Test
+    public void sale() {
+        mDatabase.execSQL("UPDATE " + ItemEntry.TABLE_NAME + " SET "
+                + ItemEntry.COLUMN_ITEM_QUANTITY + " = " + OPERATIONS);
+        long start = System.nanoTime();
+        for (int i = 0; i < OPERATIONS / 2; i++) {
+            DatabaseUtils.longForQuery(mDatabase, "SELECT " + ItemEntry.COLUMN_ITEM_QUANTITY
+                    + " FROM " + ItemEntry.TABLE_NAME + " WHERE " + ItemEntry._ID + " = ?",
+                    new String[] { "1" });
+            mDatabase.execSQL("UPDATE " + ItemEntry.TABLE_NAME + " SET "
+                    + ItemEntry.COLUMN_ITEM_QUANTITY + " = MAX(" + ItemEntry.COLUMN_ITEM_QUANTITY
+                    + " - ?, 0) WHERE " + ItemEntry._ID + " = ?", new Object[] { 1, 1 });
+        }
+        long before = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < OPERATIONS / 2; i++) {
+            mStatements.sell(1, 1);
+        }
+        long after = System.nanoTime() - start;
+
+        log("sale", before * 2, after * 2);
+        assertEquals(0, mStatements.queryQuantity(1));
+    }
+
+    @Test
+    public void updateById() {
+        long start = System.nanoTime();
+        for (int i = 0; i < OPERATIONS; i++) {
+            mDatabase.update(ItemEntry.TABLE_NAME, createItem(i), ItemEntry._ID + "=?",
+                    new String[] { String.valueOf(i % ITEM_COUNT + 1) });
+        }
+        long before = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < OPERATIONS; i++) {
+            mStatements.updateById(i % ITEM_COUNT + 1, createItem(i));
+        }
+        long after = System.nanoTime() - start;
+
+        log("update by id", before, after);
+    }
+
+    @Test
+    public void insert() {
+        long start = System.nanoTime();
+        mDatabase.beginTransaction();
+        try {
+            for (int i = 0; i < OPERATIONS; i++) {
+                mDatabase.insertOrThrow(ItemEntry.TABLE_NAME, null, createItem(i));
+            }
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+        long before = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        mDatabase.beginTransaction();
+        try {
+            for (int i = 0; i < OPERATIONS; i++) {
+                mStatements.insert(createItem(i));
+            }
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+        long after = System.nanoTime() - start;
+
+        log("insert", before, after);
+        assertEquals(ITEM_COUNT + 2 * OPERATIONS,
+                DatabaseUtils.queryNumEntries(mDatabase, ItemEntry.TABLE_NAME));
+    }
+
+    private static ContentValues createItem(int i) {
+        ContentValues values = new ContentValues();
+        values.put(ItemEntry.COLUMN_ITEM_NAME, "Item " + i);
+        values.put(ItemEntry.COLUMN_ITEM_SUPPLIER, "Supplier " + (i % 10));
+        values.put(ItemEntry.COLUMN_ITEM_PRICE, i % 100);
+        values.put(ItemEntry.COLUMN_ITEM_QUANTITY, i % 20);
+        return values;
+    }
+
+    private static void log(String operation, long beforeNanos, long afterNanos) {
+        Log.i(LOG, String.format("%s: %.1f us/op before, %.1f us/op precompiled (%.2fx)",
+                operation, beforeNanos / 1000.0 / OPERATIONS, afterNanos / 1000.0 / OPERATIONS,
+                (double) beforeNanos / afterNanos));
+    }
+}
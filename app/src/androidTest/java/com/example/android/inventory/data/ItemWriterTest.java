@@ -0,0 +1,103 @@
+package com.example.android.inventory.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.inventory.data.ItemContract.ItemEntry;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Instrumentation test for {@link ItemWriter}: writes to the same item are applied in the order
+ * they were made, and refused writes are reported to their callback.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ItemWriterTest {
+
+    /** Number of updates queued one after the other */
+    private static final int UPDATES = 50;
+
+    private static final long TIMEOUT_SECONDS = 10;
+
+    @Rule
+    public final ItemProviderRule mProvider = new ItemProviderRule();
+
+    private ContentResolver mResolver;
+    private ItemWriter mWriter;
+
+    @Before
+    public void setUp() {
+        mResolver = mProvider.getResolver();
+        mWriter = new ItemWriter(mProvider.getContext());
+    }
+
+    @Test
+    public void updates_areAppliedInOrder() throws InterruptedException {
+        Uri uri = mResolver.insert(ItemEntry.CONTENT_URI, createItem(0));
+        assertNotNull(uri);
+
+        ResultLatch last = new ResultLatch();
+        for (int quantity = 1; quantity <= UPDATES; quantity++) {
+            ContentValues values = new ContentValues();
+            values.put(ItemEntry.COLUMN_ITEM_QUANTITY, quantity);
+            mWriter.update(uri, values, quantity == UPDATES ? last : null);
+        }
+
+        assertTrue(last.await());
+        assertTrue(last.mSucceeded);
+        assertEquals(UPDATES, mProvider.queryQuantity(ContentUris.parseId(uri)));
+    }
+
+    @Test
+    public void refusedWrite_isReported() throws InterruptedException {
+        ContentValues values = createItem(0);
+        values.put(ItemEntry.COLUMN_ITEM_PRICE, -1);
+        ResultLatch result = new ResultLatch();
+        mWriter.insert(values, result);
+
+        assertTrue(result.await());
+        assertFalse(result.mSucceeded);
+        assertNotNull(result.mErrorMessage);
+    }
+
+    private ContentValues createItem(int quantity) {
+        ContentValues values = new ContentValues();
+        values.put(ItemEntry.COLUMN_ITEM_NAME, "Writer test item");
+        values.put(ItemEntry.COLUMN_ITEM_SUPPLIER, "Acme");
+        values.put(ItemEntry.COLUMN_ITEM_PRICE, 1);
+        values.put(ItemEntry.COLUMN_ITEM_QUANTITY, quantity);
+        return values;
+    }
+
+    /** Waits for the result of a write */
+    private static class ResultLatch implements ItemWriter.Callback {
+        private final CountDownLatch mLatch = new CountDownLatch(1);
+        private volatile boolean mSucceeded;
+        private volatile String mErrorMessage;
+
+        @Override
+        public void onWriteFinished(boolean succeeded, String errorMessage) {
+            mSucceeded = succeeded;
+            mErrorMessage = errorMessage;
+            mLatch.countDown();
+        }
+
+        boolean await() throws InterruptedException {
+            return mLatch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.example.android.inventory.data;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Instrumentation test for {@link SaleBuffer}: taps of the sale button for the same item are
+ * written as a single sale, and the quantity shown until then takes them off. Taps beyond the
+ * stock left sell what there is.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SaleBufferTest {
+
+    private static final int STOCK = 20;
+    private static final int TAPS = 12;
+
+    private static final long TIMEOUT_SECONDS = 10;
+
+    @Rule
+    public final ItemProviderRule mProvider = new ItemProviderRule();
+
+    private SaleBuffer mBuffer;
+
+    @Before
+    public void setUp() {
+        mBuffer = new SaleBuffer(new ItemWriter(mProvider.getContext()));
+    }
+
+    @Test
+    public void taps_areWrittenAsOneSale() throws InterruptedException {
+        final long id = mProvider.insertItem("Hammer", "Acme", 1, STOCK);
+        final CountDownLatch written = new CountDownLatch(1);
+        final int[] sold = new int[1];
+        final int[] pending = new int[1];
+        final long[] writesSaved = new long[2];
+
+        // The buffer is only used from the main thread
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mBuffer.setListener(new SaleBuffer.Listener() {
+                    @Override
+                    public void onSalesWritten(long itemId, int count, int soldCount) {
+                        sold[0] = soldCount;
+                        written.countDown();
+                    }
+                });
+                writesSaved[0] = mBuffer.getWritesSaved();
+                for (int i = 0; i < TAPS; i++) {
+                    mBuffer.sell(id);
+                }
+                pending[0] = mBuffer.getPendingCount(id);
+                mBuffer.flush();
+                writesSaved[1] = mBuffer.getWritesSaved();
+            }
+        });
+
+        assertEquals(TAPS, pending[0]);
+        assertEquals(TAPS - 1, writesSaved[1] - writesSaved[0]);
+        assertTrue(written.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(TAPS, sold[0]);
+        assertEquals(STOCK - TAPS, mProvider.queryQuantity(id));
+
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                pending[0] = mBuffer.getPendingCount(id);
+            }
+        });
+        assertEquals(0, pending[0]);
+    }
+
+    @Test
+    public void tapsBeyondStock_sellWhatIsLeft() throws InterruptedException {
+        final long id = mProvider.insertItem("Hammer", "Acme", 1, STOCK);
+        final CountDownLatch written = new CountDownLatch(1);
+        final int[] counts = new int[2];
+
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mBuffer.setListener(new SaleBuffer.Listener() {
+                    @Override
+                    public void onSalesWritten(long itemId, int count, int soldCount) {
+                        counts[0] = count;
+                        counts[1] = soldCount;
+                        written.countDown();
+                    }
+                });
+                for (int i = 0; i < STOCK + TAPS; i++) {
+                    mBuffer.sell(id);
+                }
+                mBuffer.flush();
+            }
+        });
+
+        assertTrue(written.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(STOCK + TAPS, counts[0]);
+        assertEquals(STOCK, counts[1]);
+        assertEquals(0, mProvider.queryQuantity(id));
+    }
+}
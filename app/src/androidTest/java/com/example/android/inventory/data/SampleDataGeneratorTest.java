@@ -0,0 +1,49 @@
+package com.example.android.inventory.data;
+
+import android.content.ContentValues;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.inventory.data.ItemContract.ItemEntry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test that {@link SampleDataGenerator} makes the same items for the same seed, and gives the
+ * share of them asked for an image.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SampleDataGeneratorTest {
+
+    private static final int ITEMS = 500;
+
+    @Test
+    public void sameSeed_makesSameItems() {
+        SampleDataGenerator first = new SampleDataGenerator(7);
+        SampleDataGenerator second = new SampleDataGenerator(7);
+        for (int i = 0; i < ITEMS; i++) {
+            assertEquals(first.nextItem(), second.nextItem());
+        }
+        assertNotEquals(new SampleDataGenerator(7).nextItem(),
+                new SampleDataGenerator(8).nextItem());
+    }
+
+    @Test
+    public void imageShare_isRoughlyKept() {
+        SampleDataGenerator generator = new SampleDataGenerator(7).setImages(0.5, 64, 48, 2);
+        int withImage = 0;
+        for (int i = 0; i < ITEMS; i++) {
+            ContentValues values = generator.nextItem();
+            if (values.containsKey(ItemEntry.COLUMN_ITEM_IMAGE)) {
+                assertTrue(values.getAsByteArray(ItemEntry.COLUMN_ITEM_THUMBNAIL).length > 0);
+                withImage++;
+            }
+        }
+        assertTrue("Items with an image: " + withImage, withImage > ITEMS / 3
+                && withImage < ITEMS * 2 / 3);
+    }
+}
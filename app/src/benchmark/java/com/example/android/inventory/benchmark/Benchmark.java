@@ -0,0 +1,100 @@
+package com.example.android.inventory.benchmark;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+
+/**
+ * Times an operation over many iterations, each timed on its own, after a few untimed ones to
+ * warm up the JIT and the caches. The whole distribution is kept, so a regression in the slow
+ * calls shows even when the median hasn't moved.
+ *
+ * Shared by the JVM benchmarks in test and the device ones in androidTest.
+ */
+
+public final class Benchmark {
+
+    /** Something to time */
+    public interface Operation {
+        /**
+         * Run the operation once
+         * @param iteration the number of the run, from 0, counting the warm up runs. Lets each
+         *                  run work on a different row, so they don't all hit the same page
+         */
+        void run(int iteration) throws Exception;
+    }
+
+    private Benchmark() {
+    }
+
+    /**
+     * Run the operation warmup times untimed, and then iterations times timed
+     * @param name name of the operation in the results
+     */
+    public static Result measure(String name, int warmup, int iterations, Operation operation)
+            throws Exception {
+        for (int i = 0; i < warmup; i++) {
+            operation.run(i);
+        }
+        long[] nanos = new long[iterations];
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            operation.run(warmup + i);
+            nanos[i] = System.nanoTime() - start;
+        }
+        return new Result(name, nanos);
+    }
+
+    /** The times an operation took */
+    public static final class Result {
+        private final String mName;
+        /** Time of each run, in nanoseconds, sorted */
+        private final long[] mNanos;
+
+        Result(String name, long[] nanos) {
+            mName = name;
+            mNanos = nanos.clone();
+            Arrays.sort(mNanos);
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public long getMedianNanos() {
+            return getPercentile(50);
+        }
+
+        /** @return the time that the given percent of the runs took at most */
+        public long getPercentile(int percent) {
+            int index = (int) Math.ceil(mNanos.length * percent / 100.0) - 1;
+            return mNanos[Math.max(0, Math.min(index, mNanos.length - 1))];
+        }
+
+        public long getMeanNanos() {
+            long total = 0;
+            for (long nanos : mNanos) {
+                total += nanos;
+            }
+            return total / mNanos.length;
+        }
+
+        JSONObject toJson() throws JSONException {
+            return new JSONObject()
+                    .put("name", mName)
+                    .put("iterations", mNanos.length)
+                    .put("min_ns", mNanos[0])
+                    .put("median_ns", getMedianNanos())
+                    .put("p90_ns", getPercentile(90))
+                    .put("max_ns", mNanos[mNanos.length - 1])
+                    .put("mean_ns", getMeanNanos());
+        }
+
+        @Override
+        public String toString() {
+            return mName + ": median " + getMedianNanos() / 1000 + " us, p90 "
+                    + getPercentile(90) / 1000 + " us";
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.example.android.inventory.benchmark;
+
+import android.os.Build;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * Collects the results of a benchmark class and writes them to a JSON file, named after the
+ * benchmark, so runs on different commits can be compared by a script:
+ *
+ * { "benchmark": "ItemProviderBenchmark", "commit": "0c54840", "timestamp": 1792345678901,
+ *   "environment": { "device": "Pixel", "sdk": 25, "vm": "ART", "vm_version": "2.1.0" },
+ *   "results": [ { "name": "insert", "params": { "rows": 1000 }, "iterations": 200,
+ *                  "min_ns": ..., "median_ns": ..., "p90_ns": ..., "max_ns": ...,
+ *                  "mean_ns": ... } ] }
+ *
+ * Times are only comparable between runs on the same machine, or the same device.
+ */
+
+public final class BenchmarkReport {
+
+    private static final String LOG = BenchmarkReport.class.getSimpleName();
+
+    private final String mName;
+    private final String mCommit;
+    private final JSONArray mResults = new JSONArray();
+
+    /**
+     * @param name name of the benchmark, and of its file
+     * @param commit the commit being measured, or null if not known
+     */
+    public BenchmarkReport(String name, String commit) {
+        mName = name;
+        mCommit = commit;
+    }
+
+    /**
+     * Add a result
+     * @param params names and values of the parameters it was measured with, in turn,
+     *               e.g. "rows", 1000
+     */
+    public void add(Benchmark.Result result, Object... params) {
+        Log.i(LOG, mName + " " + result);
+        try {
+            JSONObject paramsJson = new JSONObject();
+            for (int i = 0; i + 1 < params.length; i += 2) {
+                paramsJson.put(String.valueOf(params[i]), params[i + 1]);
+            }
+            mResults.put(result.toJson().put("params", paramsJson));
+        } catch (JSONException e) {
+            throw new IllegalArgumentException("Invalid result " + result, e);
+        }
+    }
+
+    /**
+     * Write the results so far to the directory, replacing any earlier file of the benchmark
+     * @return the file written
+     */
+    public File writeTo(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        String json;
+        try {
+            JSONObject environment = new JSONObject()
+                    .put("device", Build.MODEL)
+                    .put("sdk", Build.VERSION.SDK_INT)
+                    .put("vm", System.getProperty("java.vm.name"))
+                    .put("vm_version", System.getProperty("java.vm.version"));
+            JSONObject report = new JSONObject()
+                    .put("benchmark", mName)
+                    .put("timestamp", System.currentTimeMillis())
+                    .put("environment", environment)
+                    .put("results", mResults);
+            if (mCommit != null) {
+                report.put("commit", mCommit);
+            }
+            json = report.toString(2);
+        } catch (JSONException e) {
+            throw new IOException("Unable to write the results of " + mName, e);
+        }
+        File file = new File(directory, mName + ".json");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file),
+                Charset.forName("UTF-8"));
+        try {
+            writer.write(json);
+        } finally {
+            writer.close();
+        }
+        Log.i(LOG, "Wrote " + file);
+        return file;
+    }
+}
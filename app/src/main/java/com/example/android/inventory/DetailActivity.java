@@ -1,16 +1,17 @@
 package com.example.android.inventory;
 
 import android.app.LoaderManager;
+import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.Context;
 import android.content.CursorLoader;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.Loader;
 import android.database.Cursor;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.drawable.BitmapDrawable;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.v4.app.NavUtils;
 import android.support.v7.app.AlertDialog;
@@ -24,12 +25,17 @@ import android.view.View;
 import android.widget.Button;
 import android.widget.EditText;
 import android.widget.ImageView;
+import android.widget.ProgressBar;
 import android.widget.Toast;
 
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.request.RequestOptions;
+import com.bumptech.glide.signature.ObjectKey;
 import com.example.android.inventory.data.ItemContract.ItemEntry;
+import com.example.android.inventory.data.ItemWriter;
 import com.example.android.inventory.data.Utils;
 
-import java.io.InputStream;
+import java.io.IOException;
 
 /**
  * Allows user to create a new item or edit an existing one.
@@ -43,10 +49,24 @@ public class DetailActivity extends AppCompatActivity implements LoaderManager.L
     private EditText mSupplierEditText;
     private EditText mPriceEditText;
     private EditText mQuantityEditText;
+    private EditText mReorderLevelEditText;
     private Button mMinusButton;
     private Button mPlusButton;
     private Button mImageButton;
     private ImageView mImageView;
+    private ProgressBar mImageProgressBar;
+
+    /** The picked image and its thumbnail as JPEG bytes, ready to save. Null until one is picked */
+    private byte[] mPickedImage;
+    private byte[] mPickedThumbnail;
+
+    /** Options of loading the saved image, which show the placeholder if it has none */
+    private final RequestOptions mImageOptions = new RequestOptions()
+            .fallback(R.drawable.placeholder_thumbnail)
+            .error(R.drawable.placeholder_thumbnail);
+
+    /** Task importing the image just picked, or null if there is none */
+    private ImageImportTask mImageImportTask;
 
     /** request code for app to identify the image picked via use of intent */
     public static final int PICK_IMAGE = 100;
@@ -89,10 +109,12 @@ public class DetailActivity extends AppCompatActivity implements LoaderManager.L
         mSupplierEditText = (EditText) findViewById(R.id.edit_supplier);
         mPriceEditText = (EditText) findViewById(R.id.edit_price);
         mQuantityEditText = (EditText) findViewById(R.id.edit_quantity);
+        mReorderLevelEditText = (EditText) findViewById(R.id.edit_reorder_level);
         mMinusButton = (Button) findViewById(R.id.button_minus);
         mPlusButton = (Button) findViewById(R.id.button_plus);
         mImageButton = (Button) findViewById(R.id.edit_image_button);
         mImageView = (ImageView) findViewById(R.id.edit_image_view);
+        mImageProgressBar = (ProgressBar) findViewById(R.id.edit_image_progress);
 
         // Set actions for each button
         mMinusButton.setOnClickListener(minusListener);
@@ -115,6 +137,7 @@ public class DetailActivity extends AppCompatActivity implements LoaderManager.L
         mSupplierEditText.setOnTouchListener(mTouchListener);
         mPriceEditText.setOnTouchListener(mTouchListener);
         mQuantityEditText.setOnTouchListener(mTouchListener);
+        mReorderLevelEditText.setOnTouchListener(mTouchListener);
         mMinusButton.setOnTouchListener(mTouchListener);
         mPlusButton.setOnTouchListener(mTouchListener);
         mImageButton.setOnTouchListener(mTouchListener);
@@ -157,29 +180,33 @@ public class DetailActivity extends AppCompatActivity implements LoaderManager.L
     };
 
     /**
-     * When intent has been sent to pick an image, if request is OK, select an image from phone
-     * to be viewed below the button.
+     * When intent has been sent to pick an image, if request is OK, import the image from phone
+     * in the background, to be viewed below the button once it is ready.
      */
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         // Check which request code we're responding to and Make sure the request was successful
-        if (requestCode == PICK_IMAGE && resultCode == RESULT_OK) {
-            // openInputStream() needs FileNotFoundException handled, therefore in try/catch block
-            try {
-                Uri imageUri = data.getData();
-                InputStream imageStream = getContentResolver().openInputStream(imageUri);
-                Bitmap selectedImage = BitmapFactory.decodeStream(imageStream);
-                mImageView.setImageBitmap(selectedImage);
-                imageStream.close();
-            } catch (Exception e) {
-                e.printStackTrace();
-                Toast.makeText(this, R.string.image_select_unsuccessful, Toast.LENGTH_SHORT).show();
-            }
+        if (requestCode == PICK_IMAGE && resultCode == RESULT_OK && data.getData() != null) {
+            mImageImportTask = new ImageImportTask();
+            mImageImportTask.execute(data.getData());
+            // Show the import is in progress, and don't let another image be picked meanwhile
+            mImageProgressBar.setVisibility(View.VISIBLE);
+            mImageButton.setEnabled(false);
         } else {
             Toast.makeText(this, R.string.image_not_picked, Toast.LENGTH_SHORT).show();
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // The imported image would have nowhere to go
+        if (mImageImportTask != null) {
+            mImageImportTask.cancel(true);
+            mImageImportTask = null;
+        }
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         // Inflate the menu options from the res/menu/menu_editor.xml file.
@@ -209,6 +236,11 @@ public class DetailActivity extends AppCompatActivity implements LoaderManager.L
         switch (item.getItemId()) {
             // Respond to a click on the "Save" menu option
             case R.id.action_save:
+                // The picked image has to be ready before the item can be saved with it
+                if (mImageImportTask != null) {
+                    Toast.makeText(this, R.string.image_still_importing, Toast.LENGTH_SHORT).show();
+                    return true;
+                }
                 // Save pet to database and then exit activity
                 saveItem();
                 finish();
@@ -253,7 +285,7 @@ public class DetailActivity extends AppCompatActivity implements LoaderManager.L
         String supplierString = mSupplierEditText.getText().toString().trim();
         String priceString = mPriceEditText.getText().toString().trim();
         String quantityString = mQuantityEditText.getText().toString().trim();
-        BitmapDrawable imageDrawable = (BitmapDrawable) mImageView.getDrawable();
+        String reorderLevelString = mReorderLevelEditText.getText().toString().trim();
 
         // price is NOT NULL in database. price needs data
         if (TextUtils.isEmpty(priceString)) {
@@ -269,42 +301,34 @@ public class DetailActivity extends AppCompatActivity implements LoaderManager.L
             quantityAsInt = Integer.parseInt(quantityString);
         }
 
-        // if an image is selected, convert it to a byte array and also store into content values,
-        // otherwise use placeholder image
-        byte[] imageByteArray;
-        if (imageDrawable != null) {
-            Bitmap selectedImage = imageDrawable.getBitmap();
-            imageByteArray = Utils.convertBitmapToByteArray(selectedImage);
-        } else {
-            Bitmap placeholderImage = BitmapFactory.decodeResource(this.getResources(),
-                    R.drawable.placeholder_thumbnail);
-            imageByteArray = Utils.convertBitmapToByteArray(placeholderImage);
-        }
-
         ContentValues values = new ContentValues();
         values.put(ItemEntry.COLUMN_ITEM_NAME, nameString);
         values.put(ItemEntry.COLUMN_ITEM_SUPPLIER, supplierString);
         values.put(ItemEntry.COLUMN_ITEM_PRICE, priceAsInt);
         values.put(ItemEntry.COLUMN_ITEM_QUANTITY, quantityAsInt);
-        values.put(ItemEntry.COLUMN_ITEM_IMAGE, imageByteArray);
+        // If no reorder level is given, the item keeps the one it has, or gets the default
+        if (!TextUtils.isEmpty(reorderLevelString)) {
+            values.put(ItemEntry.COLUMN_ITEM_REORDER_LEVEL, Integer.parseInt(reorderLevelString));
+        }
+        // Only send the image if one was picked, so an unchanged image isn't encoded and saved
+        // again. Items without an image are left without one: the placeholder is shown for them,
+        // rather than a copy of it being saved for each item. The image and the small thumbnail
+        // the list shows were already encoded in the background when the image was picked
+        if (mPickedImage != null) {
+            values.put(ItemEntry.COLUMN_ITEM_IMAGE, mPickedImage);
+            values.put(ItemEntry.COLUMN_ITEM_THUMBNAIL, mPickedThumbnail);
+        }
 
-        // Insert or update to database depending on whether creating or updating item
+        // Insert or update to database depending on whether creating or updating item. The write
+        // happens in the background, so the editor can close straight away, and the result is
+        // toasted once it is done
+        ItemWriter writer = ItemWriter.getInstance(this);
         if (mCurrentItemUri == null) {
-            Uri newUri = getContentResolver().insert(ItemEntry.CONTENT_URI, values);
-            // Toast depending on whether insert successful
-            if (newUri == null) {
-                Toast.makeText(this, R.string.editor_item_insert_unsuccessful, Toast.LENGTH_SHORT).show();
-            } else {
-                Toast.makeText(this, R.string.editor_item_insert_successful, Toast.LENGTH_SHORT).show();
-            }
+            writer.insert(values, new WriteResultToast(this,
+                    R.string.editor_item_insert_successful, R.string.editor_item_insert_unsuccessful));
         } else {
-            int rowsUpdated = getContentResolver().update(mCurrentItemUri, values, null, null);
-
-            if (rowsUpdated == 0) {
-                Toast.makeText(this, R.string.editor_item_update_unsuccessful, Toast.LENGTH_SHORT).show();
-            } else {
-                Toast.makeText(this, R.string.editor_item_update_successful, Toast.LENGTH_SHORT).show();
-            }
+            writer.update(mCurrentItemUri, values, new WriteResultToast(this,
+                    R.string.editor_item_update_successful, R.string.editor_item_update_unsuccessful));
         }
     }
 
@@ -312,7 +336,8 @@ public class DetailActivity extends AppCompatActivity implements LoaderManager.L
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
         String[] projection = {ItemEntry._ID, ItemEntry.COLUMN_ITEM_NAME,
                 ItemEntry.COLUMN_ITEM_SUPPLIER, ItemEntry.COLUMN_ITEM_PRICE,
-                ItemEntry.COLUMN_ITEM_QUANTITY, ItemEntry.COLUMN_ITEM_IMAGE };
+                ItemEntry.COLUMN_ITEM_QUANTITY, ItemEntry.COLUMN_ITEM_REORDER_LEVEL,
+                ItemEntry.COLUMN_ITEM_IMAGE_REF };
 
         switch (id) {
             case EXISTING_ITEM_LOADER:
@@ -341,27 +366,35 @@ public class DetailActivity extends AppCompatActivity implements LoaderManager.L
             int supplierColumnIndex = cursor.getColumnIndex(ItemEntry.COLUMN_ITEM_SUPPLIER);
             int priceColumnIndex = cursor.getColumnIndex(ItemEntry.COLUMN_ITEM_PRICE);
             int quantityColumnIndex = cursor.getColumnIndex(ItemEntry.COLUMN_ITEM_QUANTITY);
-            int imageColumnIndex = cursor.getColumnIndex(ItemEntry.COLUMN_ITEM_IMAGE);
+            int reorderLevelColumnIndex =
+                    cursor.getColumnIndex(ItemEntry.COLUMN_ITEM_REORDER_LEVEL);
+            int imageColumnIndex = cursor.getColumnIndex(ItemEntry.COLUMN_ITEM_IMAGE_REF);
 
             String name = cursor.getString(nameColumnIndex);
             String supplier = cursor.getString(supplierColumnIndex);
             Integer price = cursor.getInt(priceColumnIndex);
             Integer quantity = cursor.getInt(quantityColumnIndex);
-            byte[] imageByteArray = cursor.getBlob(imageColumnIndex);
+            Integer reorderLevel = cursor.getInt(reorderLevelColumnIndex);
+            String imageRef = cursor.getString(imageColumnIndex);
 
             // Set data into respective editing fields
             mNameEditText.setText(name);
             mSupplierEditText.setText(supplier);
             mPriceEditText.setText(String.valueOf(price));
             mQuantityEditText.setText(String.valueOf(quantity));
-
-            if (imageByteArray != null) {
-                Bitmap imageBitmap = Utils.convertByteArrayToBitmap(imageByteArray);
-                mImageView.setImageBitmap(imageBitmap);
-            } else {
-                Bitmap placeholderBitmap =  BitmapFactory.decodeResource(this.getResources(),
-                        R.drawable.placeholder_thumbnail);
-                mImageView.setImageBitmap(placeholderBitmap);
+            mReorderLevelEditText.setText(String.valueOf(reorderLevel));
+
+            // A picked image that hasn't been saved yet is kept over the one saved. The saved
+            // image is streamed from the provider and decoded by Glide off the main thread, at
+            // the size of the view. Its reference is the content hash, so a replaced image isn't
+            // served stale from the cache. Items without an image get the placeholder
+            if (mPickedImage == null && mImageImportTask == null) {
+                Glide.with(this)
+                        .load(imageRef == null ? null
+                                : ItemEntry.buildImageUri(ContentUris.parseId(mCurrentItemUri)))
+                        .apply(mImageOptions)
+                        .apply(RequestOptions.signatureOf(new ObjectKey(String.valueOf(imageRef))))
+                        .into(mImageView);
             }
         }
     }
@@ -373,6 +406,7 @@ public class DetailActivity extends AppCompatActivity implements LoaderManager.L
         mSupplierEditText.setText("");
         mPriceEditText.setText("");
         mQuantityEditText.setText("");
+        mReorderLevelEditText.setText("");
         mImageView.setImageDrawable(null);
     }
 
@@ -406,14 +440,8 @@ public class DetailActivity extends AppCompatActivity implements LoaderManager.L
     private void deleteItem() {
         // Only perform the delete if this is an existing item
         if (mCurrentItemUri != null) {
-            int rowsDeleted = getContentResolver().delete(mCurrentItemUri, null, null);
-            if (rowsDeleted == 0) {
-                Toast.makeText(this, getString(R.string.editor_delete_item_failed),
-                        Toast.LENGTH_SHORT).show();
-            } else {
-                Toast.makeText(this, getString(R.string.editor_delete_item_successful),
-                        Toast.LENGTH_SHORT).show();
-            }
+            ItemWriter.getInstance(this).delete(mCurrentItemUri, new WriteResultToast(this,
+                    R.string.editor_delete_item_successful, R.string.editor_delete_item_failed));
         }
         finish();
     }
@@ -461,4 +489,84 @@ public class DetailActivity extends AppCompatActivity implements LoaderManager.L
         // Show dialog that there are unsaved changes
         showUnsavedChangesDialog(discardButtonClickListener);
     }
+
+    /**
+     * Imports a picked image on a background thread: it is decoded scaled down to
+     * {@link Utils#IMAGE_MAX_SIZE} and turned the right way up, then it is encoded at JPEG
+     * quality 90 and its thumbnail at quality 80, ready to be saved. A photo straight from the
+     * camera would otherwise take a few seconds and tens of MB to decode on the main thread
+     */
+    private class ImageImportTask extends AsyncTask<Uri, Void, Bitmap> {
+        private byte[] mImageBytes;
+        private byte[] mThumbnailBytes;
+
+        @Override
+        protected Bitmap doInBackground(Uri... params) {
+            Bitmap image;
+            try {
+                image = Utils.decodeSampledBitmap(getContentResolver(), params[0],
+                        Utils.IMAGE_MAX_SIZE);
+            } catch (IOException | SecurityException e) {
+                Log.e(LOG, "Failed to import image " + params[0], e);
+                return null;
+            }
+            if (isCancelled()) {
+                image.recycle();
+                return null;
+            }
+            mImageBytes = Utils.convertBitmapToByteArray(image);
+            mThumbnailBytes = Utils.convertBitmapToThumbnailByteArray(image);
+            return image;
+        }
+
+        @Override
+        protected void onPostExecute(Bitmap image) {
+            mImageImportTask = null;
+            mImageProgressBar.setVisibility(View.GONE);
+            mImageButton.setEnabled(true);
+            if (image == null) {
+                Toast.makeText(DetailActivity.this, R.string.image_select_unsuccessful,
+                        Toast.LENGTH_SHORT).show();
+                return;
+            }
+            // Stop the saved image still loading from replacing the one picked
+            Glide.with(DetailActivity.this).clear(mImageView);
+            mImageView.setImageBitmap(image);
+            mPickedImage = mImageBytes;
+            mPickedThumbnail = mThumbnailBytes;
+        }
+
+        @Override
+        protected void onCancelled(Bitmap image) {
+            if (image != null) {
+                image.recycle();
+            }
+        }
+    }
+
+    /**
+     * Toasts the result of a write once it is done. It only holds the application context, since
+     * the editor has usually closed by then
+     */
+    private static class WriteResultToast implements ItemWriter.Callback {
+        private final Context mContext;
+        private final int mSucceededMessage;
+        private final int mFailedMessage;
+
+        WriteResultToast(Context context, int succeededMessage, int failedMessage) {
+            mContext = context.getApplicationContext();
+            mSucceededMessage = succeededMessage;
+            mFailedMessage = failedMessage;
+        }
+
+        @Override
+        public void onWriteFinished(boolean succeeded, String errorMessage) {
+            if (errorMessage != null) {
+                Toast.makeText(mContext, errorMessage, Toast.LENGTH_SHORT).show();
+            } else {
+                Toast.makeText(mContext, succeeded ? mSucceededMessage : mFailedMessage,
+                        Toast.LENGTH_SHORT).show();
+            }
+        }
+    }
 }
@@ -1,27 +1,54 @@
 package com.example.android.inventory;
 
 import android.app.LoaderManager;
+import android.app.ProgressDialog;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.Context;
 import android.content.CursorLoader;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.Loader;
+import android.content.SharedPreferences;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.design.widget.FloatingActionButton;
+import android.support.v4.os.TraceCompat;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.DividerItemDecoration;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.SearchView;
+import android.text.TextUtils;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
-import android.widget.AdapterView;
-import android.widget.ListView;
+import android.view.ViewTreeObserver;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import com.example.android.inventory.data.ItemContract.ItemEntry;
+import com.example.android.inventory.data.ItemContract.SummaryEntry;
+import com.example.android.inventory.data.ItemContract.SupplierEntry;
+import com.example.android.inventory.data.ItemCsv;
+import com.example.android.inventory.data.ItemSortOrder;
+import com.example.android.inventory.data.SaleBuffer;
+import com.example.android.inventory.data.SampleDataGenerator;
+import com.example.android.inventory.data.Utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 public class InventoryActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<Cursor> {
 
@@ -29,14 +56,146 @@ public class InventoryActivity extends AppCompatActivity implements LoaderManage
     public static final String LOG = InventoryActivity.class.getSimpleName();
 
     private static final int ITEM_LOADER = 0;
+    private static final int SUMMARY_LOADER = 1;
+
+    /** Number of items loaded at a time as the user scrolls down the list */
+    private static final int PAGE_SIZE = 50;
+
+    /** Start loading the next page when the user scrolls this close to the end of the list */
+    private static final int PREFETCH_DISTANCE = PAGE_SIZE / 2;
+
+    /** Maximum number of search results shown */
+    private static final int SEARCH_LIMIT = 100;
+
+    /** Request codes of the file pickers for importing and exporting CSV */
+    private static final int PICK_IMPORT_FILE = 1;
+    private static final int PICK_EXPORT_FILE = 2;
+
+    /**
+     * Preferences holding the file of the last import that didn't finish, and how many of its
+     * records were written, so importing it again carries on from there
+     */
+    private static final String PREFS_CSV_IMPORT = "csv_import";
+    private static final String PREF_IMPORT_URI = "uri";
+    private static final String PREF_IMPORT_POSITION = "position";
+
+    /**
+     * Seed of the sample data of the debug menu, so every run makes the same catalog. A fifth of
+     * the items have one of a few images the size of a saved photo
+     */
+    private static final long SAMPLE_DATA_SEED = 42;
+    private static final int[] SAMPLE_DATA_COUNTS = { 100, 1000, 10000, 100000 };
+    private static final double SAMPLE_IMAGE_SHARE = 0.2;
+    private static final int SAMPLE_DISTINCT_IMAGES = 16;
+
+    /** Preferences holding the order the list was last sorted in, so it opens the same way */
+    private static final String PREFS_LIST = "list";
+    private static final String PREF_SORT_ORDER = "sort_order";
+
+    /** The orders the user can sort the list in, and their names, as they are offered */
+    private static final ItemSortOrder[] SORT_ORDERS = { ItemSortOrder.ID, ItemSortOrder.NAME,
+            ItemSortOrder.SUPPLIER, ItemSortOrder.PRICE, ItemSortOrder.QUANTITY };
+    private static final int[] SORT_ORDER_NAMES = { R.string.sort_date_added, R.string.sort_name,
+            R.string.sort_supplier, R.string.sort_price, R.string.sort_quantity };
+
+    /** Keys of the search query and the filters in the saved instance state */
+    private static final String STATE_SEARCH_QUERY = "search_query";
+    private static final String STATE_FILTER_SUPPLIER = "filter_supplier";
+    private static final String STATE_IN_STOCK_ONLY = "in_stock_only";
+
+    /** Columns shown in the list */
+    private static final String[] LIST_PROJECTION = {
+            ItemEntry._ID,
+            ItemEntry.COLUMN_ITEM_NAME,
+            ItemEntry.COLUMN_ITEM_SUPPLIER,
+            ItemEntry.COLUMN_ITEM_PRICE,
+            ItemEntry.COLUMN_ITEM_QUANTITY,
+            ItemEntry.COLUMN_ITEM_THUMBNAIL_REF };
+
+    /** Columns of the summary shown above the list */
+    private static final String[] SUMMARY_PROJECTION = {
+            SummaryEntry.COLUMN_ITEM_COUNT,
+            SummaryEntry.COLUMN_TOTAL_UNITS,
+            SummaryEntry.COLUMN_TOTAL_VALUE,
+            SummaryEntry.COLUMN_OUT_OF_STOCK_COUNT,
+            SummaryEntry.COLUMN_LOW_STOCK_COUNT };
 
     private ItemCursorAdapter mCursorAdapter;
 
+    /** Totals over the whole inventory, whatever is being searched for */
+    private TextView mSummaryView;
+
+    /** Number of items loaded so far. When the data changes, the loader reloads this many */
+    private int mLoadedLimit = PAGE_SIZE;
+
+    /** True once the last page has been loaded */
+    private boolean mReachedEnd;
+
+    /** What the user is searching for, or null if the whole list is shown */
+    private String mSearchQuery;
+
+    /**
+     * The order items are listed in. Pages are fetched by keyset on this order, read from the
+     * index the provider keeps for it
+     */
+    private ItemSortOrder mSortOrder = ItemSortOrder.ID;
+
+    /**
+     * The supplier whose items are listed, empty for the items without one, or null for every
+     * item. Search looks through every item, whatever the filters
+     */
+    private String mFilterSupplier;
+
+    /** True if only the items with at least one unit in stock are listed */
+    private boolean mInStockOnly;
+
+    /** Task loading the next page, or null if no page is being loaded */
+    private PageLoadTask mPageLoadTask;
+
+    /**
+     * Task importing or exporting CSV, or generating sample data, or null if there is none, and
+     * the dialog showing it. The task is handed on to the next activity across a configuration
+     * change, see {@link CsvTask}
+     */
+    private CsvTask<?> mCsvTask;
+    private ProgressDialog mCsvProgressDialog;
+
+    /** Tasks re-fetching single rows that have changed */
+    private final List<RowRefreshTask> mRowRefreshTasks = new ArrayList<>();
+
+    /**
+     * The list's cursor is only notified of changes to many items at once. Changes to a single
+     * item are heard here instead, so only that row is re-fetched and rebound
+     */
+    private final ContentObserver mItemObserver = new ContentObserver(new Handler()) {
+        @Override
+        public void onChange(boolean selfChange) {
+            // Before API 16 there is no way to tell which item changed
+            reloadList();
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            String id = uri.getPathSegments().size() == 2 ? uri.getLastPathSegment() : null;
+            // Changes to many items are left to the loader, which requeries the list for them
+            if (id != null && TextUtils.isDigitsOnly(id)) {
+                refreshRow(Long.parseLong(id));
+            }
+        }
+    };
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_inventory);
 
+        if (savedInstanceState != null) {
+            mSearchQuery = savedInstanceState.getString(STATE_SEARCH_QUERY);
+            mFilterSupplier = savedInstanceState.getString(STATE_FILTER_SUPPLIER);
+            mInStockOnly = savedInstanceState.getBoolean(STATE_IN_STOCK_ONLY);
+        }
+        mSortOrder = readSortOrder();
+
         // Setup FAB to open DetailActivity
         FloatingActionButton fab = (FloatingActionButton) findViewById(R.id.fab);
         fab.setOnClickListener(new View.OnClickListener() {
@@ -47,15 +206,14 @@ public class InventoryActivity extends AppCompatActivity implements LoaderManage
             }
         });
 
-        ListView itemListView = (ListView) findViewById(R.id.list);
-        // Setup the adapter with a null cursor to begin with. If there is data in the database,
+        RecyclerView itemListView = (RecyclerView) findViewById(R.id.list);
+        itemListView.setLayoutManager(new LinearLayoutManager(this));
+        itemListView.addItemDecoration(new DividerItemDecoration(this, DividerItemDecoration.VERTICAL));
+        // Setup the adapter with no rows to begin with. If there is data in the database,
         // the CursorLoader will swap in with cursor containing the data
-        mCursorAdapter = new ItemCursorAdapter(this, null);
-        itemListView.setAdapter(mCursorAdapter);
-
-        itemListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+        mCursorAdapter = new ItemCursorAdapter(this, new ItemCursorAdapter.OnItemClickListener() {
             @Override
-            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+            public void onItemClick(long id) {
                 Intent intent = new Intent(InventoryActivity.this, DetailActivity.class);
                 // NOTE: id starts at 1 similar to _ID column in database table
                 // Form content URI that represents specific item that was clicked on
@@ -68,9 +226,37 @@ public class InventoryActivity extends AppCompatActivity implements LoaderManage
                 startActivity(intent);
             }
         });
+        itemListView.setAdapter(mCursorAdapter);
+        SaleBuffer.getInstance(this).setListener(mCursorAdapter);
+
+        // Load the next page when the user gets close to the end of the rows loaded so far
+        itemListView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                LinearLayoutManager layoutManager =
+                        (LinearLayoutManager) recyclerView.getLayoutManager();
+                int lastVisible = layoutManager.findLastVisibleItemPosition();
+                if (lastVisible >= mCursorAdapter.getItemCount() - PREFETCH_DISTANCE) {
+                    loadNextPage();
+                }
+            }
+        });
+
+        mSummaryView = (TextView) findViewById(R.id.summary);
 
         // Initialise the LoaderManager
         getLoaderManager().initLoader(ITEM_LOADER, null, this);
+        getLoaderManager().initLoader(SUMMARY_LOADER, null, this);
+
+        // Listen for changes to single items, i.e. content://com.example.android.inventory/items/#
+        getContentResolver().registerContentObserver(ItemEntry.CONTENT_URI, true, mItemObserver);
+
+        // A task started before a configuration change reports to this activity now
+        mCsvTask = (CsvTask<?>) getLastCustomNonConfigurationInstance();
+        if (mCsvTask != null) {
+            mCsvTask.attach(this);
+            showCsvProgress(mCsvTask.getMessage());
+        }
     }
 
     @Override
@@ -78,18 +264,180 @@ public class InventoryActivity extends AppCompatActivity implements LoaderManage
         // Inflate the menu options from the res/menu/menu_inventory.xml file
         // This adds menu items to the app bar
         getMenuInflater().inflate(R.menu.menu_inventory, menu);
+        // The document to export to can only be created from KitKat
+        menu.findItem(R.id.action_export_csv)
+                .setVisible(Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT);
+        menu.findItem(R.id.action_generate_sample_data).setVisible(BuildConfig.DEBUG);
+        menu.findItem(R.id.action_in_stock_only).setChecked(mInStockOnly);
+
+        // Search as the user types. The search is done by the provider's full-text index
+        MenuItem searchItem = menu.findItem(R.id.action_search);
+        final SearchView searchView = (SearchView) searchItem.getActionView();
+        searchView.setQueryHint(getString(R.string.search_hint));
+        if (mSearchQuery != null) {
+            String query = mSearchQuery;
+            searchItem.expandActionView();
+            searchView.setQuery(query, false);
+        }
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                // Results are already shown, so just hide the keyboard
+                searchView.clearFocus();
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                setSearchQuery(newText);
+                return true;
+            }
+        });
         return true;
     }
 
+    @Override
+    public Object onRetainCustomNonConfigurationInstance() {
+        return mCsvTask;
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putString(STATE_SEARCH_QUERY, mSearchQuery);
+        outState.putString(STATE_FILTER_SUPPLIER, mFilterSupplier);
+        outState.putBoolean(STATE_IN_STOCK_ONLY, mInStockOnly);
+    }
+
+    /**
+     * Show the items matching the query, or the whole list again
+     * @param query what the user has typed, empty or null to stop searching
+     */
+    private void setSearchQuery(String query) {
+        if (query != null) {
+            query = query.trim();
+            if (query.isEmpty()) {
+                query = null;
+            }
+        }
+        if (TextUtils.equals(query, mSearchQuery)) {
+            return;
+        }
+        mSearchQuery = query;
+        restartList();
+    }
+
+    /** Load the list again from its first page, since the items it shows have changed */
+    private void restartList() {
+        cancelPageLoad();
+        mLoadedLimit = PAGE_SIZE;
+        getLoaderManager().restartLoader(ITEM_LOADER, null, this);
+    }
+
+    /** @return the order the list was last sorted in, or the order items were added in */
+    private ItemSortOrder readSortOrder() {
+        String name = getSharedPreferences(PREFS_LIST, MODE_PRIVATE)
+                .getString(PREF_SORT_ORDER, null);
+        if (name != null) {
+            try {
+                return ItemSortOrder.valueOf(name);
+            } catch (IllegalArgumentException e) {
+                Log.w(LOG, "Unknown sort order " + name, e);
+            }
+        }
+        return ItemSortOrder.ID;
+    }
+
+    /** Sort the list in the given order, and keep it for the next time the app is opened */
+    private void setSortOrder(ItemSortOrder order) {
+        if (order == mSortOrder) {
+            return;
+        }
+        mSortOrder = order;
+        getSharedPreferences(PREFS_LIST, MODE_PRIVATE).edit()
+                .putString(PREF_SORT_ORDER, order.name())
+                .apply();
+        restartList();
+    }
+
+    /**
+     * Only list the items of a supplier
+     * @param supplier the supplier, empty for the items without one, or null to list every item
+     */
+    private void setFilterSupplier(String supplier) {
+        if (TextUtils.equals(supplier, mFilterSupplier)) {
+            return;
+        }
+        mFilterSupplier = supplier;
+        restartList();
+    }
+
+    private void setInStockOnly(boolean inStockOnly) {
+        if (inStockOnly == mInStockOnly) {
+            return;
+        }
+        mInStockOnly = inStockOnly;
+        restartList();
+    }
+
+    /** @return whether the list, as it is filtered, shows the item */
+    private boolean isListed(Item item) {
+        if (mSearchQuery != null) {
+            return true;
+        }
+        if (mFilterSupplier != null) {
+            String supplier = item.getSupplier() == null ? "" : item.getSupplier();
+            if (!mFilterSupplier.equalsIgnoreCase(supplier)) {
+                return false;
+            }
+        }
+        return !mInStockOnly || item.getQuantity() > 0;
+    }
+
+    /** @return the URI of a page of the list, as it is filtered */
+    private Uri buildPageUri(int limit, String[] afterKey) {
+        return ItemEntry.buildPageUri(limit, afterKey, mFilterSupplier, mInStockOnly);
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         // User clicked on a menu option in the app bar overflow menu
         switch (item.getItemId()) {
+            case R.id.action_sort:
+                showSortDialog();
+                return true;
+            case R.id.action_filter_supplier:
+                // The suppliers are listed once they have been read
+                new SupplierListTask().execute();
+                return true;
+            case R.id.action_in_stock_only:
+                item.setChecked(!item.isChecked());
+                setInStockOnly(item.isChecked());
+                return true;
+            case R.id.action_import_csv:
+                Intent importIntent = new Intent(Intent.ACTION_GET_CONTENT);
+                importIntent.setType("text/*");
+                importIntent.addCategory(Intent.CATEGORY_OPENABLE);
+                startActivityForResult(Intent.createChooser(importIntent,
+                        getString(R.string.action_import_csv)), PICK_IMPORT_FILE);
+                return true;
+            case R.id.action_export_csv:
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                    Intent exportIntent = new Intent(Intent.ACTION_CREATE_DOCUMENT);
+                    exportIntent.setType("text/csv");
+                    exportIntent.addCategory(Intent.CATEGORY_OPENABLE);
+                    exportIntent.putExtra(Intent.EXTRA_TITLE, "inventory.csv");
+                    startActivityForResult(exportIntent, PICK_EXPORT_FILE);
+                }
+                return true;
             // Respond to a click on the "Insert dummy data" menu option
             case R.id.action_insert_dummy_data:
                 insertDummyData();
                 getLoaderManager().initLoader(ITEM_LOADER, null, this);
                 return true;
+            case R.id.action_generate_sample_data:
+                showSampleDataDialog();
+                return true;
             // Respond to a click on the "Delete all entries" menu option
             case R.id.action_delete_all_entries:
                 // Pop up confirmation dialog for deleting all pets
@@ -99,6 +447,50 @@ public class InventoryActivity extends AppCompatActivity implements LoaderManage
         return super.onOptionsItemSelected(item);
     }
 
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (resultCode != RESULT_OK || data == null || data.getData() == null
+                || mCsvTask != null) {
+            return;
+        }
+        if (requestCode == PICK_IMPORT_FILE) {
+            startCsvTask(new ImportTask(this, data.getData()));
+        } else if (requestCode == PICK_EXPORT_FILE) {
+            startCsvTask(new ExportTask(this, data.getData()));
+        }
+    }
+
+    /**
+     * Run the import or export, showing its progress until it is done. It runs in parallel with
+     * the list's own tasks, so rows still refresh while it does
+     */
+    private void startCsvTask(CsvTask<?> task) {
+        mCsvTask = task;
+        task.attach(this);
+        showCsvProgress(task.getMessage());
+        task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /** Show the running task's progress, opening the dialog if it isn't showing yet */
+    private void showCsvProgress(String message) {
+        if (mCsvProgressDialog == null) {
+            mCsvProgressDialog = new ProgressDialog(this);
+            mCsvProgressDialog.setCancelable(false);
+            mCsvProgressDialog.show();
+        }
+        mCsvProgressDialog.setMessage(message);
+    }
+
+    private void onCsvTaskFinished(String message) {
+        mCsvTask = null;
+        if (mCsvProgressDialog != null) {
+            mCsvProgressDialog.dismiss();
+            mCsvProgressDialog = null;
+        }
+        Toast.makeText(this, message, Toast.LENGTH_LONG).show();
+    }
+
     public void insertDummyData() {
         // Placeholder data until content provider and then cursorAdapters are setup properly
         ContentValues values = new ContentValues();
@@ -110,6 +502,83 @@ public class InventoryActivity extends AppCompatActivity implements LoaderManage
         Uri newUri = getContentResolver().insert(ItemEntry.CONTENT_URI, values);
     }
 
+    /** Ask which order to sort the list in */
+    private void showSortDialog() {
+        String[] names = new String[SORT_ORDERS.length];
+        int checked = 0;
+        for (int i = 0; i < SORT_ORDERS.length; i++) {
+            names[i] = getString(SORT_ORDER_NAMES[i]);
+            if (SORT_ORDERS[i] == mSortOrder) {
+                checked = i;
+            }
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.action_sort)
+                .setSingleChoiceItems(names, checked, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        dialog.dismiss();
+                        setSortOrder(SORT_ORDERS[which]);
+                    }
+                })
+                .show();
+    }
+
+    /**
+     * Ask which supplier's items to list
+     * @param suppliers each supplier once, with its number of items
+     */
+    private void showSupplierDialog(Cursor suppliers) {
+        int nameColumn = suppliers.getColumnIndex(SupplierEntry.COLUMN_SUPPLIER_NAME);
+        int countColumn = suppliers.getColumnIndex(SupplierEntry.COLUMN_ITEM_COUNT);
+        // The first choice lists every item again
+        final String[] values = new String[suppliers.getCount() + 1];
+        String[] labels = new String[values.length];
+        labels[0] = getString(R.string.all_suppliers);
+        int checked = 0;
+        while (suppliers.moveToNext()) {
+            int i = suppliers.getPosition() + 1;
+            // Suppliers not yet made empty by the upgrade are null
+            values[i] = suppliers.isNull(nameColumn) ? "" : suppliers.getString(nameColumn);
+            String name = values[i].isEmpty() ? getString(R.string.unknown_supplier) : values[i];
+            labels[i] = getString(R.string.supplier_item_count, name,
+                    suppliers.getInt(countColumn));
+            if (values[i].equalsIgnoreCase(mFilterSupplier)) {
+                checked = i;
+            }
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.action_filter_supplier)
+                .setSingleChoiceItems(labels, checked, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        dialog.dismiss();
+                        setFilterSupplier(values[which]);
+                    }
+                })
+                .show();
+    }
+
+    /** Ask how many sample items to generate, for load and scroll testing */
+    private void showSampleDataDialog() {
+        String[] counts = new String[SAMPLE_DATA_COUNTS.length];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = getString(R.string.sample_data_count, SAMPLE_DATA_COUNTS[i]);
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.action_generate_sample_data)
+                .setItems(counts, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        if (mCsvTask == null) {
+                            startCsvTask(new GenerateTask(InventoryActivity.this,
+                                    SAMPLE_DATA_COUNTS[which]));
+                        }
+                    }
+                })
+                .show();
+    }
+
     private void showDeleteAllConfirmationDialog() {
         // Create an AlertDialog.Builder. Set the message and click listeners
         // for the positive and negative buttons on the dialog.
@@ -142,18 +611,22 @@ public class InventoryActivity extends AppCompatActivity implements LoaderManage
 
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-        String[] projection = {
-                ItemEntry._ID,
-                ItemEntry.COLUMN_ITEM_NAME,
-                ItemEntry.COLUMN_ITEM_SUPPLIER,
-                ItemEntry.COLUMN_ITEM_PRICE,
-                ItemEntry.COLUMN_ITEM_QUANTITY,
-                ItemEntry.COLUMN_ITEM_IMAGE };
         // Takes action based on the ID of the loader that's being created
         switch (id) {
             case ITEM_LOADER:
-                // Returns a new CursorLoader
-                return new CursorLoader(this, ItemEntry.CONTENT_URI, projection, null, null, null);
+                if (mSearchQuery != null) {
+                    // Returns a new CursorLoader for the best matches, ordered by the provider
+                    return new CursorLoader(this,
+                            ItemEntry.buildSearchUri(mSearchQuery, SEARCH_LIMIT),
+                            LIST_PROJECTION, null, null, null);
+                }
+                // Returns a new CursorLoader for the pages loaded so far
+                return new CursorLoader(this, buildPageUri(mLoadedLimit, null),
+                        LIST_PROJECTION, null, null, mSortOrder.toSql());
+            case SUMMARY_LOADER:
+                // A single row kept up to date by the provider, so it is cheap to requery
+                return new CursorLoader(this, SummaryEntry.CONTENT_URI, SUMMARY_PROJECTION,
+                        null, null, null);
             default:
                 Log.i(LOG, "An invalid id was passed in for CursorLoader");
                 return null;
@@ -162,8 +635,69 @@ public class InventoryActivity extends AppCompatActivity implements LoaderManage
 
     @Override
     public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
-        // Swap the new cursor in
-        mCursorAdapter.swapCursor(data);
+        if (loader.getId() == SUMMARY_LOADER) {
+            bindSummary(data);
+            return;
+        }
+        // A page still loading was asked for after the rows the loader has just replaced
+        cancelPageLoad();
+        // If fewer rows came back than were asked for, there are no more pages.
+        // Search results aren't paged
+        mReachedEnd = mSearchQuery != null || data == null || data.getCount() < mLoadedLimit;
+        // Swap the new cursor in. Only the rows that differ from those already shown are rebound
+        TraceCompat.beginSection("InventoryActivity.swapCursor");
+        try {
+            mCursorAdapter.swapCursor(data);
+        } finally {
+            TraceCompat.endSection();
+        }
+        if (LaunchMilestones.reached(LaunchMilestones.FIRST_CURSOR)) {
+            reportFirstFrame();
+        }
+    }
+
+    /**
+     * Show the totals over the inventory. Sales still being added up in the {@link SaleBuffer}
+     * aren't counted until they are written
+     */
+    private void bindSummary(Cursor data) {
+        if (data == null || !data.moveToFirst()) {
+            mSummaryView.setVisibility(View.GONE);
+            return;
+        }
+        mSummaryView.setVisibility(View.VISIBLE);
+        mSummaryView.setText(getString(R.string.inventory_summary,
+                data.getInt(data.getColumnIndex(SummaryEntry.COLUMN_ITEM_COUNT)),
+                data.getInt(data.getColumnIndex(SummaryEntry.COLUMN_TOTAL_UNITS)),
+                data.getLong(data.getColumnIndex(SummaryEntry.COLUMN_TOTAL_VALUE)),
+                data.getInt(data.getColumnIndex(SummaryEntry.COLUMN_OUT_OF_STOCK_COUNT)),
+                data.getInt(data.getColumnIndex(SummaryEntry.COLUMN_LOW_STOCK_COUNT))));
+    }
+
+    /** Mark the first frame drawn with the items in it, the end of a cold start */
+    private void reportFirstFrame() {
+        final View itemListView = findViewById(R.id.list);
+        itemListView.getViewTreeObserver().addOnPreDrawListener(
+                new ViewTreeObserver.OnPreDrawListener() {
+                    @Override
+                    public boolean onPreDraw() {
+                        itemListView.getViewTreeObserver().removeOnPreDrawListener(this);
+                        // A section can't span from the cursor to the frame, as the frame's
+                        // own sections would end it. This one marks the frame in systrace,
+                        // inside its traversal, just before it is drawn
+                        TraceCompat.beginSection("InventoryActivity.firstFrame");
+                        try {
+                            LaunchMilestones.reached(LaunchMilestones.FIRST_FRAME);
+                            // Lets the system record the full launch time as well
+                            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                                reportFullyDrawn();
+                            }
+                        } finally {
+                            TraceCompat.endSection();
+                        }
+                        return true;
+                    }
+                });
     }
 
     @Override
@@ -171,6 +705,393 @@ public class InventoryActivity extends AppCompatActivity implements LoaderManage
         // This is called when the last Cursor provided to onLoadFinished()
         // above is about to be closed.  We need to make sure we are no
         // longer using it.
-        mCursorAdapter.swapCursor(null);
+        if (loader.getId() == ITEM_LOADER) {
+            mCursorAdapter.swapCursor(null);
+        }
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        // Write the sales still being added up now, since the process may be killed once the
+        // list is no longer in the foreground
+        SaleBuffer.getInstance(this).flush();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        SaleBuffer.getInstance(this).setListener(null);
+        getContentResolver().unregisterContentObserver(mItemObserver);
+        cancelPageLoad();
+        for (RowRefreshTask task : mRowRefreshTasks) {
+            task.cancel(false);
+        }
+        mRowRefreshTasks.clear();
+        if (mCsvTask != null) {
+            if (isChangingConfigurations()) {
+                // The next activity takes the task over, see onRetainCustomNonConfigurationInstance
+                mCsvTask.attach(null);
+            } else {
+                // An import stops after the chunk it is writing, and carries on when the file is
+                // imported again. Generating stops after its chunk too. An export finishes the
+                // file, rather than leave it cut short
+                mCsvTask.cancel(false);
+            }
+            mCsvTask = null;
+        }
+        if (mCsvProgressDialog != null) {
+            mCsvProgressDialog.dismiss();
+            mCsvProgressDialog = null;
+        }
+    }
+
+    /** Start loading the page after the last item shown, unless it is already loading */
+    private void loadNextPage() {
+        Item lastItem = mCursorAdapter.getLastItem();
+        if (mReachedEnd || mPageLoadTask != null || lastItem == null) {
+            return;
+        }
+        mPageLoadTask = new PageLoadTask(buildPageUri(PAGE_SIZE,
+                lastItem.getSortKey(mSortOrder)), mSortOrder);
+        mPageLoadTask.execute();
+    }
+
+    private void cancelPageLoad() {
+        if (mPageLoadTask != null) {
+            mPageLoadTask.cancel(false);
+            mPageLoadTask = null;
+        }
+    }
+
+    /** Adds a page of items to the end of the list */
+    private void onPageLoaded(List<Item> page) {
+        mPageLoadTask = null;
+        mReachedEnd = page.size() < PAGE_SIZE;
+        mCursorAdapter.appendItems(page);
+        mLoadedLimit = mCursorAdapter.getItemCount();
+        // When the data changes the loader reloads everything shown so far, not just the first page
+        Loader<Cursor> loader = getLoaderManager().getLoader(ITEM_LOADER);
+        if (loader != null) {
+            ((CursorLoader) loader).setUri(buildPageUri(mLoadedLimit, null));
+        }
+    }
+
+    /** Requery every row loaded so far */
+    private void reloadList() {
+        Loader<Cursor> loader = getLoaderManager().getLoader(ITEM_LOADER);
+        if (loader != null) {
+            loader.onContentChanged();
+        }
+    }
+
+    /** Re-fetch a single item that has changed, and update its row */
+    private void refreshRow(long id) {
+        RowRefreshTask task = new RowRefreshTask(id);
+        mRowRefreshTasks.add(task);
+        task.execute();
+    }
+
+    /**
+     * Update the row of an item that has changed
+     * @param item the item as it is now, or null if it has been deleted
+     */
+    private void onRowRefreshed(long id, Item item) {
+        // An item that no longer passes the filters, such as one just sold out, leaves the list
+        if (item == null || !isListed(item)) {
+            mCursorAdapter.removeItem(id);
+            return;
+        }
+        String[] sortKey = item.getSortKey(mSortOrder);
+        Item shown = mCursorAdapter.getItem(id);
+        if (shown != null && Arrays.equals(shown.getSortKey(mSortOrder), sortKey)) {
+            // The row stays where it is, so only it needs rebinding
+            mCursorAdapter.updateItem(item);
+        } else if (isLoaded(sortKey)) {
+            // The item is new or has moved, so where it goes in the list is left to the provider
+            reloadList();
+        } else {
+            // It now sorts after the rows loaded so far, so it comes with a later page
+            mCursorAdapter.removeItem(id);
+        }
+    }
+
+    /** @return whether an item with the sort key falls within the rows loaded so far */
+    private boolean isLoaded(String[] sortKey) {
+        Item lastItem = mCursorAdapter.getLastItem();
+        return mReachedEnd || lastItem == null
+                || mSortOrder.compareKeys(sortKey, lastItem.getSortKey(mSortOrder)) < 0;
+    }
+
+    /**
+     * Queries a page of items on a background thread. The page is found by keyset, starting after
+     * the sort key of the last item shown, so it costs the same however far down the list it is
+     */
+    private class PageLoadTask extends AsyncTask<Void, Void, List<Item>> {
+        private final Uri mPageUri;
+        private final ItemSortOrder mOrder;
+
+        PageLoadTask(Uri pageUri, ItemSortOrder order) {
+            mPageUri = pageUri;
+            mOrder = order;
+        }
+
+        @Override
+        protected List<Item> doInBackground(Void... params) {
+            List<Item> page = new ArrayList<>();
+            Cursor cursor = getContentResolver().query(mPageUri, LIST_PROJECTION, null, null,
+                    mOrder.toSql());
+            if (cursor == null) {
+                return page;
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    page.add(Item.fromCursor(cursor));
+                }
+            } finally {
+                cursor.close();
+            }
+            return page;
+        }
+
+        @Override
+        protected void onPostExecute(List<Item> page) {
+            onPageLoaded(page);
+        }
+    }
+
+    /**
+     * Reads the suppliers on a background thread, then asks which one's items to list. The
+     * provider reads them from the supplier index, without going through the items
+     */
+    private class SupplierListTask extends AsyncTask<Void, Void, Cursor> {
+        @Override
+        protected Cursor doInBackground(Void... params) {
+            Cursor cursor = getContentResolver().query(SupplierEntry.CONTENT_URI, null, null,
+                    null, null);
+            if (cursor != null) {
+                // Fill the cursor's window here, rather than on the main thread
+                cursor.getCount();
+            }
+            return cursor;
+        }
+
+        @Override
+        protected void onPostExecute(Cursor suppliers) {
+            if (suppliers == null) {
+                return;
+            }
+            try {
+                if (!isFinishing()) {
+                    showSupplierDialog(suppliers);
+                }
+            } finally {
+                suppliers.close();
+            }
+        }
+    }
+
+    /** Queries a single item on a background thread */
+    private class RowRefreshTask extends AsyncTask<Void, Void, Item> {
+        private final long mId;
+
+        RowRefreshTask(long id) {
+            mId = id;
+        }
+
+        @Override
+        protected Item doInBackground(Void... params) {
+            Cursor cursor = getContentResolver().query(
+                    ContentUris.withAppendedId(ItemEntry.CONTENT_URI, mId),
+                    LIST_PROJECTION, null, null, null);
+            if (cursor == null) {
+                return null;
+            }
+            try {
+                return cursor.moveToFirst() ? Item.fromCursor(cursor) : null;
+            } finally {
+                cursor.close();
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Item item) {
+            mRowRefreshTasks.remove(this);
+            onRowRefreshed(mId, item);
+        }
+    }
+
+    /**
+     * A task importing or exporting CSV, or generating sample data, showing its progress in the
+     * activity's dialog. It keeps running across a configuration change: the activity being
+     * destroyed detaches it and hands it on, and the next one attaches to it and shows its last
+     * progress again. It only uses the application context, so it never holds on to an activity
+     * that is gone
+     */
+    private abstract static class CsvTask<Result> extends AsyncTask<Void, Integer, Result> {
+        final Context mContext;
+        private InventoryActivity mActivity;
+        private String mMessage;
+
+        CsvTask(Context context, int messageRes) {
+            mContext = context.getApplicationContext();
+            mMessage = mContext.getString(messageRes);
+        }
+
+        /** Report to the activity, or to none while the activity is being recreated */
+        void attach(InventoryActivity activity) {
+            mActivity = activity;
+        }
+
+        /** @return the latest progress message */
+        String getMessage() {
+            return mMessage;
+        }
+
+        /** Show a progress message, which the next activity shows again if it is recreated */
+        void showProgress(String message) {
+            mMessage = message;
+            if (mActivity != null) {
+                mActivity.showCsvProgress(message);
+            }
+        }
+
+        /** Close the progress dialog and show the outcome */
+        void finish(String message) {
+            if (mActivity != null) {
+                mActivity.onCsvTaskFinished(message);
+            }
+        }
+    }
+
+    /**
+     * Imports items from a CSV file on a background thread, a chunk per transaction. If the last
+     * import of the same file didn't finish, it carries on after the last chunk written
+     */
+    private static class ImportTask extends CsvTask<ItemCsv.ImportResult> {
+        private final Uri mUri;
+        private final SharedPreferences mPrefs;
+
+        ImportTask(Context context, Uri uri) {
+            super(context, R.string.csv_importing);
+            mUri = uri;
+            mPrefs = mContext.getSharedPreferences(PREFS_CSV_IMPORT, MODE_PRIVATE);
+        }
+
+        @Override
+        protected ItemCsv.ImportResult doInBackground(Void... params) {
+            long startPosition = 0;
+            if (mUri.toString().equals(mPrefs.getString(PREF_IMPORT_URI, null))) {
+                startPosition = mPrefs.getLong(PREF_IMPORT_POSITION, 0);
+            }
+            try {
+                InputStream in = mContext.getContentResolver().openInputStream(mUri);
+                if (in == null) {
+                    return null;
+                }
+                ItemCsv.ImportResult result = ItemCsv.importItems(mContext.getContentResolver(),
+                        in, startPosition, new ItemCsv.ImportListener() {
+                            @Override
+                            public boolean onChunkImported(long position, int imported,
+                                                           int skipped) {
+                                mPrefs.edit()
+                                        .putString(PREF_IMPORT_URI, mUri.toString())
+                                        .putLong(PREF_IMPORT_POSITION, position)
+                                        .apply();
+                                publishProgress(imported);
+                                return !isCancelled();
+                            }
+                        });
+                if (result.finished) {
+                    mPrefs.edit().clear().apply();
+                }
+                return result;
+            } catch (IOException | IllegalArgumentException | SecurityException e) {
+                Log.e(LOG, "Failed to import " + mUri, e);
+                return null;
+            }
+        }
+
+        @Override
+        protected void onProgressUpdate(Integer... imported) {
+            showProgress(mContext.getString(R.string.csv_import_progress, imported[0]));
+        }
+
+        @Override
+        protected void onPostExecute(ItemCsv.ImportResult result) {
+            if (result == null) {
+                finish(mContext.getString(R.string.csv_import_failed));
+            } else if (result.finished) {
+                finish(mContext.getString(R.string.csv_import_finished,
+                        result.imported, result.skipped));
+            } else {
+                finish(mContext.getString(R.string.csv_import_stopped, result.imported));
+            }
+        }
+    }
+
+    /** Inserts made up items on a background thread, a chunk per transaction */
+    private static class GenerateTask extends CsvTask<Integer> {
+        private final int mCount;
+
+        GenerateTask(Context context, int count) {
+            super(context, R.string.sample_data_generating);
+            mCount = count;
+        }
+
+        @Override
+        protected Integer doInBackground(Void... params) {
+            SampleDataGenerator generator = new SampleDataGenerator(SAMPLE_DATA_SEED)
+                    .setImages(SAMPLE_IMAGE_SHARE, Utils.IMAGE_MAX_SIZE,
+                            Utils.IMAGE_MAX_SIZE * 3 / 4, SAMPLE_DISTINCT_IMAGES);
+            return generator.insertItems(mContext.getContentResolver(), mCount,
+                    new SampleDataGenerator.Listener() {
+                        @Override
+                        public boolean onChunkInserted(int inserted) {
+                            publishProgress(inserted);
+                            return !isCancelled();
+                        }
+                    });
+        }
+
+        @Override
+        protected void onProgressUpdate(Integer... inserted) {
+            showProgress(mContext.getString(R.string.sample_data_progress, inserted[0], mCount));
+        }
+
+        @Override
+        protected void onPostExecute(Integer inserted) {
+            finish(mContext.getString(R.string.sample_data_finished, inserted));
+        }
+    }
+
+    /** Exports every item to a CSV file on a background thread, straight from the cursor */
+    private static class ExportTask extends CsvTask<Integer> {
+        private final Uri mUri;
+
+        ExportTask(Context context, Uri uri) {
+            super(context, R.string.csv_exporting);
+            mUri = uri;
+        }
+
+        @Override
+        protected Integer doInBackground(Void... params) {
+            try {
+                OutputStream out = mContext.getContentResolver().openOutputStream(mUri);
+                if (out == null) {
+                    return null;
+                }
+                return ItemCsv.exportItems(mContext.getContentResolver(), out);
+            } catch (IOException | SecurityException e) {
+                Log.e(LOG, "Failed to export to " + mUri, e);
+                return null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Integer count) {
+            finish(count == null ? mContext.getString(R.string.csv_export_failed)
+                    : mContext.getString(R.string.csv_export_finished, count));
+        }
     }
 }
@@ -0,0 +1,94 @@
+package com.example.android.inventory;
+
+import android.database.Cursor;
+import android.text.TextUtils;
+
+import com.example.android.inventory.data.ItemContract.ItemEntry;
+import com.example.android.inventory.data.ItemSortOrder;
+
+/**
+ * A single row of the item list, read out of the {@link Cursor} so the list can be diffed and
+ * updated row by row rather than rebound as a whole
+ */
+
+public class Item {
+    private final long mId;
+    private final String mName;
+    private final String mSupplier;
+    private final int mPrice;
+    private final int mQuantity;
+    private final String mThumbnailRef;
+
+    public Item(long id, String name, String supplier, int price, int quantity, String thumbnailRef) {
+        mId = id;
+        mName = name;
+        mSupplier = supplier;
+        mPrice = price;
+        mQuantity = quantity;
+        mThumbnailRef = thumbnailRef;
+    }
+
+    /** Read the item at the cursor's current position */
+    public static Item fromCursor(Cursor cursor) {
+        return new Item(
+                cursor.getLong(cursor.getColumnIndex(ItemEntry._ID)),
+                cursor.getString(cursor.getColumnIndex(ItemEntry.COLUMN_ITEM_NAME)),
+                cursor.getString(cursor.getColumnIndex(ItemEntry.COLUMN_ITEM_SUPPLIER)),
+                cursor.getInt(cursor.getColumnIndex(ItemEntry.COLUMN_ITEM_PRICE)),
+                cursor.getInt(cursor.getColumnIndex(ItemEntry.COLUMN_ITEM_QUANTITY)),
+                cursor.getString(cursor.getColumnIndex(ItemEntry.COLUMN_ITEM_THUMBNAIL_REF)));
+    }
+
+    public long getId() { return mId; }
+
+    public String getName() { return mName; }
+
+    public String getSupplier() { return mSupplier; }
+
+    public int getPrice() { return mPrice; }
+
+    public int getQuantity() { return mQuantity; }
+
+    public String getThumbnailRef() { return mThumbnailRef; }
+
+    /**
+     * Get the values of the item's sort key, to ask the provider for the page of items that
+     * comes after this one
+     */
+    public String[] getSortKey(ItemSortOrder sortOrder) {
+        String[] columns = sortOrder.getColumnNames();
+        String[] key = new String[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            key[i] = getValueAsString(columns[i]);
+        }
+        return key;
+    }
+
+    private String getValueAsString(String column) {
+        switch (column) {
+            case ItemEntry._ID:
+                return String.valueOf(mId);
+            case ItemEntry.COLUMN_ITEM_NAME:
+                return mName;
+            case ItemEntry.COLUMN_ITEM_SUPPLIER:
+                // Items read before their null supplier was made empty page as if it were empty
+                return mSupplier == null ? "" : mSupplier;
+            case ItemEntry.COLUMN_ITEM_PRICE:
+                return String.valueOf(mPrice);
+            case ItemEntry.COLUMN_ITEM_QUANTITY:
+                return String.valueOf(mQuantity);
+            default:
+                throw new IllegalArgumentException("Item has no value for column " + column);
+        }
+    }
+
+    /** @return true if the item would be shown exactly the same way as the other item */
+    public boolean hasSameContents(Item other) {
+        return mId == other.mId
+                && TextUtils.equals(mName, other.mName)
+                && TextUtils.equals(mSupplier, other.mSupplier)
+                && mPrice == other.mPrice
+                && mQuantity == other.mQuantity
+                && TextUtils.equals(mThumbnailRef, other.mThumbnailRef);
+    }
+}
@@ -1,14 +1,9 @@
 package com.example.android.inventory;
 
-import android.content.ContentResolver;
-import android.content.ContentUris;
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.net.Uri;
-import android.support.v4.widget.CursorAdapter;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
 import android.text.TextUtils;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -18,106 +13,324 @@ import android.widget.ImageView;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import com.example.android.inventory.data.ItemContract.ItemEntry;
-import com.example.android.inventory.data.Utils;
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.request.RequestOptions;
+import com.bumptech.glide.signature.ObjectKey;
+import com.example.android.inventory.data.ImageStore;
+import com.example.android.inventory.data.SaleBuffer;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
- * {@link ItemCursorAdapter} is an adapter for a listView that uses a {@link Cursor} of item
- * data as its data source
+ * {@link ItemCursorAdapter} is an adapter for a RecyclerView that uses a {@link Cursor} of item
+ * data as its data source. Each new cursor is diffed against the rows already shown, so only
+ * the rows that actually changed are rebound.
  */
 
-public class ItemCursorAdapter extends CursorAdapter {
+public class ItemCursorAdapter extends RecyclerView.Adapter<ItemCursorAdapter.ItemViewHolder>
+        implements SaleBuffer.Listener {
+
+    /** Callback for when a row of the list is clicked */
+    public interface OnItemClickListener {
+        void onItemClick(long id);
+    }
+
+    private final Context mContext;
+    private final OnItemClickListener mOnItemClickListener;
+
+    /** Image files that the thumbnail_ref column of each row points to */
+    private final ImageStore mImageStore;
+
+    /** Adds up taps of the sale buttons before they are written */
+    private final SaleBuffer mSaleBuffer;
+
+    /**
+     * Options shared by every thumbnail load. The placeholder is given as a resource id, so every
+     * row shares the one decoded placeholder bitmap held by the Resources drawable cache, rather
+     * than decoding it again on each bind
+     */
+    private final RequestOptions mThumbnailOptions = new RequestOptions()
+            .placeholder(R.drawable.placeholder_thumbnail)
+            .fallback(R.drawable.placeholder_thumbnail)
+            .error(R.drawable.placeholder_thumbnail)
+            .dontAnimate();
+
+    /** The rows currently shown */
+    private List<Item> mItems = Collections.emptyList();
+
+    /** Position of each row shown, by _ID, kept alongside {@link #mItems} */
+    private final Map<Long, Integer> mPositions = new HashMap<>();
+
     /**
      * Public constructor
      * @param context the context
-     * @param c the cursor from which to get the data
+     * @param onItemClickListener called when a row is clicked
      */
-    public ItemCursorAdapter(Context context, Cursor c) {
-        super(context, c, 0);
+    public ItemCursorAdapter(Context context, OnItemClickListener onItemClickListener) {
+        mContext = context;
+        mOnItemClickListener = onItemClickListener;
+        mImageStore = new ImageStore(context);
+        mSaleBuffer = SaleBuffer.getInstance(context);
+        // Rows are identified by their _ID, so RecyclerView can keep track of them across updates
+        setHasStableIds(true);
     }
 
     /**
-     * Makes a new blank list item view. No data set yet. Data is set via java functionally
-     * @param context app context
-     * @param cursor Cursor from which to get data
+     * Show the rows of the new cursor. The cursor is read into {@link Item}s and diffed against
+     * the rows already shown, so only inserted, removed and changed rows are rebound
+     * @param cursor the cursor from which to get the data, or null to clear the list
+     */
+    public void swapCursor(Cursor cursor) {
+        List<Item> newItems = new ArrayList<>();
+        if (cursor != null && cursor.moveToFirst()) {
+            do {
+                newItems.add(Item.fromCursor(cursor));
+            } while (cursor.moveToNext());
+        }
+        DiffUtil.DiffResult result = DiffUtil.calculateDiff(new ItemDiffCallback(mItems, newItems));
+        setItems(newItems);
+        result.dispatchUpdatesTo(this);
+    }
+
+    /** Add a page of rows to the end of the list */
+    public void appendItems(List<Item> items) {
+        if (items.isEmpty()) {
+            return;
+        }
+        int start = mItems.size();
+        List<Item> newItems = new ArrayList<>(start + items.size());
+        newItems.addAll(mItems);
+        newItems.addAll(items);
+        mItems = newItems;
+        for (int i = start; i < newItems.size(); i++) {
+            mPositions.put(newItems.get(i).getId(), i);
+        }
+        notifyItemRangeInserted(start, items.size());
+    }
+
+    /** @return the row with the given id, or null if it isn't shown */
+    public Item getItem(long id) {
+        int position = findPosition(id);
+        return position == RecyclerView.NO_POSITION ? null : mItems.get(position);
+    }
+
+    /**
+     * Replace the row with the same id as the given item, and rebind only that row
+     * @return false if the item isn't shown
+     */
+    public boolean updateItem(Item item) {
+        int position = findPosition(item.getId());
+        if (position == RecyclerView.NO_POSITION) {
+            return false;
+        }
+        if (!mItems.get(position).hasSameContents(item)) {
+            List<Item> newItems = new ArrayList<>(mItems);
+            newItems.set(position, item);
+            mItems = newItems;
+            notifyItemChanged(position);
+        }
+        return true;
+    }
+
+    /** Remove the row with the given id, if it is shown */
+    public void removeItem(long id) {
+        int position = findPosition(id);
+        if (position == RecyclerView.NO_POSITION) {
+            return;
+        }
+        List<Item> newItems = new ArrayList<>(mItems);
+        newItems.remove(position);
+        setItems(newItems);
+        notifyItemRemoved(position);
+    }
+
+    /** Show the rows given, and index their positions */
+    private void setItems(List<Item> items) {
+        mItems = items;
+        mPositions.clear();
+        for (int i = 0; i < items.size(); i++) {
+            mPositions.put(items.get(i).getId(), i);
+        }
+    }
+
+    private int findPosition(long id) {
+        Integer position = mPositions.get(id);
+        return position == null ? RecyclerView.NO_POSITION : position;
+    }
+
+    /** @return the last row of the list, or null if the list is empty */
+    public Item getLastItem() {
+        return mItems.isEmpty() ? null : mItems.get(mItems.size() - 1);
+    }
+
+    @Override
+    public int getItemCount() {
+        return mItems.size();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mItems.get(position).getId();
+    }
+
+    /**
+     * Makes a new blank list item view and caches its child views in a holder. No data set yet
      * @param parent parent to which the new view is attached to
-     * @return the newly created list view
+     * @param viewType type of view, there is only one
+     * @return the holder of the newly created list item view
      */
     @Override
-    public View newView(Context context, Cursor cursor, ViewGroup parent) {
-        return LayoutInflater.from(context).inflate(R.layout.list_item, parent, false);
+    public ItemViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(mContext).inflate(R.layout.list_item, parent, false);
+        return new ItemViewHolder(view);
     }
 
     @Override
-    public void bindView(final View view, final Context context, Cursor cursor) {
-        // Find fields to populate in inflated template
-        TextView nameView = (TextView) view.findViewById(R.id.product_name);
-        TextView supplierView = (TextView) view.findViewById(R.id.supplier);
-        TextView priceView = (TextView) view.findViewById(R.id.price);
-        TextView quantityView = (TextView) view.findViewById(R.id.quantity);
-        ImageView imageView = (ImageView) view.findViewById(R.id.image);
-
-        // Find index for each data column to be able to extract properties from cursor
-        int idColumnIndex = cursor.getColumnIndex(ItemEntry._ID);
-        int nameColumnIndex = cursor.getColumnIndex(ItemEntry.COLUMN_ITEM_NAME);
-        int supplierColumnIndex = cursor.getColumnIndex(ItemEntry.COLUMN_ITEM_SUPPLIER);
-        int priceColumnIndex = cursor.getColumnIndex(ItemEntry.COLUMN_ITEM_PRICE);
-        int quantityColumnIndex = cursor.getColumnIndex(ItemEntry.COLUMN_ITEM_QUANTITY);
-        int imageColumnIndex = cursor.getColumnIndex(ItemEntry.COLUMN_ITEM_IMAGE);
-
-        // Extract properties from cursor using the above column indexes
-        int id = cursor.getInt(idColumnIndex);
-        String name = cursor.getString(nameColumnIndex);
-        String supplier = cursor.getString(supplierColumnIndex);
-        Integer price = cursor.getInt(priceColumnIndex);
-        final Integer quantity = cursor.getInt(quantityColumnIndex);
-        byte[] imageByteArray = cursor.getBlob(imageColumnIndex);
+    public void onBindViewHolder(ItemViewHolder holder, int position) {
+        Item item = mItems.get(position);
+        String supplier = item.getSupplier();
 
         // If the columns which are allowed to be null (supplier & image) are empty/null,
         // then use some default text that states it is unknown, so the TextView isn't blank.
         if (TextUtils.isEmpty(supplier)) {
-            supplier = context.getString(R.string.unknown_supplier);
-        }
-
-        // Populate the fields with extracted data
-        nameView.setText(name);
-        supplierView.setText(supplier);
-        priceView.setText(String.valueOf(price));
-        quantityView.setText(String.valueOf(quantity));
-
-        // Images load asynchronously, which means when image loading completes at that time listView
-        // adapter uses old imageView to hold and display image. If/else is required here to make
-        // sure images don't keep loading into wrong views. If/else is also needed to ensure image
-        // is not null, or else app crashes attempting to get length of null array
-        if (imageByteArray != null) {
-            Bitmap image = Utils.convertByteArrayToBitmap(imageByteArray);
-            imageView.setImageBitmap(image);
-        } else {
-            Bitmap placeholderBitmap =  BitmapFactory.decodeResource(context.getResources(),
-                    R.drawable.placeholder_thumbnail);
-            imageView.setImageBitmap(placeholderBitmap);
-        }
-
-        final Uri currentItemUri = ContentUris.withAppendedId(ItemEntry.CONTENT_URI, id);
-
-        // Set action for clicking on button: when clicked, quantity is decreased by 1
-        Button saleButton = (Button) view.findViewById(R.id.button_sale);
-        saleButton.setOnClickListener(new View.OnClickListener() {
-            @Override
-            public void onClick(View v) {
-                ContentResolver resolver = view.getContext().getContentResolver();
-                ContentValues values = new ContentValues();
-                if (quantity > 0) {
-                    int q = quantity;
-                    q--;
-                    values.put(ItemEntry.COLUMN_ITEM_QUANTITY, q);
-                    resolver.update(currentItemUri, values, null, null);
-                    resolver.notifyChange(currentItemUri, null);
-                } else {
-                    Toast.makeText(context, "Item out of stock", Toast.LENGTH_SHORT).show();
-                }
+            supplier = mContext.getString(R.string.unknown_supplier);
+        }
+
+        // Populate the fields with the item's data
+        holder.nameView.setText(item.getName());
+        holder.supplierView.setText(supplier);
+        holder.priceView.setText(String.valueOf(item.getPrice()));
+        holder.quantityView.setText(String.valueOf(getShownQuantity(item)));
+
+        // Images are decoded off the main thread by Glide and kept in its memory cache, keyed by
+        // the item id and the thumbnail's content hash, so an edited image is never served stale.
+        // Loading into a recycled imageView cancels the load still running for its previous item,
+        // so images don't end up in the wrong row. Items without a thumbnail get the placeholder
+        String thumbnailRef = item.getThumbnailRef();
+        File thumbnailFile = thumbnailRef == null ? null : mImageStore.getFile(thumbnailRef);
+        Glide.with(mContext)
+                .load(thumbnailFile)
+                .apply(mThumbnailOptions)
+                .apply(RequestOptions.signatureOf(new ObjectKey(item.getId() + ":" + thumbnailRef)))
+                .into(holder.imageView);
+    }
+
+    @Override
+    public void onViewRecycled(ItemViewHolder holder) {
+        // Stop any image load still running for a row that has scrolled away
+        Glide.with(mContext).clear(holder.imageView);
+    }
+
+    /**
+     * Sale button action: sell 1 unit of the item at the position. The sale is only buffered, and
+     * written along with the next few taps, so the row shows the quantity less the units sold
+     * but not yet written. The provider still decides whether there is stock left when they are
+     * written, since the quantity shown may already be out of date
+     */
+    private void sellItem(int position) {
+        Item item = mItems.get(position);
+        if (getShownQuantity(item) <= 0) {
+            Toast.makeText(mContext, "Item out of stock", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        mSaleBuffer.sell(item.getId());
+        notifyItemChanged(position);
+    }
+
+    /** @return the quantity of the item, less the units sold but not yet written */
+    private int getShownQuantity(Item item) {
+        return item.getQuantity() - mSaleBuffer.getPendingCount(item.getId());
+    }
+
+    /**
+     * Once sales are written, the change notification brings the row's new quantity. The row
+     * may have been rebound with it while the units were still taken off as pending, so it is
+     * rebound now they no longer are. If the stock ran out first, the user is told how many sold
+     */
+    @Override
+    public void onSalesWritten(long id, int count, int soldCount) {
+        if (soldCount < count) {
+            Toast.makeText(mContext, soldCount == 0 ? "Item out of stock"
+                    : "Only " + soldCount + " sold, item out of stock", Toast.LENGTH_SHORT).show();
+        }
+        int position = findPosition(id);
+        if (position != RecyclerView.NO_POSITION) {
+            notifyItemChanged(position);
+        }
+    }
+
+    /**
+     * Holds the child views of a list item, so they are only looked up once per view rather than
+     * on every bind. The click listeners are also set once, and look up the row they belong to
+     * when clicked
+     */
+    class ItemViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener {
+        final TextView nameView;
+        final TextView supplierView;
+        final TextView priceView;
+        final TextView quantityView;
+        final ImageView imageView;
+
+        ItemViewHolder(View view) {
+            super(view);
+            nameView = (TextView) view.findViewById(R.id.product_name);
+            supplierView = (TextView) view.findViewById(R.id.supplier);
+            priceView = (TextView) view.findViewById(R.id.price);
+            quantityView = (TextView) view.findViewById(R.id.quantity);
+            imageView = (ImageView) view.findViewById(R.id.image);
+            Button saleButton = (Button) view.findViewById(R.id.button_sale);
+            saleButton.setOnClickListener(this);
+            view.setOnClickListener(this);
+        }
+
+        @Override
+        public void onClick(View v) {
+            int position = getAdapterPosition();
+            // The row may have been removed while the click was on its way
+            if (position == RecyclerView.NO_POSITION) {
+                return;
+            }
+            if (v.getId() == R.id.button_sale) {
+                sellItem(position);
+            } else {
+                mOnItemClickListener.onItemClick(mItems.get(position).getId());
             }
-        });
+        }
+    }
 
+    /** Compares the rows shown with the rows of a new cursor */
+    private static class ItemDiffCallback extends DiffUtil.Callback {
+        private final List<Item> mOldItems;
+        private final List<Item> mNewItems;
+
+        ItemDiffCallback(List<Item> oldItems, List<Item> newItems) {
+            mOldItems = oldItems;
+            mNewItems = newItems;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return mOldItems.size();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return mNewItems.size();
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+            return mOldItems.get(oldItemPosition).getId() == mNewItems.get(newItemPosition).getId();
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+            return mOldItems.get(oldItemPosition).hasSameContents(mNewItems.get(newItemPosition));
+        }
     }
 }
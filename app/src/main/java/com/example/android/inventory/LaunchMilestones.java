@@ -0,0 +1,66 @@
+package com.example.android.inventory;
+
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Milestones of a cold start of the app, from the process starting to the list of items being
+ * drawn. Each milestone is logged, the first time it is reached in the process, with the time
+ * since the process started, so cold start can be measured without attaching a profiler. The
+ * work leading up to each milestone is also wrapped in a trace section, to see it in systrace.
+ */
+
+public final class LaunchMilestones {
+
+    private static final String LOG = LaunchMilestones.class.getSimpleName();
+
+    /** ItemProvider has been created. Providers are created before the Application and Activity */
+    public static final String PROVIDER_CREATE = "provider create";
+    /** The database has been opened, and upgraded if needed */
+    public static final String DB_OPEN = "db open";
+    /** The first cursor of items has been handed to the list */
+    public static final String FIRST_CURSOR = "first cursor";
+    /** The list has drawn its first frame showing items */
+    public static final String FIRST_FRAME = "first frame";
+
+    /**
+     * When the process started. Before API 24 the best there is, is when this class was loaded,
+     * which is when the provider (the first of the app's code to run) is created
+     */
+    private static final long sProcessStart = Build.VERSION.SDK_INT >= Build.VERSION_CODES.N
+            ? Process.getStartElapsedRealtime() : SystemClock.elapsedRealtime();
+
+    /** Milestones reached so far, with the time since the process started, in ms */
+    private static final Map<String, Long> sReached = new HashMap<>();
+
+    private LaunchMilestones() {}
+
+    /**
+     * Record that the milestone has been reached
+     * @return true if this is the first time it has been reached in this process
+     */
+    public static boolean reached(String milestone) {
+        long sinceStart = SystemClock.elapsedRealtime() - sProcessStart;
+        synchronized (sReached) {
+            if (sReached.containsKey(milestone)) {
+                return false;
+            }
+            sReached.put(milestone, sinceStart);
+        }
+        Log.i(LOG, milestone + ": +" + sinceStart + " ms");
+        return true;
+    }
+
+    /** @return the time since the process started when the milestone was reached, or -1 */
+    public static long getTime(String milestone) {
+        synchronized (sReached) {
+            Long time = sReached.get(milestone);
+            return time == null ? -1 : time;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.example.android.inventory.data;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads records of comma separated values (RFC 4180) one at a time from a stream, so a file of
+ * any size is read in the memory of a single record.
+ *
+ * Fields may be quoted with double quotes, in which case they can hold commas, line breaks and
+ * doubled double quotes. Records end with CRLF, LF or CR. A byte order mark at the start of the
+ * stream is skipped.
+ */
+
+final class CsvReader implements Closeable {
+
+    /** No character is pushed back */
+    private static final int NONE = -2;
+
+    private static final char BYTE_ORDER_MARK = '\uFEFF';
+
+    private final Reader mReader;
+    private final StringBuilder mField = new StringBuilder();
+    private final List<String> mRecord = new ArrayList<>();
+
+    /** Character read ahead to tell CR from CRLF, or {@link #NONE} */
+    private int mPushedBack = NONE;
+
+    private boolean mStarted;
+
+    /** Number of the line the next record starts on, from 1 */
+    private int mLineNumber = 1;
+
+    /** @param reader read from; it should be buffered, as it is read a character at a time */
+    CsvReader(Reader reader) {
+        mReader = reader;
+    }
+
+    /**
+     * Read the next record
+     * @return the fields of the record, or null at the end of the stream
+     * @throws IOException if the stream could not be read, or ends inside a quoted field
+     */
+    String[] readRecord() throws IOException {
+        int c = read();
+        if (!mStarted) {
+            mStarted = true;
+            if (c == BYTE_ORDER_MARK) {
+                c = read();
+            }
+        }
+        if (c == -1) {
+            return null;
+        }
+        mRecord.clear();
+        mField.setLength(0);
+        int startLine = mLineNumber;
+        boolean quoted = false;
+        while (true) {
+            if (quoted) {
+                if (c == -1) {
+                    throw new IOException("Quoted field not closed, in the record on line "
+                            + startLine);
+                }
+                if (c == '"') {
+                    c = read();
+                    if (c != '"') {
+                        // The closing quote. What follows is handled as if unquoted
+                        quoted = false;
+                        continue;
+                    }
+                } else if (c == '\n') {
+                    mLineNumber++;
+                }
+                mField.append((char) c);
+            } else if (c == '"' && mField.length() == 0) {
+                quoted = true;
+            } else if (c == ',') {
+                endField();
+            } else if (c == '\n' || c == '\r' || c == -1) {
+                if (c == '\r') {
+                    int next = read();
+                    if (next != '\n') {
+                        mPushedBack = next;
+                    }
+                }
+                if (c != -1) {
+                    mLineNumber++;
+                }
+                endField();
+                return mRecord.toArray(new String[mRecord.size()]);
+            } else {
+                mField.append((char) c);
+            }
+            c = read();
+        }
+    }
+
+    /** @return the number of the line the next record starts on, from 1 */
+    int getLineNumber() {
+        return mLineNumber;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mReader.close();
+    }
+
+    private void endField() {
+        mRecord.add(mField.toString());
+        mField.setLength(0);
+    }
+
+    private int read() throws IOException {
+        if (mPushedBack != NONE) {
+            int c = mPushedBack;
+            mPushedBack = NONE;
+            return c;
+        }
+        return mReader.read();
+    }
+}
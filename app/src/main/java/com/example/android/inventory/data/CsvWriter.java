@@ -0,0 +1,75 @@
+package com.example.android.inventory.data;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes records of comma separated values (RFC 4180) to a stream, one at a time. Fields holding
+ * commas, double quotes, line breaks, or spaces at either end are quoted, so {@link CsvReader}
+ * reads back exactly what was written. Null fields are written empty.
+ */
+
+final class CsvWriter implements Closeable, Flushable {
+
+    private final Writer mWriter;
+
+    /** @param writer written to; it should be buffered, as it is written a field at a time */
+    CsvWriter(Writer writer) {
+        mWriter = writer;
+    }
+
+    /** Write a record of the fields given, ending with CRLF */
+    void writeRecord(String... fields) throws IOException {
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                mWriter.write(',');
+            }
+            writeField(fields[i]);
+        }
+        mWriter.write("\r\n");
+    }
+
+    @Override
+    public void flush() throws IOException {
+        mWriter.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mWriter.close();
+    }
+
+    private void writeField(String field) throws IOException {
+        if (field == null || field.isEmpty()) {
+            return;
+        }
+        if (!needsQuotes(field)) {
+            mWriter.write(field);
+            return;
+        }
+        mWriter.write('"');
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c == '"') {
+                mWriter.write('"');
+            }
+            mWriter.write(c);
+        }
+        mWriter.write('"');
+    }
+
+    private static boolean needsQuotes(String field) {
+        if (field.charAt(0) == ' ' || field.charAt(field.length() - 1) == ' ') {
+            return true;
+        }
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c == ',' || c == '"' || c == '\n' || c == '\r') {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,136 @@
+package com.example.android.inventory.data;
+
+import android.content.Context;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Content-addressed file store for item images.
+ *
+ * Images are kept as files in the app's internal storage rather than as BLOBs in the items
+ * table, so that list queries only carry a short reference per row. Each file is named after
+ * the SHA-1 hash of its bytes, which is the reference saved in
+ * {@link ItemContract.ItemEntry#COLUMN_ITEM_IMAGE_REF}. Identical images share one file.
+ */
+
+public class ImageStore {
+
+    /** Name of the directory (inside the app's files directory) holding the images */
+    private static final String DIRECTORY_NAME = "images";
+
+    private static final String HASH_ALGORITHM = "SHA-1";
+
+    /** Size of the buffer used when copying image streams */
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final File mDirectory;
+
+    public ImageStore(Context context) {
+        mDirectory = new File(context.getFilesDir(), DIRECTORY_NAME);
+    }
+
+    /**
+     * Save the image bytes to the store
+     * @return the reference (content hash) of the saved image
+     */
+    public String put(byte[] image) throws IOException {
+        return put(new ByteArrayInputStream(image));
+    }
+
+    /**
+     * Copy the image from the stream into the store, hashing it on the way through. The bytes
+     * are written to a temporary file first, which is then renamed to its hash, so a partly
+     * written file is never visible under a valid reference.
+     * @return the reference (content hash) of the saved image
+     */
+    public String put(InputStream in) throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Unable to create image directory " + mDirectory);
+        }
+        MessageDigest digest = newDigest();
+        File tempFile = File.createTempFile("image", ".tmp", mDirectory);
+        OutputStream out = new FileOutputStream(tempFile);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+                out.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            out.close();
+            tempFile.delete();
+            throw e;
+        }
+        out.close();
+
+        String ref = toHex(digest.digest());
+        File file = getFile(ref);
+        // Same content is already stored, so keep the existing file
+        if (file.exists()) {
+            tempFile.delete();
+        } else if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Unable to save image " + ref);
+        }
+        return ref;
+    }
+
+    /** @return the file holding the image with the given reference */
+    public File getFile(String ref) {
+        return new File(mDirectory, ref);
+    }
+
+    /** @return true if an image with the given reference is in the store */
+    public boolean contains(String ref) {
+        return ref != null && getFile(ref).isFile();
+    }
+
+    /** Read all bytes of the image with the given reference */
+    public byte[] read(String ref) throws IOException {
+        InputStream in = new FileInputStream(getFile(ref));
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /** Remove the image with the given reference from the store */
+    public boolean delete(String ref) {
+        return ref != null && getFile(ref).delete();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android device is required to provide SHA-1
+            throw new IllegalStateException(HASH_ALGORITHM + " not available", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+            builder.append(Character.forDigit(b & 0xf, 16));
+        }
+        return builder.toString();
+    }
+}
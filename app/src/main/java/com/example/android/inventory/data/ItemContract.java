@@ -1,6 +1,7 @@
 package com.example.android.inventory.data;
 
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.net.Uri;
 import android.provider.BaseColumns;
 
@@ -36,6 +37,83 @@ public final class ItemContract {
         /** The content URI to access the items data in the provider */
         public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_ITEMS);
 
+        /**
+         * Changes are notified on the URI of the rows they touch. A change to a single item is
+         * notified on its own URI (CONTENT_URI/#), and a change to many items at once on
+         * {@link #CONTENT_URI}. To hear about every change, observe CONTENT_URI with
+         * notifyForDescendants.
+         *
+         * Cursors of the whole items list are only notified of changes to many items, through this
+         * URI, so a single sale doesn't requery the whole list. Lists are expected to observe the
+         * single item URIs themselves and update just those rows.
+         * ie. content://com.example.android.inventory/items/bulk
+         */
+        public static final Uri BULK_CHANGE_URI = Uri.withAppendedPath(CONTENT_URI, "bulk");
+
+        /**
+         * The content URI to search items by name and supplier. The words to look for are given
+         * in {@link #QUERY_PARAM_QUERY}, each matching any word starting with it. Items matching
+         * on their name come before those matching only on their supplier, then by name.
+         * {@link #QUERY_PARAM_LIMIT} may be given too, but not a sort order.
+         * ie. content://com.example.android.inventory/items/search?q=blue%20box
+         */
+        public static final Uri SEARCH_URI = Uri.withAppendedPath(CONTENT_URI, "search");
+
+        /** Query parameter of {@link #SEARCH_URI} giving the words to search for */
+        public static final String QUERY_PARAM_QUERY = "q";
+
+        /**
+         * Build the URI to search for items
+         * @param query the words to search for, as typed by the user
+         * @param limit maximum number of items to return
+         */
+        public static Uri buildSearchUri(String query, int limit) {
+            return SEARCH_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAM_QUERY, query)
+                    .appendQueryParameter(QUERY_PARAM_LIMIT, String.valueOf(limit))
+                    .build();
+        }
+
+        /**
+         * The content URI for the items at or below their reorder level, i.e. those with a
+         * {@link #COLUMN_ITEM_STOCK_MARGIN} of 0 or less, the furthest below first.
+         * {@link #QUERY_PARAM_LIMIT} may be given too, but not a sort order. Cursors are notified
+         * of any change to any item, since a sale can bring an item onto the list.
+         * ie. content://com.example.android.inventory/items/low_stock?limit=100
+         */
+        public static final Uri LOW_STOCK_URI = Uri.withAppendedPath(CONTENT_URI, "low_stock");
+
+        /** Path appended to the URI of an item for its image */
+        public static final String PATH_IMAGE = "image";
+
+        /** Path appended to the URI of an item for the thumbnail of its image */
+        public static final String PATH_THUMBNAIL = "thumbnail";
+
+        /**
+         * Build the URI to read an item's image as a stream with
+         * {@link ContentResolver#openInputStream}, so it can be decoded without the bytes ever
+         * being copied into a cursor. Opening it fails with FileNotFoundException if the item
+         * has no image, in which case the placeholder should be shown
+         * ie. content://com.example.android.inventory/items/12/image
+         */
+        public static Uri buildImageUri(long id) {
+            return ContentUris.withAppendedId(CONTENT_URI, id).buildUpon()
+                    .appendPath(PATH_IMAGE).build();
+        }
+
+        /**
+         * Build the URI to read the thumbnail of an item's image as a stream, see
+         * {@link #buildImageUri}
+         * ie. content://com.example.android.inventory/items/12/thumbnail
+         */
+        public static Uri buildThumbnailUri(long id) {
+            return ContentUris.withAppendedId(CONTENT_URI, id).buildUpon()
+                    .appendPath(PATH_THUMBNAIL).build();
+        }
+
+        /** The MIME type of the image and thumbnail URIs. Images are saved as JPEG */
+        public static final String IMAGE_TYPE = "image/jpeg";
+
         // A MIME type is a standardised way for ContentProviders to define a data type by giving
         // it a unique name. It is used in getType() method in the (Item)ContentProvider class
         /**
@@ -52,21 +130,196 @@ public final class ItemContract {
                 ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_ITEMS;
 
 
+        /**
+         * Query parameter of {@link #CONTENT_URI} giving the maximum number of rows to return.
+         * The sort order must then be one of {@link ItemSortOrder}, or null for the default
+         */
+        public static final String QUERY_PARAM_LIMIT = "limit";
+
+        /**
+         * Query parameter of {@link #CONTENT_URI} giving the sort key of the last row already
+         * loaded, so that only the rows after it are returned. It is repeated once for each
+         * column of the {@link ItemSortOrder}, in order
+         */
+        public static final String QUERY_PARAM_AFTER = "after";
+
+        /**
+         * Build the URI for a page of items
+         * @param limit maximum number of items in the page
+         * @param afterKey the sort key of the last item of the previous page, or null for the
+         *                 first page
+         * ie. content://com.example.android.inventory/items?limit=50&after=Box&after=12
+         */
+        public static Uri buildPageUri(int limit, String[] afterKey) {
+            return buildPageUri(limit, afterKey, null, false);
+        }
+
+        /**
+         * Build the URI for a page of the items that pass the filters
+         * @param limit maximum number of items in the page
+         * @param afterKey the sort key of the last item of the previous page, or null for the
+         *                 first page
+         * @param supplier only list the items of this supplier, or null for every supplier
+         * @param inStockOnly only list the items with at least one unit in stock
+         * ie. content://com.example.android.inventory/items?limit=50&supplier=Kmart&in_stock=1
+         */
+        public static Uri buildPageUri(int limit, String[] afterKey, String supplier,
+                                       boolean inStockOnly) {
+            Uri.Builder builder = CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAM_LIMIT, String.valueOf(limit));
+            if (afterKey != null) {
+                for (String value : afterKey) {
+                    builder.appendQueryParameter(QUERY_PARAM_AFTER, value);
+                }
+            }
+            if (supplier != null) {
+                builder.appendQueryParameter(QUERY_PARAM_SUPPLIER, supplier);
+            }
+            if (inStockOnly) {
+                builder.appendQueryParameter(QUERY_PARAM_IN_STOCK, "1");
+            }
+            return builder.build();
+        }
+
+        /**
+         * Query parameter of {@link #CONTENT_URI} to only return the items of a supplier, the
+         * case ignored. An empty value returns the items without a supplier
+         */
+        public static final String QUERY_PARAM_SUPPLIER = "supplier";
+
+        /**
+         * Query parameter of {@link #CONTENT_URI} that, when "1", only returns the items with at
+         * least one unit in stock
+         */
+        public static final String QUERY_PARAM_IN_STOCK = "in_stock";
+
+        /**
+         * Name of the provider method, used with {@link ContentResolver#call}, that sells units of
+         * an item, as many of the count as are in stock. The quantity is decreased in a single
+         * update, so taps that race each other (or other writers) can't lose a sale or take the
+         * quantity below 0. Takes {@link #EXTRA_ITEM_ID} and {@link #EXTRA_COUNT} in the extras,
+         * and returns {@link #EXTRA_SOLD_COUNT} and {@link #EXTRA_QUANTITY}
+         */
+        public static final String METHOD_SELL = "sell";
+
+        /** Extra for {@link #METHOD_SELL}: the _ID of the item. Type: long */
+        public static final String EXTRA_ITEM_ID = "item_id";
+
+        /** Extra for {@link #METHOD_SELL}: the number of units to sell, default 1. Type: int */
+        public static final String EXTRA_COUNT = "count";
+
+        /**
+         * Result of {@link #METHOD_SELL}: the number of units sold, fewer than
+         * {@link #EXTRA_COUNT} if the stock ran out, 0 if there was none. Type: int
+         */
+        public static final String EXTRA_SOLD_COUNT = "sold_count";
+
+        /**
+         * Result of {@link #METHOD_SELL}: the quantity of the item after the call, or -1 if there
+         * is no such item. Type: int
+         */
+        public static final String EXTRA_QUANTITY = "quantity";
+
+        /**
+         * Name of the debug provider method that returns how the provider's calls have performed
+         * since it started, or since {@link #METHOD_RESET_METRICS}. The result holds a bundle per
+         * operation and URI pattern (or method, for call()), under keys such as "query items" or
+         * "call sell", each with {@link #EXTRA_METRICS_COUNT}, {@link #EXTRA_METRICS_TOTAL_MICROS},
+         * {@link #EXTRA_METRICS_MAX_MICROS}, {@link #EXTRA_METRICS_ROWS},
+         * {@link #EXTRA_METRICS_BYTES} and {@link #EXTRA_METRICS_HISTOGRAM}. The result also holds
+         * {@link #EXTRA_METRICS_BUCKETS}. The same counts are printed by the provider's dump()
+         */
+        public static final String METHOD_GET_METRICS = "get_metrics";
+
+        /**
+         * Name of the debug provider method that clears the metrics. Takes
+         * {@link #EXTRA_MEASURE_BYTES} in the extras
+         */
+        public static final String METHOD_RESET_METRICS = "reset_metrics";
+
+        /**
+         * Extra for {@link #METHOD_RESET_METRICS}: whether to count the bytes of every query result
+         * and written value from now on, which costs a second read of each query result. Off by
+         * default. Type: boolean
+         */
+        public static final String EXTRA_MEASURE_BYTES = "measure_bytes";
+
+        /**
+         * Result of {@link #METHOD_GET_METRICS}: the upper bound in milliseconds of each bucket of
+         * the histograms, exclusive. The histograms have one more bucket, for the calls that took
+         * the last bound or longer. Type: long[]
+         */
+        public static final String EXTRA_METRICS_BUCKETS = "buckets_ms";
+
+        /** Metric of {@link #METHOD_GET_METRICS}: the number of calls. Type: long */
+        public static final String EXTRA_METRICS_COUNT = "count";
+
+        /** Metric of {@link #METHOD_GET_METRICS}: the time taken by all calls. Type: long */
+        public static final String EXTRA_METRICS_TOTAL_MICROS = "total_us";
+
+        /** Metric of {@link #METHOD_GET_METRICS}: the time taken by the slowest call. Type: long */
+        public static final String EXTRA_METRICS_MAX_MICROS = "max_us";
+
+        /** Metric of {@link #METHOD_GET_METRICS}: the rows read or written. Type: long */
+        public static final String EXTRA_METRICS_ROWS = "rows";
+
+        /**
+         * Metric of {@link #METHOD_GET_METRICS}: the bytes of the query results, written values,
+         * or files opened. Only counted for queries and writes when measuring bytes, see
+         * {@link #EXTRA_MEASURE_BYTES}. Type: long
+         */
+        public static final String EXTRA_METRICS_BYTES = "bytes";
+
+        /**
+         * Metric of {@link #METHOD_GET_METRICS}: the number of calls in each bucket of
+         * {@link #EXTRA_METRICS_BUCKETS}. Type: long[]
+         */
+        public static final String EXTRA_METRICS_HISTOGRAM = "histogram";
+
         /** Name for database table of items */
         public static final String TABLE_NAME = "items";
 
+        /**
+         * Name for the full-text index of the items' name and supplier. It is an FTS4 table whose
+         * docid is the item's _ID, kept up to date with the items table by triggers
+         */
+        public static final String SEARCH_TABLE_NAME = "items_search";
+
         /** The unique ID number for each product (only for use in the database table)
          * Type: INTEGER
          */
         public static final String _ID = BaseColumns._ID;
 
-        /** Image of the item */
+        /**
+         * Image of the item as JPEG bytes. This is not a column of the table: it is only accepted
+         * in the ContentValues given to insert/update. The provider saves the bytes into the
+         * {@link ImageStore} and keeps the reference in {@link #COLUMN_ITEM_IMAGE_REF}
+         */
         public static final String COLUMN_ITEM_IMAGE = "image";
 
+        /** Reference (content hash) of the item's image file in the {@link ImageStore}, or null
+         * if the item has no image and the placeholder is shown
+         * Type: TEXT
+         */
+        public static final String COLUMN_ITEM_IMAGE_REF = "image_ref";
+
+        /**
+         * Small version of the item's image as JPEG bytes, for the list. Like
+         * {@link #COLUMN_ITEM_IMAGE} it is only accepted in the ContentValues given to
+         * insert/update. If an image is given without a thumbnail, the provider makes one
+         */
+        public static final String COLUMN_ITEM_THUMBNAIL = "thumbnail";
+
+        /** Reference (content hash) of the item's thumbnail file in the {@link ImageStore}, or null
+         * if the item has no image and the placeholder is shown
+         * Type: TEXT
+         */
+        public static final String COLUMN_ITEM_THUMBNAIL_REF = "thumbnail_ref";
+
         /** Name of the item */
         public static final String COLUMN_ITEM_NAME = "name";
 
-        /** Supplier of the item */
+        /** Supplier of the item. Items without a supplier have an empty one, never null */
         public static final String COLUMN_ITEM_SUPPLIER = "supplier";
 
         /** Price of the item */
@@ -74,6 +327,95 @@ public final class ItemContract {
 
         /** Quantity of the item */
         public static final String COLUMN_ITEM_QUANTITY = "quantity";
+
+        /**
+         * Quantity at or below which the item should be reordered. Defaults to
+         * {@link #DEFAULT_REORDER_LEVEL}
+         * Type: INTEGER
+         */
+        public static final String COLUMN_ITEM_REORDER_LEVEL = "reorder_level";
+
+        /** Reorder level of items saved without one */
+        public static final int DEFAULT_REORDER_LEVEL = 5;
+
+        /**
+         * Quantity less reorder level, kept by the database and read only. Items are due to be
+         * reordered once it drops to 0. It is null for items saved before reorder levels were
+         * added, until the upgrade has worked it out for them in the background
+         * Type: INTEGER
+         */
+        public static final String COLUMN_ITEM_STOCK_MARGIN = "stock_margin";
     }
-}
 
+    /**
+     * Inner class that defines the summary of the whole inventory: a single row of totals over
+     * the items table, kept up to date by triggers as items are inserted, updated and deleted,
+     * so reading it doesn't scan the items
+     */
+    public static final class SummaryEntry implements BaseColumns {
+
+        /**
+         * The content URI to read the summary. It is notified of every change to the items.
+         * ie. content://com.example.android.inventory/items/summary
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(ItemEntry.CONTENT_URI, "summary");
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI}, a single row.
+         * ie. vnd.android.cursor.item/com.example.android.inventory/summary
+         */
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/summary";
+
+        /** Name for database table of the summary */
+        public static final String TABLE_NAME = "summary";
+
+        /** Number of items. Type: INTEGER */
+        public static final String COLUMN_ITEM_COUNT = "item_count";
+
+        /** Units in stock over all the items. Type: INTEGER */
+        public static final String COLUMN_TOTAL_UNITS = "total_units";
+
+        /** Value of the stock, the sum of price times quantity over all the items. Type: INTEGER */
+        public static final String COLUMN_TOTAL_VALUE = "total_value";
+
+        /** Number of items with none in stock. Type: INTEGER */
+        public static final String COLUMN_OUT_OF_STOCK_COUNT = "out_of_stock_count";
+
+        /**
+         * Number of items at or below their reorder level, those listed by
+         * {@link ItemEntry#LOW_STOCK_URI}, including any out of stock.
+         * Type: INTEGER
+         */
+        public static final String COLUMN_LOW_STOCK_COUNT = "low_stock_count";
+    }
+
+    /**
+     * Inner class that defines the suppliers of the items: each supplier once, case ignored, in
+     * alphabetical order, read from the index of the items by supplier rather than the items
+     * themselves. Items without a supplier are counted under an empty one
+     */
+    public static final class SupplierEntry implements BaseColumns {
+
+        /**
+         * The content URI to list the suppliers. It is notified of every change to the items.
+         * Neither a selection nor a sort order may be given
+         * ie. content://com.example.android.inventory/items/suppliers
+         */
+        public static final Uri CONTENT_URI =
+                Uri.withAppendedPath(ItemEntry.CONTENT_URI, "suppliers");
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI}, a list of suppliers.
+         * ie. vnd.android.cursor.dir/com.example.android.inventory/suppliers
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/suppliers";
+
+        /** Name of the supplier, as spelt by one of its items. Type: TEXT */
+        public static final String COLUMN_SUPPLIER_NAME = ItemEntry.COLUMN_ITEM_SUPPLIER;
+
+        /** Number of items of the supplier, {@link #_COUNT}. Type: INTEGER */
+        public static final String COLUMN_ITEM_COUNT = _COUNT;
+    }
+}
@@ -0,0 +1,258 @@
+package com.example.android.inventory.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.example.android.inventory.data.ItemContract.ItemEntry;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Imports items from, and exports them to, comma separated values with a header row naming the
+ * columns of {@link #COLUMNS}. Both stream: an import holds one chunk of
+ * {@link #ROWS_PER_CHUNK} items at a time, and an export one CursorWindow of the query, so
+ * memory use doesn't grow with the size of the file.
+ *
+ * An import writes each chunk through {@link ItemProvider#bulkInsert}, in a transaction of its
+ * own, and then reports how many records it has read. Passing that position to the next import
+ * of the same file carries on after the last chunk written. Neither may be run on the main thread.
+ */
+
+public final class ItemCsv {
+
+    private static final String LOG = ItemCsv.class.getSimpleName();
+
+    /** Columns of the file, in the order they are exported. Only name and price are required */
+    public static final String[] COLUMNS = {
+            ItemEntry.COLUMN_ITEM_NAME,
+            ItemEntry.COLUMN_ITEM_SUPPLIER,
+            ItemEntry.COLUMN_ITEM_PRICE,
+            ItemEntry.COLUMN_ITEM_QUANTITY,
+            ItemEntry.COLUMN_ITEM_REORDER_LEVEL };
+
+    /** Number of items inserted in each transaction of an import */
+    public static final int ROWS_PER_CHUNK = 500;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** Told of the progress of an import, on the thread running it */
+    public interface ImportListener {
+        /**
+         * Called after each chunk has been written
+         * @param position the number of records read so far, to resume the import from
+         * @param imported the number of items inserted so far by this import
+         * @param skipped the number of records skipped so far because they weren't valid items
+         * @return false to stop the import here
+         */
+        boolean onChunkImported(long position, int imported, int skipped);
+    }
+
+    /** How far an import got */
+    public static final class ImportResult {
+        /** The number of records read, to resume the import from if it isn't finished */
+        public final long position;
+        /** The number of items inserted */
+        public final int imported;
+        /** The number of records skipped because they weren't valid items */
+        public final int skipped;
+        /** Whether the whole file was read, rather than the listener stopping the import */
+        public final boolean finished;
+
+        ImportResult(long position, int imported, int skipped, boolean finished) {
+            this.position = position;
+            this.imported = imported;
+            this.skipped = skipped;
+            this.finished = finished;
+        }
+    }
+
+    private ItemCsv() {
+    }
+
+    /**
+     * Insert the items of the file
+     * @param in the file, in UTF-8. It is closed once read
+     * @param startPosition the position of an earlier import of the file to carry on from, or 0
+     * @param listener told of the progress, may be null
+     * @throws IOException if the file could not be read, or has no header naming the columns
+     * @throws IllegalArgumentException if the provider refused a chunk
+     */
+    public static ImportResult importItems(ContentResolver resolver, InputStream in,
+                                           long startPosition, ImportListener listener)
+            throws IOException {
+        CsvReader reader = new CsvReader(new BufferedReader(new InputStreamReader(in, UTF_8)));
+        try {
+            String[] header = reader.readRecord();
+            if (header == null) {
+                throw new IOException("The file is empty");
+            }
+            int[] columnIndexes = findColumns(header);
+
+            long position = 0;
+            while (position < startPosition && reader.readRecord() != null) {
+                position++;
+            }
+            int imported = 0;
+            int skipped = 0;
+            List<ContentValues> chunk = new ArrayList<>(ROWS_PER_CHUNK);
+            String[] record;
+            do {
+                int lineNumber = reader.getLineNumber();
+                record = reader.readRecord();
+                if (record != null) {
+                    position++;
+                    if (isBlank(record)) {
+                        continue;
+                    }
+                    ContentValues values = parseItem(record, columnIndexes);
+                    if (values == null) {
+                        Log.w(LOG, "Skipped the record on line " + lineNumber);
+                        skipped++;
+                    } else {
+                        chunk.add(values);
+                    }
+                }
+                if (chunk.size() == ROWS_PER_CHUNK || (record == null && !chunk.isEmpty())) {
+                    imported += resolver.bulkInsert(ItemEntry.CONTENT_URI,
+                            chunk.toArray(new ContentValues[chunk.size()]));
+                    chunk.clear();
+                    if (listener != null && !listener.onChunkImported(position, imported, skipped)
+                            && record != null) {
+                        return new ImportResult(position, imported, skipped, false);
+                    }
+                }
+            } while (record != null);
+            return new ImportResult(position, imported, skipped, true);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Write every item to the file, in order of _ID
+     * @param out the file, written in UTF-8. It is closed once written
+     * @return the number of items written
+     * @throws IOException if the file could not be written
+     */
+    public static int exportItems(ContentResolver resolver, OutputStream out) throws IOException {
+        CsvWriter writer = new CsvWriter(new BufferedWriter(new OutputStreamWriter(out, UTF_8)));
+        try {
+            writer.writeRecord(COLUMNS);
+            Cursor cursor = resolver.query(ItemEntry.CONTENT_URI, COLUMNS, null, null,
+                    ItemEntry._ID);
+            if (cursor == null) {
+                throw new IOException("Failed to query the items");
+            }
+            int count = 0;
+            try {
+                String[] fields = new String[COLUMNS.length];
+                while (cursor.moveToNext()) {
+                    for (int i = 0; i < fields.length; i++) {
+                        fields[i] = cursor.getString(i);
+                    }
+                    writer.writeRecord(fields);
+                    count++;
+                }
+            } finally {
+                cursor.close();
+            }
+            writer.flush();
+            return count;
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * @return the index in the record of each of {@link #COLUMNS}, or -1 for those missing.
+     * Columns are matched ignoring case and spaces, and others are ignored
+     */
+    private static int[] findColumns(String[] header) throws IOException {
+        int[] indexes = new int[COLUMNS.length];
+        for (int i = 0; i < COLUMNS.length; i++) {
+            indexes[i] = -1;
+            for (int j = 0; j < header.length; j++) {
+                if (COLUMNS[i].equals(header[j].trim().toLowerCase(Locale.ROOT))) {
+                    indexes[i] = j;
+                    break;
+                }
+            }
+        }
+        if (indexes[0] == -1 || indexes[2] == -1) {
+            throw new IOException("The header must name the " + ItemEntry.COLUMN_ITEM_NAME
+                    + " and " + ItemEntry.COLUMN_ITEM_PRICE + " columns");
+        }
+        return indexes;
+    }
+
+    /**
+     * @return the values of the item in the record, or null if it isn't a valid item. Records
+     * are checked here as the provider would, so one bad record doesn't fail its whole chunk
+     */
+    private static ContentValues parseItem(String[] record, int[] columnIndexes) {
+        String name = getField(record, columnIndexes[0]);
+        Integer price = parseCount(getField(record, columnIndexes[2]));
+        if (TextUtils.isEmpty(name) || price == null) {
+            return null;
+        }
+        ContentValues values = new ContentValues();
+        values.put(ItemEntry.COLUMN_ITEM_NAME, name);
+        values.put(ItemEntry.COLUMN_ITEM_PRICE, price);
+        String supplier = getField(record, columnIndexes[1]);
+        if (supplier != null) {
+            values.put(ItemEntry.COLUMN_ITEM_SUPPLIER, supplier);
+        }
+        String quantity = getField(record, columnIndexes[3]);
+        if (!TextUtils.isEmpty(quantity)) {
+            Integer count = parseCount(quantity);
+            if (count == null) {
+                return null;
+            }
+            values.put(ItemEntry.COLUMN_ITEM_QUANTITY, count);
+        }
+        String reorderLevel = getField(record, columnIndexes[4]);
+        if (!TextUtils.isEmpty(reorderLevel)) {
+            Integer count = parseCount(reorderLevel);
+            if (count == null) {
+                return null;
+            }
+            values.put(ItemEntry.COLUMN_ITEM_REORDER_LEVEL, count);
+        }
+        return values;
+    }
+
+    /** @return the trimmed field at the index, or null if the record doesn't have it */
+    private static String getField(String[] record, int index) {
+        return index >= 0 && index < record.length ? record[index].trim() : null;
+    }
+
+    /** @return the number, or null if it isn't a whole number of 0 or more */
+    private static Integer parseCount(String field) {
+        if (TextUtils.isEmpty(field) || !TextUtils.isDigitsOnly(field)) {
+            return null;
+        }
+        try {
+            return Integer.valueOf(field);
+        } catch (NumberFormatException e) {
+            // Too big for an int
+            return null;
+        }
+    }
+
+    private static boolean isBlank(String[] record) {
+        return record.length == 1 && record[0].trim().isEmpty();
+    }
+}
@@ -1,21 +1,50 @@
 package com.example.android.inventory.data;
 
+import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
 
 import com.example.android.inventory.data.ItemContract.ItemEntry;
+import com.example.android.inventory.data.ItemContract.SummaryEntry;
+
+import java.util.Locale;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * A class that accesses the SQLite database
  */
 
 public class ItemDbHelper extends SQLiteOpenHelper {
+
+    private static final String LOG = ItemDbHelper.class.getSimpleName();
+
     // If you change the database schema, you must increment the database version
-    public static final int DATABASE_VERSION = 1;
+    // Version 2: images moved out of the items table into the ImageStore
+    // Version 3: thumbnail_ref column for the list's thumbnails
+    // Version 4: full-text search table for name and supplier
+    // Version 5: reference counts of the image files, and no stored copies of the placeholder
+    // Version 6: summary table of totals over the items
+    // Version 7: reorder level of each item, and the indexed stock margin to find low stock
+    // Version 8: an index for each sort order of the list, and empty rather than null suppliers
+    public static final int DATABASE_VERSION = 8;
     public static final String DATABASE_NAME = "inventory.db";
 
-    private static final String SQL_DELETE_ENTRIES = "DROP TABLE IF EXISTS " + ItemEntry.TABLE_NAME;
+    /**
+     * Versions whose data migration adds up totals over the items. While one is in progress, the
+     * triggers keeping those totals only count the items it has already been through, see
+     * {@link #countedByMigration}
+     */
+    static final int VERSION_IMAGE_REF_COUNTS = 5;
+    static final int VERSION_SUMMARY = 6;
+
     // Creating schema for the inventory table in SQLite
     private static final String SQL_CREATE_ITEMS_TABLE = "CREATE TABLE " + ItemEntry.TABLE_NAME + " ("
             + ItemEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
@@ -23,22 +52,538 @@ public class ItemDbHelper extends SQLiteOpenHelper {
             + ItemEntry.COLUMN_ITEM_SUPPLIER + " TEXT, "
             + ItemEntry.COLUMN_ITEM_PRICE + " INTEGER NOT NULL, "
             + ItemEntry.COLUMN_ITEM_QUANTITY + " INTEGER NOT NULL DEFAULT 0, "
-            + ItemEntry.COLUMN_ITEM_IMAGE + " BLOB NOT NULL);";
+            + ItemEntry.COLUMN_ITEM_IMAGE_REF + " TEXT, "
+            + ItemEntry.COLUMN_ITEM_THUMBNAIL_REF + " TEXT, "
+            + ItemEntry.COLUMN_ITEM_REORDER_LEVEL + " INTEGER NOT NULL DEFAULT "
+            + ItemEntry.DEFAULT_REORDER_LEVEL + ", "
+            + ItemEntry.COLUMN_ITEM_STOCK_MARGIN + " INTEGER);";
+
+    // The version 2 schema, which the version 1 table is migrated into before later upgrades
+    static final String SQL_CREATE_ITEMS_TABLE_V2 = "CREATE TABLE " + ItemEntry.TABLE_NAME + " ("
+            + ItemEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + ItemEntry.COLUMN_ITEM_NAME + " TEXT NOT NULL, "
+            + ItemEntry.COLUMN_ITEM_SUPPLIER + " TEXT, "
+            + ItemEntry.COLUMN_ITEM_PRICE + " INTEGER NOT NULL, "
+            + ItemEntry.COLUMN_ITEM_QUANTITY + " INTEGER NOT NULL DEFAULT 0, "
+            + ItemEntry.COLUMN_ITEM_IMAGE_REF + " TEXT);";
+
+    // Full-text index of the name and supplier of each item, with the item's _ID as its docid
+    private static final String SQL_CREATE_SEARCH_TABLE = "CREATE VIRTUAL TABLE "
+            + ItemEntry.SEARCH_TABLE_NAME + " USING fts4("
+            + ItemEntry.COLUMN_ITEM_NAME + ", "
+            + ItemEntry.COLUMN_ITEM_SUPPLIER + ");";
+
+    // Triggers that keep the search table in step with the items table. Updates that don't touch
+    // the name or supplier, like sales, leave the search table alone
+    private static final String[] SQL_CREATE_SEARCH_TRIGGERS = {
+            "CREATE TRIGGER " + ItemEntry.SEARCH_TABLE_NAME + "_insert AFTER INSERT ON "
+                    + ItemEntry.TABLE_NAME + " BEGIN INSERT INTO " + ItemEntry.SEARCH_TABLE_NAME
+                    + "(docid, " + ItemEntry.COLUMN_ITEM_NAME + ", "
+                    + ItemEntry.COLUMN_ITEM_SUPPLIER + ") VALUES (new." + ItemEntry._ID
+                    + ", new." + ItemEntry.COLUMN_ITEM_NAME
+                    + ", new." + ItemEntry.COLUMN_ITEM_SUPPLIER + "); END;",
+            "CREATE TRIGGER " + ItemEntry.SEARCH_TABLE_NAME + "_update AFTER UPDATE OF "
+                    + ItemEntry.COLUMN_ITEM_NAME + ", " + ItemEntry.COLUMN_ITEM_SUPPLIER + " ON "
+                    + ItemEntry.TABLE_NAME + " BEGIN UPDATE " + ItemEntry.SEARCH_TABLE_NAME
+                    + " SET " + ItemEntry.COLUMN_ITEM_NAME + " = new." + ItemEntry.COLUMN_ITEM_NAME
+                    + ", " + ItemEntry.COLUMN_ITEM_SUPPLIER
+                    + " = new." + ItemEntry.COLUMN_ITEM_SUPPLIER
+                    + " WHERE docid = new." + ItemEntry._ID + "; END;",
+            "CREATE TRIGGER " + ItemEntry.SEARCH_TABLE_NAME + "_delete AFTER DELETE ON "
+                    + ItemEntry.TABLE_NAME + " BEGIN DELETE FROM " + ItemEntry.SEARCH_TABLE_NAME
+                    + " WHERE docid = old." + ItemEntry._ID + "; END;" };
+
+    /**
+     * Table of how many image_ref and thumbnail_ref columns refer to each file in the
+     * {@link ImageStore}. Files are named after the hash of their bytes, so items with identical
+     * pictures share one file, and it can be deleted once its count drops to 0. A null reference
+     * stands for the placeholder image, which isn't stored at all, so it isn't counted
+     */
+    static final String IMAGES_TABLE = "images";
+    static final String COLUMN_IMAGE_REF = "ref";
+    static final String COLUMN_IMAGE_REF_COUNT = "ref_count";
+    private static final String SQL_CREATE_IMAGES_TABLE = "CREATE TABLE " + IMAGES_TABLE + " ("
+            + COLUMN_IMAGE_REF + " TEXT PRIMARY KEY NOT NULL, "
+            + COLUMN_IMAGE_REF_COUNT + " INTEGER NOT NULL DEFAULT 0);";
+
+    /**
+     * Keeps image files from being deleted while they are being reused. Saving an image already
+     * in the store reuses its file, which isn't counted until the item referring to it has been
+     * written, so writers hold the read lock from saving their images until their rows are
+     * written. Files no item refers to are only deleted under the write lock
+     */
+    static final ReadWriteLock IMAGE_FILES_LOCK = new ReentrantReadWriteLock();
+
+    // Finds the files no longer used without scanning every image
+    private static final String SQL_CREATE_IMAGES_INDEX = "CREATE INDEX " + IMAGES_TABLE
+            + "_unreferenced ON " + IMAGES_TABLE + " (" + COLUMN_IMAGE_REF_COUNT + ");";
+
+    // Triggers that keep the counts in step with the items table. INSERT OR IGNORE skips the
+    // null references of the placeholder, since ref is NOT NULL. On update the new references are
+    // counted before the old ones are released, so an unchanged reference never drops to 0
+    private static final String[] SQL_CREATE_IMAGES_TRIGGERS = {
+            "CREATE TRIGGER " + IMAGES_TABLE + "_insert AFTER INSERT ON " + ItemEntry.TABLE_NAME
+                    + countedByMigration("new.", VERSION_IMAGE_REF_COUNTS)
+                    + " BEGIN " + addImageRef("new." + ItemEntry.COLUMN_ITEM_IMAGE_REF)
+                    + addImageRef("new." + ItemEntry.COLUMN_ITEM_THUMBNAIL_REF) + "END;",
+            "CREATE TRIGGER " + IMAGES_TABLE + "_update AFTER UPDATE OF "
+                    + ItemEntry.COLUMN_ITEM_IMAGE_REF + ", " + ItemEntry.COLUMN_ITEM_THUMBNAIL_REF
+                    + " ON " + ItemEntry.TABLE_NAME
+                    + countedByMigration("new.", VERSION_IMAGE_REF_COUNTS)
+                    + " BEGIN " + addImageRef("new." + ItemEntry.COLUMN_ITEM_IMAGE_REF)
+                    + addImageRef("new." + ItemEntry.COLUMN_ITEM_THUMBNAIL_REF)
+                    + releaseImageRef("old." + ItemEntry.COLUMN_ITEM_IMAGE_REF)
+                    + releaseImageRef("old." + ItemEntry.COLUMN_ITEM_THUMBNAIL_REF) + "END;",
+            "CREATE TRIGGER " + IMAGES_TABLE + "_delete AFTER DELETE ON " + ItemEntry.TABLE_NAME
+                    + countedByMigration("old.", VERSION_IMAGE_REF_COUNTS)
+                    + " BEGIN " + releaseImageRef("old." + ItemEntry.COLUMN_ITEM_IMAGE_REF)
+                    + releaseImageRef("old." + ItemEntry.COLUMN_ITEM_THUMBNAIL_REF) + "END;" };
+
+    // Finds the items at or below their reorder level with a range scan, most in need first.
+    // The margin is kept in a column since SQLite can't index an expression
+    private static final String STOCK_MARGIN_INDEX =
+            ItemEntry.TABLE_NAME + "_" + ItemEntry.COLUMN_ITEM_STOCK_MARGIN;
+
+    // Triggers that work out the stock margin of an item when it is saved, and again whenever its
+    // quantity or reorder level changes. Setting the margin doesn't fire any other trigger
+    private static final String[] SQL_CREATE_STOCK_MARGIN_TRIGGERS = {
+            "CREATE TRIGGER " + ItemEntry.COLUMN_ITEM_STOCK_MARGIN + "_insert AFTER INSERT ON "
+                    + ItemEntry.TABLE_NAME + " BEGIN " + setStockMargin() + "END;",
+            "CREATE TRIGGER " + ItemEntry.COLUMN_ITEM_STOCK_MARGIN + "_update AFTER UPDATE OF "
+                    + ItemEntry.COLUMN_ITEM_QUANTITY + ", " + ItemEntry.COLUMN_ITEM_REORDER_LEVEL
+                    + " ON " + ItemEntry.TABLE_NAME + " BEGIN " + setStockMargin() + "END;" };
+
+    // Single row of totals over the items table, with _ID 1
+    private static final String SQL_CREATE_SUMMARY_TABLE = "CREATE TABLE "
+            + SummaryEntry.TABLE_NAME + " ("
+            + SummaryEntry._ID + " INTEGER PRIMARY KEY, "
+            + SummaryEntry.COLUMN_ITEM_COUNT + " INTEGER NOT NULL, "
+            + SummaryEntry.COLUMN_TOTAL_UNITS + " INTEGER NOT NULL, "
+            + SummaryEntry.COLUMN_TOTAL_VALUE + " INTEGER NOT NULL, "
+            + SummaryEntry.COLUMN_OUT_OF_STOCK_COUNT + " INTEGER NOT NULL, "
+            + SummaryEntry.COLUMN_LOW_STOCK_COUNT + " INTEGER NOT NULL);";
+
+    // The summary row before any item has been added to it
+    private static final String SQL_INSERT_EMPTY_SUMMARY = "INSERT INTO "
+            + SummaryEntry.TABLE_NAME + " VALUES (1, 0, 0, 0, 0, 0);";
+
+    // Adds up the items in a range of _IDs, for the migration filling in the summary
+    private static final String SQL_SUM_ITEMS = "SELECT COUNT(*), "
+            + "IFNULL(SUM(" + ItemEntry.COLUMN_ITEM_QUANTITY + "), 0), "
+            + "IFNULL(SUM(" + ItemEntry.COLUMN_ITEM_PRICE + " * " + ItemEntry.COLUMN_ITEM_QUANTITY + "), 0), "
+            + "IFNULL(SUM(" + isOutOfStock("") + "), 0), "
+            + "IFNULL(SUM(" + isLowOnStock("") + "), 0) FROM " + ItemEntry.TABLE_NAME
+            + " WHERE " + ItemEntry._ID + " > ? AND " + ItemEntry._ID + " <= ?";
+
+    // Triggers that add each item to the totals, and take it off again. An update only changes
+    // the totals if it sets the price, quantity or reorder level
+    private static final String[] SQL_CREATE_SUMMARY_TRIGGERS = {
+            "CREATE TRIGGER " + SummaryEntry.TABLE_NAME + "_insert AFTER INSERT ON "
+                    + ItemEntry.TABLE_NAME + countedByMigration("new.", VERSION_SUMMARY)
+                    + " BEGIN " + changeSummary("new.", "+") + "END;",
+            "CREATE TRIGGER " + SummaryEntry.TABLE_NAME + "_update AFTER UPDATE OF "
+                    + ItemEntry.COLUMN_ITEM_PRICE + ", " + ItemEntry.COLUMN_ITEM_QUANTITY + ", "
+                    + ItemEntry.COLUMN_ITEM_REORDER_LEVEL + " ON " + ItemEntry.TABLE_NAME
+                    + countedByMigration("new.", VERSION_SUMMARY)
+                    + " BEGIN " + changeSummary("old.", "-") + changeSummary("new.", "+") + "END;",
+            "CREATE TRIGGER " + SummaryEntry.TABLE_NAME + "_delete AFTER DELETE ON "
+                    + ItemEntry.TABLE_NAME + countedByMigration("old.", VERSION_SUMMARY)
+                    + " BEGIN " + changeSummary("old.", "-") + "END;" };
+
+    /**
+     * Table of the migrations whose data is still to be moved, and where each one got to. A
+     * migration's row is updated in the same transaction as each chunk it moves, and deleted
+     * along with the last
+     */
+    private static final String MIGRATION_STATE_TABLE = "migration_state";
+    private static final String COLUMN_MIGRATION_VERSION = "version";
+    private static final String COLUMN_MIGRATION_POSITION = "position";
+    private static final String SQL_CREATE_MIGRATION_STATE_TABLE = "CREATE TABLE IF NOT EXISTS "
+            + MIGRATION_STATE_TABLE + " ("
+            + COLUMN_MIGRATION_VERSION + " INTEGER PRIMARY KEY, "
+            + COLUMN_MIGRATION_POSITION + " TEXT NOT NULL);";
+
+    /**
+     * Callback for the progress of {@link #runPendingMigrations}
+     */
+    public interface MigrationListener {
+        /**
+         * Called before each chunk of data is moved
+         * @param version the database version being migrated to
+         * @param done roughly how many rows have been moved so far
+         * @param total roughly how many rows there were to move
+         * @return false to stop, leaving the rest to the next call of runPendingMigrations
+         */
+        boolean onMigrationProgress(int version, int done, int total);
+
+        /** Called once all the data of a version has been moved */
+        void onMigrationFinished(int version);
+    }
+
+    private final Migration[] mMigrations;
 
     /** Default constructor */
-    public ItemDbHelper(Context context) { super(context, DATABASE_NAME, null, DATABASE_VERSION); }
+    public ItemDbHelper(Context context) {
+        this(context, DATABASE_NAME);
+    }
+
+    /** Constructor for a database file other than the app's own, for tests */
+    ItemDbHelper(Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
+        mMigrations = ItemMigrations.create(context);
+        // With write-ahead logging, writes go to a log file and readers keep reading the last
+        // committed state, so a sale doesn't block the list from being queried and vice versa.
+        // From API 16 this also gives the database a pool of connections for concurrent readers
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(true);
+        }
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (db.isReadOnly()) {
+            return;
+        }
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            db.enableWriteAheadLogging();
+        }
+        // In WAL mode the database stays consistent with a sync at each checkpoint rather than
+        // each commit. A power cut may lose the last few commits, but never corrupts the database
+        db.execSQL("PRAGMA synchronous=NORMAL");
+        db.execSQL(SQL_CREATE_MIGRATION_STATE_TABLE);
+    }
 
     @Override
     public void onCreate(SQLiteDatabase db) {
         //Execute the SQL statement
+        // The triggers keeping the totals read the migration state, so it comes first
+        db.execSQL(SQL_CREATE_MIGRATION_STATE_TABLE);
         db.execSQL(SQL_CREATE_ITEMS_TABLE);
+        createSearchTable(db);
+        createImagesTable(db);
+        createSummaryTable(db);
+        createSummaryTriggers(db);
+        createStockMarginTriggers(db);
+        createStockMarginIndex(db);
+        for (ItemSortOrder order : ItemSortOrder.values()) {
+            createSortIndex(db, order);
+        }
     }
 
+    /**
+     * Upgrade the schema one version at a time, so that no stock data is lost on the way. Only
+     * the schema is changed here, since the first call to the database waits for it: tables,
+     * columns and triggers, but nothing that reads every item, not even building an index. The
+     * data is moved and indexed afterwards, in the background, by {@link #runPendingMigrations}
+     */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // This database is only a cache for online data, so its upgrade policy is
-        // to simply to discard the data and start over
-        db.execSQL(SQL_DELETE_ENTRIES);
-        onCreate(db);
+        db.execSQL(SQL_CREATE_MIGRATION_STATE_TABLE);
+        for (Migration migration : mMigrations) {
+            int version = migration.getVersion();
+            if (version <= oldVersion || version > newVersion) {
+                continue;
+            }
+            migration.upgradeSchema(db);
+            if (migration.hasData()) {
+                ContentValues values = new ContentValues();
+                values.put(COLUMN_MIGRATION_VERSION, version);
+                values.put(COLUMN_MIGRATION_POSITION, "");
+                db.insertOrThrow(MIGRATION_STATE_TABLE, null, values);
+            }
+        }
+    }
+
+    /** @return true if there is data left to move after an upgrade */
+    public boolean hasPendingMigrations() {
+        return DatabaseUtils.queryNumEntries(getWritableDatabase(), MIGRATION_STATE_TABLE) > 0;
+    }
+
+    /**
+     * Move the data left over from upgrading the schema, one chunk per transaction, oldest
+     * version first. Each chunk is committed along with how far the migration got, so if the app
+     * is killed the next call carries on from there. This takes a while for a large inventory,
+     * so it must not be called on the main thread
+     * @param listener told of the progress, may be null
+     * @return true once all the data has been moved, false if the listener stopped it
+     */
+    public boolean runPendingMigrations(MigrationListener listener) {
+        SQLiteDatabase db = getWritableDatabase();
+        for (Migration migration : mMigrations) {
+            int version = migration.getVersion();
+            String position = getMigrationPosition(db, version);
+            if (position == null) {
+                continue;
+            }
+            int total = migration.countRemaining(db, position);
+            int done = 0;
+            long start = SystemClock.elapsedRealtime();
+            while (position != null) {
+                if (listener != null && !listener.onMigrationProgress(version, done, total)) {
+                    return false;
+                }
+                db.beginTransaction();
+                try {
+                    position = migration.migrateChunk(db, position);
+                    String[] whereArgs = { String.valueOf(version) };
+                    if (position == null) {
+                        db.delete(MIGRATION_STATE_TABLE, COLUMN_MIGRATION_VERSION + " = ?",
+                                whereArgs);
+                    } else {
+                        ContentValues values = new ContentValues();
+                        values.put(COLUMN_MIGRATION_POSITION, position);
+                        db.update(MIGRATION_STATE_TABLE, values,
+                                COLUMN_MIGRATION_VERSION + " = ?", whereArgs);
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                done = Math.min(total, done + migration.getRowsPerChunk());
+            }
+            Log.i(LOG, "Migrated data to version " + version + " in "
+                    + (SystemClock.elapsedRealtime() - start) + " ms");
+            if (listener != null) {
+                listener.onMigrationFinished(version);
+            }
+        }
+        return true;
+    }
+
+    /** @return true if the data migration to the version hasn't finished */
+    private static boolean isMigrationPending(SQLiteDatabase db, int version) {
+        return getMigrationPosition(db, version) != null;
+    }
+
+    /** @return where the data migration to the version got to, or null if it isn't pending */
+    private static String getMigrationPosition(SQLiteDatabase db, int version) {
+        Cursor cursor = db.query(MIGRATION_STATE_TABLE, new String[] { COLUMN_MIGRATION_POSITION },
+                COLUMN_MIGRATION_VERSION + " = ?", new String[] { String.valueOf(version) },
+                null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    static void createSearchTable(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_SEARCH_TABLE);
+        for (String trigger : SQL_CREATE_SEARCH_TRIGGERS) {
+            db.execSQL(trigger);
+        }
+    }
+
+    static void createImagesTable(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_IMAGES_TABLE);
+        db.execSQL(SQL_CREATE_IMAGES_INDEX);
+        for (String trigger : SQL_CREATE_IMAGES_TRIGGERS) {
+            db.execSQL(trigger);
+        }
+    }
+
+    /**
+     * Create the summary with every total at 0. The items already saved are added to it by
+     * {@link #addToSummary}, and the triggers keep it up to date from then on
+     */
+    static void createSummaryTable(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_SUMMARY_TABLE);
+        db.execSQL(SQL_INSERT_EMPTY_SUMMARY);
+    }
+
+    /** The triggers read the reorder level, so can only be added once items have one */
+    static void createSummaryTriggers(SQLiteDatabase db) {
+        for (String trigger : SQL_CREATE_SUMMARY_TRIGGERS) {
+            db.execSQL(trigger);
+        }
+    }
+
+    /**
+     * Add the items with an _ID after afterId and up to lastId to the summary's totals
+     * @param afterId the last _ID already added
+     */
+    static void addToSummary(SQLiteDatabase db, String afterId, String lastId) {
+        Cursor cursor = db.rawQuery(SQL_SUM_ITEMS, new String[] { afterId, lastId });
+        try {
+            cursor.moveToFirst();
+            db.execSQL("UPDATE " + SummaryEntry.TABLE_NAME + " SET "
+                    + SummaryEntry.COLUMN_ITEM_COUNT + " = " + SummaryEntry.COLUMN_ITEM_COUNT + " + ?, "
+                    + SummaryEntry.COLUMN_TOTAL_UNITS + " = " + SummaryEntry.COLUMN_TOTAL_UNITS + " + ?, "
+                    + SummaryEntry.COLUMN_TOTAL_VALUE + " = " + SummaryEntry.COLUMN_TOTAL_VALUE + " + ?, "
+                    + SummaryEntry.COLUMN_OUT_OF_STOCK_COUNT + " = "
+                    + SummaryEntry.COLUMN_OUT_OF_STOCK_COUNT + " + ?, "
+                    + SummaryEntry.COLUMN_LOW_STOCK_COUNT + " = "
+                    + SummaryEntry.COLUMN_LOW_STOCK_COUNT + " + ?"
+                    + " WHERE " + SummaryEntry._ID + " = 1", new Object[] { cursor.getLong(0),
+                    cursor.getLong(1), cursor.getLong(2), cursor.getLong(3), cursor.getLong(4) });
+        } finally {
+            cursor.close();
+        }
+    }
+
+    static void createStockMarginTriggers(SQLiteDatabase db) {
+        for (String trigger : SQL_CREATE_STOCK_MARGIN_TRIGGERS) {
+            db.execSQL(trigger);
+        }
+    }
+
+    /** @return true if the index was created, false if it already existed */
+    static boolean createStockMarginIndex(SQLiteDatabase db) {
+        return createIndex(db, STOCK_MARGIN_INDEX, ItemEntry.COLUMN_ITEM_STOCK_MARGIN);
+    }
+
+    /**
+     * Index the key columns of a sort order, so a page in that order is read straight from the
+     * index with no sort step. The ID order is the table's own, so it needs none. The supplier
+     * index also serves the supplier filter: the items of one supplier are a range of it, in
+     * name order
+     * @return true if the index was created, false if it already existed or isn't needed
+     */
+    static boolean createSortIndex(SQLiteDatabase db, ItemSortOrder order) {
+        return order != ItemSortOrder.ID && createIndex(db, ItemEntry.TABLE_NAME + "_sort_"
+                + order.name().toLowerCase(Locale.ROOT), order.getIndexColumns());
+    }
+
+    /**
+     * Index the items table, unless the index already exists. Building it reads every item, so
+     * on upgrade it is done by a migration's chunk, never by onUpgrade
+     * @return true if the index was created
+     */
+    private static boolean createIndex(SQLiteDatabase db, String name, String columns) {
+        if (DatabaseUtils.queryNumEntries(db, "sqlite_master", "type = 'index' AND name = ?",
+                new String[] { name }) > 0) {
+            return false;
+        }
+        db.execSQL("CREATE INDEX " + name + " ON " + ItemEntry.TABLE_NAME + " (" + columns + ");");
+        return true;
+    }
+
+    /**
+     * Delete the image files whose reference count has dropped to 0, along with their counts.
+     * Until the migration counting the references of the items already saved has finished, a
+     * count of 0 may only mean the items using the file haven't been counted yet, so nothing is
+     * deleted; the migration deletes them once it is done
+     * @return the number of files deleted
+     */
+    static int deleteUnreferencedImages(SQLiteDatabase db, ImageStore imageStore) {
+        if (isMigrationPending(db, VERSION_IMAGE_REF_COUNTS)) {
+            return 0;
+        }
+        return deleteImagesCountedUnused(db, imageStore);
+    }
+
+    /**
+     * Count an image file that may no longer have an item referring to it, such as one saved for
+     * a write that was then rolled back. The next deleteUnreferencedImages removes it if it is
+     * unused
+     */
+    static void countDiscardedImage(SQLiteDatabase db, String ref) {
+        db.execSQL("INSERT OR IGNORE INTO " + IMAGES_TABLE + " (" + COLUMN_IMAGE_REF
+                + ") VALUES (?)", new Object[] { ref });
+    }
+
+    /**
+     * Delete the image files whose reference count is 0, whether or not every item is counted.
+     * If an image is being saved meanwhile, see {@link #IMAGE_FILES_LOCK}, nothing is deleted:
+     * the caller may be in a transaction the writer is waiting for, so waiting here could
+     * deadlock, and the files are deleted the next time instead
+     */
+    static int deleteImagesCountedUnused(SQLiteDatabase db, ImageStore imageStore) {
+        Lock lock = IMAGE_FILES_LOCK.writeLock();
+        if (!lock.tryLock()) {
+            return 0;
+        }
+        int deleted = 0;
+        try {
+            Cursor cursor = db.query(IMAGES_TABLE, new String[] { COLUMN_IMAGE_REF },
+                    COLUMN_IMAGE_REF_COUNT + " <= 0", null, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    String ref = cursor.getString(0);
+                    // Only delete the file if the image hasn't been used again since the query
+                    if (db.delete(IMAGES_TABLE, COLUMN_IMAGE_REF + " = ? AND "
+                            + COLUMN_IMAGE_REF_COUNT + " <= 0", new String[] { ref }) == 1) {
+                        imageStore.delete(ref);
+                        deleted++;
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        } finally {
+            lock.unlock();
+        }
+        return deleted;
+    }
+
+    /**
+     * @param row "new." or "old." for the row of a trigger
+     * @return the WHEN clause of a trigger keeping a total over the items up to date, so it only
+     * counts the rows the data migration to the version has already added up. The migration
+     * goes through the items in order of _ID, and adds up each as it is at the time, so it
+     * mustn't also be counted beforehand. Once the migration has finished, or if it never had to
+     * run, every row is counted
+     */
+    private static String countedByMigration(String row, int version) {
+        return " WHEN " + row + ItemEntry._ID + " <= IFNULL((SELECT CAST("
+                + COLUMN_MIGRATION_POSITION + " AS INTEGER) FROM " + MIGRATION_STATE_TABLE
+                + " WHERE " + COLUMN_MIGRATION_VERSION + " = " + version + "), "
+                + Long.MAX_VALUE + ")";
+    }
+
+    private static String addImageRef(String ref) {
+        return "INSERT OR IGNORE INTO " + IMAGES_TABLE + " (" + COLUMN_IMAGE_REF + ") VALUES ("
+                + ref + "); UPDATE " + IMAGES_TABLE + " SET " + COLUMN_IMAGE_REF_COUNT + " = "
+                + COLUMN_IMAGE_REF_COUNT + " + 1 WHERE " + COLUMN_IMAGE_REF + " = " + ref + "; ";
+    }
+
+    private static String releaseImageRef(String ref) {
+        return "UPDATE " + IMAGES_TABLE + " SET " + COLUMN_IMAGE_REF_COUNT + " = "
+                + COLUMN_IMAGE_REF_COUNT + " - 1 WHERE " + COLUMN_IMAGE_REF + " = " + ref + "; ";
+    }
+
+    /** @return the statement of a trigger setting the stock margin of the new row */
+    private static String setStockMargin() {
+        return "UPDATE " + ItemEntry.TABLE_NAME + " SET " + ItemEntry.COLUMN_ITEM_STOCK_MARGIN
+                + " = new." + ItemEntry.COLUMN_ITEM_QUANTITY
+                + " - new." + ItemEntry.COLUMN_ITEM_REORDER_LEVEL
+                + " WHERE " + ItemEntry._ID + " = new." + ItemEntry._ID + "; ";
+    }
+
+    /**
+     * @param row "new." or "old." for the row of a trigger
+     * @param sign "+" to add the row to the totals, "-" to take it off
+     */
+    private static String changeSummary(String row, String sign) {
+        return "UPDATE " + SummaryEntry.TABLE_NAME + " SET "
+                + SummaryEntry.COLUMN_ITEM_COUNT + " = " + SummaryEntry.COLUMN_ITEM_COUNT
+                + " " + sign + " 1, "
+                + SummaryEntry.COLUMN_TOTAL_UNITS + " = " + SummaryEntry.COLUMN_TOTAL_UNITS
+                + " " + sign + " " + row + ItemEntry.COLUMN_ITEM_QUANTITY + ", "
+                + SummaryEntry.COLUMN_TOTAL_VALUE + " = " + SummaryEntry.COLUMN_TOTAL_VALUE
+                + " " + sign + " " + row + ItemEntry.COLUMN_ITEM_PRICE
+                + " * " + row + ItemEntry.COLUMN_ITEM_QUANTITY + ", "
+                + SummaryEntry.COLUMN_OUT_OF_STOCK_COUNT + " = "
+                + SummaryEntry.COLUMN_OUT_OF_STOCK_COUNT + " " + sign + " " + isOutOfStock(row) + ", "
+                + SummaryEntry.COLUMN_LOW_STOCK_COUNT + " = "
+                + SummaryEntry.COLUMN_LOW_STOCK_COUNT + " " + sign + " " + isLowOnStock(row)
+                + " WHERE " + SummaryEntry._ID + " = 1; ";
+    }
+
+    /** @return an expression that is 1 if the row has none in stock, otherwise 0 */
+    private static String isOutOfStock(String row) {
+        return "(" + row + ItemEntry.COLUMN_ITEM_QUANTITY + " <= 0)";
+    }
+
+    /**
+     * @return an expression that is 1 if the row's stock margin is 0 or less, the same items as
+     * {@link ItemEntry#LOW_STOCK_URI} lists, otherwise 0. The margin is worked out from the row
+     * rather than read, since it is null until the upgrade has set it, and a trigger may run
+     * before the one setting it
+     */
+    private static String isLowOnStock(String row) {
+        return "(" + row + ItemEntry.COLUMN_ITEM_QUANTITY + " - " + row
+                + ItemEntry.COLUMN_ITEM_REORDER_LEVEL + " <= 0)";
     }
 }
@@ -0,0 +1,670 @@
+package com.example.android.inventory.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import com.example.android.inventory.R;
+import com.example.android.inventory.data.ItemContract.ItemEntry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The {@link Migration}s that take the inventory database from each version to the next
+ */
+
+final class ItemMigrations {
+
+    private static final String LOG = ItemMigrations.class.getSimpleName();
+
+    /** Name the version 1 items table (with images as BLOBs) is renamed to while it is migrated */
+    static final String V1_ITEMS_TABLE = "items_v1";
+
+    /** Number of bytes of a version 1 image BLOB read per query, well under the CursorWindow size */
+    private static final int BLOB_BYTES_PER_READ = 256 * 1024;
+
+    private ItemMigrations() {}
+
+    /** @return every migration, in version order */
+    static Migration[] create(Context context) {
+        ImageStore imageStore = new ImageStore(context);
+        return new Migration[] {
+                new MoveImagesToStore(imageStore),
+                new AddThumbnails(imageStore),
+                new AddSearchIndex(),
+                new CountImageReferences(context, imageStore),
+                new AddSummary(),
+                new AddReorderLevels(),
+                new AddSortIndexes() };
+    }
+
+    /**
+     * Version 2: move the image BLOBs out into the {@link ImageStore}.
+     * The BLOB column can't be dropped, so the version 1 table is renamed and a new, empty items
+     * table is made in its place. The rows are then moved across in order of _ID: the other
+     * columns are copied, the image streamed into its file, and the row deleted from the old
+     * table, a chunk at a time. Reading the other columns doesn't touch the BLOBs, which are kept
+     * in overflow pages at the end of each row, so a chunk takes many rows but only a few images.
+     * Items show in the list as their chunk is moved. Once the old table is empty it is dropped.
+     */
+    private static class MoveImagesToStore extends Migration {
+        /** The most images moved in one chunk, however few rows that is */
+        private static final int IMAGES_PER_CHUNK = 8;
+
+        private static final String COLUMNS = ItemEntry._ID + ", "
+                + ItemEntry.COLUMN_ITEM_NAME + ", "
+                + ItemEntry.COLUMN_ITEM_SUPPLIER + ", "
+                + ItemEntry.COLUMN_ITEM_PRICE + ", "
+                + ItemEntry.COLUMN_ITEM_QUANTITY;
+
+        private final ImageStore mImageStore;
+
+        MoveImagesToStore(ImageStore imageStore) {
+            super(2, 500);
+            mImageStore = imageStore;
+        }
+
+        @Override
+        void upgradeSchema(SQLiteDatabase db) {
+            db.execSQL("ALTER TABLE " + ItemEntry.TABLE_NAME + " RENAME TO " + V1_ITEMS_TABLE);
+            db.execSQL(ItemDbHelper.SQL_CREATE_ITEMS_TABLE_V2);
+            // Carry on numbering new items after the old ones, even those deleted since
+            db.execSQL("INSERT INTO sqlite_sequence (name, seq) SELECT '" + ItemEntry.TABLE_NAME
+                    + "', seq FROM sqlite_sequence WHERE name = '" + V1_ITEMS_TABLE + "'");
+        }
+
+        @Override
+        boolean hasData() {
+            return true;
+        }
+
+        @Override
+        int countRemaining(SQLiteDatabase db, String position) {
+            return (int) DatabaseUtils.queryNumEntries(db, V1_ITEMS_TABLE);
+        }
+
+        @Override
+        String migrateChunk(SQLiteDatabase db, String position) {
+            // The rows of the chunk, up to the one with the last image the chunk takes
+            List<Long> imageIds = new ArrayList<>();
+            List<Long> imageLengths = new ArrayList<>();
+            long lastId = -1;
+            Cursor cursor = db.rawQuery("SELECT " + ItemEntry._ID + ", "
+                    + "length(" + ItemEntry.COLUMN_ITEM_IMAGE + ")"
+                    + " FROM " + V1_ITEMS_TABLE
+                    + " ORDER BY " + ItemEntry._ID
+                    + " LIMIT " + getRowsPerChunk(), null);
+            try {
+                while (imageIds.size() < IMAGES_PER_CHUNK && cursor.moveToNext()) {
+                    lastId = cursor.getLong(0);
+                    long imageLength = cursor.getLong(1);
+                    if (imageLength > 0) {
+                        imageIds.add(lastId);
+                        imageLengths.add(imageLength);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+            if (lastId == -1) {
+                db.execSQL("DROP TABLE " + V1_ITEMS_TABLE);
+                return null;
+            }
+
+            String[] chunkArgs = { String.valueOf(lastId) };
+            db.execSQL("INSERT INTO " + ItemEntry.TABLE_NAME + " (" + COLUMNS + ") SELECT "
+                    + COLUMNS + " FROM " + V1_ITEMS_TABLE + " WHERE " + ItemEntry._ID + " <= ?",
+                    chunkArgs);
+            for (int i = 0; i < imageIds.size(); i++) {
+                moveImage(db, imageIds.get(i), imageLengths.get(i));
+            }
+            db.delete(V1_ITEMS_TABLE, ItemEntry._ID + " <= ?", chunkArgs);
+            // The rows left in the old table are where to carry on from
+            return "";
+        }
+
+        private void moveImage(SQLiteDatabase db, long id, long imageLength) {
+            try {
+                String ref = mImageStore.put(new BlobInputStream(db, V1_ITEMS_TABLE,
+                        ItemEntry.COLUMN_ITEM_IMAGE, id, imageLength));
+                ContentValues values = new ContentValues();
+                values.put(ItemEntry.COLUMN_ITEM_IMAGE_REF, ref);
+                // The item may have been given a new image since the old table was renamed
+                db.update(ItemEntry.TABLE_NAME, values, ItemEntry._ID + " = ? AND "
+                        + ItemEntry.COLUMN_ITEM_IMAGE_REF + " IS NULL",
+                        new String[] { String.valueOf(id) });
+            } catch (IOException e) {
+                // Keep the item even if its image can't be saved
+                Log.e(LOG, "Failed to move image of item " + id, e);
+            }
+        }
+    }
+
+    /**
+     * Version 3: add the thumbnail column, and make thumbnails for the images already saved, going
+     * through the items in order of _ID. Decoding is slow, so a chunk takes many rows but only
+     * decodes a few images. Items sharing an image share its thumbnail, so the thumbnails of the
+     * images decoded last are remembered, and each shared image is only decoded once. Items saved
+     * since the upgrade already have their thumbnail, so they are skipped
+     */
+    private static class AddThumbnails extends Migration {
+        /** The most images decoded in one chunk, however few rows that is */
+        private static final int IMAGES_PER_CHUNK = 8;
+
+        /** Number of images whose thumbnail is remembered for the items after them */
+        private static final int THUMBNAILS_REMEMBERED = 64;
+
+        private static final String NEEDS_THUMBNAIL = ItemEntry._ID + " > ? AND "
+                + ItemEntry.COLUMN_ITEM_IMAGE_REF + " IS NOT NULL AND "
+                + ItemEntry.COLUMN_ITEM_THUMBNAIL_REF + " IS NULL";
+
+        private final ImageStore mImageStore;
+
+        /** Thumbnail reference of each image decoded last, by image reference, null if it failed */
+        private final Map<String, String> mThumbnailRefs =
+                new LinkedHashMap<String, String>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                        return size() > THUMBNAILS_REMEMBERED;
+                    }
+                };
+
+        AddThumbnails(ImageStore imageStore) {
+            super(3, 500);
+            mImageStore = imageStore;
+        }
+
+        @Override
+        void upgradeSchema(SQLiteDatabase db) {
+            db.execSQL("ALTER TABLE " + ItemEntry.TABLE_NAME + " ADD COLUMN "
+                    + ItemEntry.COLUMN_ITEM_THUMBNAIL_REF + " TEXT");
+        }
+
+        @Override
+        boolean hasData() {
+            return true;
+        }
+
+        @Override
+        int countRemaining(SQLiteDatabase db, String position) {
+            return (int) DatabaseUtils.queryNumEntries(db, ItemEntry.TABLE_NAME, NEEDS_THUMBNAIL,
+                    new String[] { getLastId(position) });
+        }
+
+        @Override
+        String migrateChunk(SQLiteDatabase db, String position) {
+            List<Long> ids = new ArrayList<>();
+            List<String> imageRefs = new ArrayList<>();
+            Cursor cursor = db.query(ItemEntry.TABLE_NAME,
+                    new String[] { ItemEntry._ID, ItemEntry.COLUMN_ITEM_IMAGE_REF },
+                    NEEDS_THUMBNAIL, new String[] { getLastId(position) },
+                    null, null, ItemEntry._ID, String.valueOf(getRowsPerChunk()));
+            try {
+                while (cursor.moveToNext()) {
+                    ids.add(cursor.getLong(0));
+                    imageRefs.add(cursor.getString(1));
+                }
+            } finally {
+                cursor.close();
+            }
+            if (ids.isEmpty()) {
+                return null;
+            }
+
+            long lastId = -1;
+            int decoded = 0;
+            ContentValues values = new ContentValues();
+            for (int i = 0; i < ids.size(); i++) {
+                String imageRef = imageRefs.get(i);
+                if (!mThumbnailRefs.containsKey(imageRef)) {
+                    if (decoded == IMAGES_PER_CHUNK) {
+                        // The next chunk carries on from this item
+                        break;
+                    }
+                    mThumbnailRefs.put(imageRef, saveThumbnail(imageRef));
+                    decoded++;
+                }
+                lastId = ids.get(i);
+                String thumbnailRef = mThumbnailRefs.get(imageRef);
+                if (thumbnailRef != null) {
+                    values.put(ItemEntry.COLUMN_ITEM_THUMBNAIL_REF, thumbnailRef);
+                    db.update(ItemEntry.TABLE_NAME, values, ItemEntry._ID + " = ? AND "
+                            + ItemEntry.COLUMN_ITEM_THUMBNAIL_REF + " IS NULL",
+                            new String[] { String.valueOf(lastId) });
+                }
+            }
+            return String.valueOf(lastId);
+        }
+
+        /**
+         * @return the reference of the image's new thumbnail, or null if it couldn't be made, in
+         * which case the list shows the placeholder for the items with the image
+         */
+        private String saveThumbnail(String imageRef) {
+            byte[] thumbnail = Utils.createThumbnailByteArray(mImageStore.getFile(imageRef));
+            if (thumbnail == null) {
+                return null;
+            }
+            try {
+                return mImageStore.put(thumbnail);
+            } catch (IOException e) {
+                Log.e(LOG, "Failed to save thumbnail of image " + imageRef, e);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Version 4: add the full-text search table, and index the items already saved in order of
+     * _ID. Items saved since the upgrade are indexed by the triggers, so they are skipped
+     */
+    private static class AddSearchIndex extends Migration {
+
+        AddSearchIndex() {
+            super(4, 500);
+        }
+
+        @Override
+        void upgradeSchema(SQLiteDatabase db) {
+            ItemDbHelper.createSearchTable(db);
+        }
+
+        @Override
+        boolean hasData() {
+            return true;
+        }
+
+        @Override
+        int countRemaining(SQLiteDatabase db, String position) {
+            return countItemsAfter(db, position);
+        }
+
+        @Override
+        String migrateChunk(SQLiteDatabase db, String position) {
+            String lastId = getLastId(position);
+            String chunkEnd = findChunkEnd(db, lastId, getRowsPerChunk());
+            if (chunkEnd == null) {
+                return null;
+            }
+            db.execSQL("INSERT INTO " + ItemEntry.SEARCH_TABLE_NAME + " (docid, "
+                    + ItemEntry.COLUMN_ITEM_NAME + ", " + ItemEntry.COLUMN_ITEM_SUPPLIER + ")"
+                    + " SELECT " + ItemEntry._ID + ", " + ItemEntry.COLUMN_ITEM_NAME + ", "
+                    + ItemEntry.COLUMN_ITEM_SUPPLIER + " FROM " + ItemEntry.TABLE_NAME
+                    + " WHERE " + ItemEntry._ID + " > ? AND " + ItemEntry._ID + " <= ?"
+                    + " AND NOT EXISTS (SELECT 1 FROM " + ItemEntry.SEARCH_TABLE_NAME
+                    + " WHERE docid = " + ItemEntry.TABLE_NAME + "." + ItemEntry._ID + ")",
+                    new Object[] { lastId, chunkEnd });
+            return chunkEnd;
+        }
+    }
+
+    /**
+     * Version 5: add the reference count of each image file, and count the references of the
+     * items already saved in order of _ID, a chunk at a time. The triggers only count the items
+     * already gone through, see {@link ItemDbHelper#countedByMigration}, and no file is deleted
+     * until every item has been counted. Items saved before this version were each given their
+     * own copy of the placeholder image. They all share one file since it is the same bytes, but
+     * the placeholder is now shown for items without an image instead, so their references are
+     * cleared as each chunk is counted, and the placeholder's files deleted at the end. Its
+     * references are found by encoding it once, the way it used to be encoded when an item was
+     * saved
+     */
+    private static class CountImageReferences extends Migration {
+        /** JPEG quality the placeholder used to be saved at */
+        private static final int PLACEHOLDER_QUALITY = 100;
+
+        private final Context mContext;
+        private final ImageStore mImageStore;
+
+        /** Reference of the placeholder's stored copies, once it has been encoded */
+        private String mPlaceholderRef;
+
+        CountImageReferences(Context context, ImageStore imageStore) {
+            super(ItemDbHelper.VERSION_IMAGE_REF_COUNTS, 500);
+            mContext = context;
+            mImageStore = imageStore;
+        }
+
+        @Override
+        void upgradeSchema(SQLiteDatabase db) {
+            ItemDbHelper.createImagesTable(db);
+        }
+
+        @Override
+        boolean hasData() {
+            return true;
+        }
+
+        @Override
+        int countRemaining(SQLiteDatabase db, String position) {
+            return countItemsAfter(db, position);
+        }
+
+        @Override
+        String migrateChunk(SQLiteDatabase db, String position) {
+            String placeholderRef = getPlaceholderRef();
+            String lastId = getLastId(position);
+            String chunkEnd = findChunkEnd(db, lastId, getRowsPerChunk());
+            if (chunkEnd == null) {
+                if (placeholderRef != null) {
+                    // The placeholder's file was saved again to find its reference, so make sure
+                    // it is counted, to be deleted along with any other file no item uses
+                    ItemDbHelper.countDiscardedImage(db, placeholderRef);
+                }
+                ItemDbHelper.deleteImagesCountedUnused(db, mImageStore);
+                return null;
+            }
+            String inChunk = ItemEntry._ID + " > ? AND " + ItemEntry._ID + " <= ?";
+            String[] chunkArgs = { lastId, chunkEnd };
+            if (placeholderRef != null) {
+                // Thumbnails were made from the image, so the thumbnail goes along with it. Its
+                // file is counted, so it is deleted at the end along with the placeholder's
+                Cursor thumbnails = db.query(true, ItemEntry.TABLE_NAME,
+                        new String[] { ItemEntry.COLUMN_ITEM_THUMBNAIL_REF }, inChunk + " AND "
+                                + ItemEntry.COLUMN_ITEM_IMAGE_REF + " = ? AND "
+                                + ItemEntry.COLUMN_ITEM_THUMBNAIL_REF + " IS NOT NULL",
+                        new String[] { lastId, chunkEnd, placeholderRef }, null, null, null, null);
+                try {
+                    while (thumbnails.moveToNext()) {
+                        ItemDbHelper.countDiscardedImage(db, thumbnails.getString(0));
+                    }
+                } finally {
+                    thumbnails.close();
+                }
+                ContentValues values = new ContentValues();
+                values.putNull(ItemEntry.COLUMN_ITEM_IMAGE_REF);
+                values.putNull(ItemEntry.COLUMN_ITEM_THUMBNAIL_REF);
+                db.update(ItemEntry.TABLE_NAME, values, inChunk + " AND "
+                        + ItemEntry.COLUMN_ITEM_IMAGE_REF + " = ?",
+                        new String[] { lastId, chunkEnd, placeholderRef });
+            }
+
+            Map<String, Integer> counts = new HashMap<>();
+            Cursor cursor = db.query(ItemEntry.TABLE_NAME, new String[] {
+                    ItemEntry.COLUMN_ITEM_IMAGE_REF, ItemEntry.COLUMN_ITEM_THUMBNAIL_REF },
+                    inChunk, chunkArgs, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    for (int column = 0; column < 2; column++) {
+                        if (!cursor.isNull(column)) {
+                            String ref = cursor.getString(column);
+                            Integer count = counts.get(ref);
+                            counts.put(ref, count == null ? 1 : count + 1);
+                        }
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+            for (Map.Entry<String, Integer> count : counts.entrySet()) {
+                db.execSQL("INSERT OR IGNORE INTO " + ItemDbHelper.IMAGES_TABLE + " ("
+                        + ItemDbHelper.COLUMN_IMAGE_REF + ") VALUES (?)",
+                        new Object[] { count.getKey() });
+                db.execSQL("UPDATE " + ItemDbHelper.IMAGES_TABLE + " SET "
+                        + ItemDbHelper.COLUMN_IMAGE_REF_COUNT + " = "
+                        + ItemDbHelper.COLUMN_IMAGE_REF_COUNT + " + ? WHERE "
+                        + ItemDbHelper.COLUMN_IMAGE_REF + " = ?",
+                        new Object[] { count.getValue(), count.getKey() });
+            }
+            return chunkEnd;
+        }
+
+        /**
+         * @return the reference the placeholder was stored under, or null if it can't be encoded,
+         * in which case its copies stay as ordinary images, which is what they looked like before
+         */
+        private String getPlaceholderRef() {
+            if (mPlaceholderRef == null) {
+                Bitmap placeholder = BitmapFactory.decodeResource(mContext.getResources(),
+                        R.drawable.placeholder_thumbnail);
+                ByteArrayOutputStream placeholderBytes = new ByteArrayOutputStream();
+                placeholder.compress(Bitmap.CompressFormat.JPEG, PLACEHOLDER_QUALITY,
+                        placeholderBytes);
+                placeholder.recycle();
+                try {
+                    mPlaceholderRef = mImageStore.put(placeholderBytes.toByteArray());
+                } catch (IOException e) {
+                    Log.e(LOG, "Failed to encode the placeholder image", e);
+                }
+            }
+            return mPlaceholderRef;
+        }
+    }
+
+    /**
+     * Version 6: add the summary table, with every total at 0, and add the items already saved
+     * to it in order of _ID, a chunk at a time. The triggers keeping the totals, which only
+     * count the items already gone through, see {@link ItemDbHelper#countedByMigration}, are
+     * added by version 7, since the low stock count reads the reorder level. Until the migration
+     * is done the totals leave out the items it hasn't reached
+     */
+    private static class AddSummary extends Migration {
+
+        AddSummary() {
+            super(ItemDbHelper.VERSION_SUMMARY, 2000);
+        }
+
+        @Override
+        void upgradeSchema(SQLiteDatabase db) {
+            ItemDbHelper.createSummaryTable(db);
+        }
+
+        @Override
+        boolean hasData() {
+            return true;
+        }
+
+        @Override
+        int countRemaining(SQLiteDatabase db, String position) {
+            return countItemsAfter(db, position);
+        }
+
+        @Override
+        String migrateChunk(SQLiteDatabase db, String position) {
+            String lastId = getLastId(position);
+            String chunkEnd = findChunkEnd(db, lastId, getRowsPerChunk());
+            if (chunkEnd == null) {
+                return null;
+            }
+            ItemDbHelper.addToSummary(db, lastId, chunkEnd);
+            return chunkEnd;
+        }
+    }
+
+    /**
+     * Version 7: add the reorder level of each item, with the default for the items already
+     * saved, and the stock margin. The first chunk builds the index on the margin, then the
+     * margin of the items already saved is worked out in order of _ID. Until then it is null, so
+     * they don't show as low on stock. Items changed since the upgrade have theirs set by the
+     * triggers, so they are skipped
+     */
+    private static class AddReorderLevels extends Migration {
+
+        AddReorderLevels() {
+            super(7, 2000);
+        }
+
+        @Override
+        void upgradeSchema(SQLiteDatabase db) {
+            db.execSQL("ALTER TABLE " + ItemEntry.TABLE_NAME + " ADD COLUMN "
+                    + ItemEntry.COLUMN_ITEM_REORDER_LEVEL + " INTEGER NOT NULL DEFAULT "
+                    + ItemEntry.DEFAULT_REORDER_LEVEL);
+            db.execSQL("ALTER TABLE " + ItemEntry.TABLE_NAME + " ADD COLUMN "
+                    + ItemEntry.COLUMN_ITEM_STOCK_MARGIN + " INTEGER");
+            ItemDbHelper.createStockMarginTriggers(db);
+            ItemDbHelper.createSummaryTriggers(db);
+        }
+
+        @Override
+        boolean hasData() {
+            return true;
+        }
+
+        @Override
+        int countRemaining(SQLiteDatabase db, String position) {
+            return countItemsAfter(db, position);
+        }
+
+        @Override
+        String migrateChunk(SQLiteDatabase db, String position) {
+            if (ItemDbHelper.createStockMarginIndex(db)) {
+                // Building the index reads every item, so it is a chunk of its own
+                return position;
+            }
+            String lastId = getLastId(position);
+            String chunkEnd = findChunkEnd(db, lastId, getRowsPerChunk());
+            if (chunkEnd == null) {
+                return null;
+            }
+            db.execSQL("UPDATE " + ItemEntry.TABLE_NAME + " SET "
+                    + ItemEntry.COLUMN_ITEM_STOCK_MARGIN + " = " + ItemEntry.COLUMN_ITEM_QUANTITY
+                    + " - " + ItemEntry.COLUMN_ITEM_REORDER_LEVEL
+                    + " WHERE " + ItemEntry._ID + " > ? AND " + ItemEntry._ID + " <= ?"
+                    + " AND " + ItemEntry.COLUMN_ITEM_STOCK_MARGIN + " IS NULL",
+                    new Object[] { lastId, chunkEnd });
+            return chunkEnd;
+        }
+    }
+
+    /**
+     * Version 8: an index for each sort order of the list. The supplier is a key column of one,
+     * and keyset paging can't step over nulls, so missing suppliers are stored as empty strings.
+     * Building an index reads every item, so the first chunks build one index each, then the
+     * suppliers are set in order of _ID. Until an order's index is built, the list is sorted
+     * without it; until the suppliers are set, null suppliers sort first, where the first page
+     * still finds them
+     */
+    private static class AddSortIndexes extends Migration {
+
+        AddSortIndexes() {
+            super(8, 2000);
+        }
+
+        @Override
+        void upgradeSchema(SQLiteDatabase db) {
+            // The indexes are all built by the chunks
+        }
+
+        @Override
+        boolean hasData() {
+            return true;
+        }
+
+        @Override
+        int countRemaining(SQLiteDatabase db, String position) {
+            return countItemsAfter(db, position);
+        }
+
+        @Override
+        String migrateChunk(SQLiteDatabase db, String position) {
+            for (ItemSortOrder order : ItemSortOrder.values()) {
+                if (ItemDbHelper.createSortIndex(db, order)) {
+                    return position;
+                }
+            }
+            String lastId = getLastId(position);
+            String chunkEnd = findChunkEnd(db, lastId, getRowsPerChunk());
+            if (chunkEnd == null) {
+                return null;
+            }
+            db.execSQL("UPDATE " + ItemEntry.TABLE_NAME + " SET "
+                    + ItemEntry.COLUMN_ITEM_SUPPLIER + " = ''"
+                    + " WHERE " + ItemEntry._ID + " > ? AND " + ItemEntry._ID + " <= ?"
+                    + " AND " + ItemEntry.COLUMN_ITEM_SUPPLIER + " IS NULL",
+                    new Object[] { lastId, chunkEnd });
+            return chunkEnd;
+        }
+    }
+
+    /**
+     * @param position the position of a migration going through the items in order of _ID,
+     *                 which is the last _ID it has been through, or empty at the start
+     * @return the last _ID gone through, "0" at the start
+     */
+    private static String getLastId(String position) {
+        return position.isEmpty() ? "0" : position;
+    }
+
+    /** @return the number of items after the position, see {@link #getLastId} */
+    private static int countItemsAfter(SQLiteDatabase db, String position) {
+        return (int) DatabaseUtils.queryNumEntries(db, ItemEntry.TABLE_NAME,
+                ItemEntry._ID + " > ?", new String[] { getLastId(position) });
+    }
+
+    /**
+     * @param lastId the last _ID already gone through
+     * @return the _ID of the last of the next rows items, or null if there are no items left
+     */
+    private static String findChunkEnd(SQLiteDatabase db, String lastId, int rows) {
+        return DatabaseUtils.stringForQuery(db, "SELECT MAX(" + ItemEntry._ID
+                + ") FROM (SELECT " + ItemEntry._ID + " FROM " + ItemEntry.TABLE_NAME
+                + " WHERE " + ItemEntry._ID + " > ? ORDER BY " + ItemEntry._ID
+                + " LIMIT " + rows + ")", new String[] { lastId });
+    }
+
+    /**
+     * Reads a BLOB column of a single row in slices of {@link #BLOB_BYTES_PER_READ} bytes using
+     * substr(), so BLOBs bigger than a CursorWindow can still be read
+     */
+    private static class BlobInputStream extends InputStream {
+        private final SQLiteDatabase mDb;
+        private final String mSql;
+        private final long mLength;
+        private long mPosition;
+        private byte[] mChunk = new byte[0];
+        private int mChunkPosition;
+
+        BlobInputStream(SQLiteDatabase db, String table, String column, long rowId, long length) {
+            mDb = db;
+            mSql = "SELECT substr(" + column + ", ?, " + BLOB_BYTES_PER_READ + ") FROM "
+                    + table + " WHERE " + ItemEntry._ID + " = " + rowId;
+            mLength = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (mChunkPosition == mChunk.length) {
+                if (mPosition >= mLength) {
+                    return -1;
+                }
+                // substr() positions start at 1
+                Cursor cursor = mDb.rawQuery(mSql, new String[] { String.valueOf(mPosition + 1) });
+                try {
+                    if (!cursor.moveToFirst() || cursor.getBlob(0) == null) {
+                        throw new IOException("Image row disappeared while reading");
+                    }
+                    mChunk = cursor.getBlob(0);
+                } finally {
+                    cursor.close();
+                }
+                if (mChunk.length == 0) {
+                    return -1;
+                }
+                mChunkPosition = 0;
+                mPosition += mChunk.length;
+            }
+            int copied = Math.min(count, mChunk.length - mChunkPosition);
+            System.arraycopy(mChunk, mChunkPosition, buffer, offset, copied);
+            mChunkPosition += copied;
+            return copied;
+        }
+    }
+}
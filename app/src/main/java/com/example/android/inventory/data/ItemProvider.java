@@ -1,19 +1,40 @@
 package com.example.android.inventory.data;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.database.sqlite.SQLiteDoneException;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.support.v4.os.TraceCompat;
+import android.text.TextUtils;
 import android.util.Log;
-import android.widget.Toast;
+import android.util.SparseArray;
 
-import com.example.android.inventory.R;
+import com.example.android.inventory.LaunchMilestones;
 import com.example.android.inventory.data.ItemContract.ItemEntry;
+import com.example.android.inventory.data.ItemContract.SummaryEntry;
+import com.example.android.inventory.data.ItemContract.SupplierEntry;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.locks.Lock;
 
 /**
  * Content Provider for Inventory App. It uses CRUD operations to use the database as needed.
@@ -28,9 +49,53 @@ public class ItemProvider extends ContentProvider {
     private static final int ITEMS = 100;
     /** URI matcher code for the content URI for a single pet in the pets table */
     private static final int ITEMS_ID = 101;
+    /** URI matcher code for the content URI to search the items */
+    private static final int ITEMS_SEARCH = 102;
+    /** URI matcher code for the content URI for the summary of the items */
+    private static final int ITEMS_SUMMARY = 103;
+    /** URI matcher code for the content URI for the items at or below their reorder level */
+    private static final int ITEMS_LOW_STOCK = 104;
+    /** URI matcher codes for the content URIs of a single item's image and thumbnail files */
+    private static final int ITEMS_ID_IMAGE = 105;
+    private static final int ITEMS_ID_THUMBNAIL = 106;
+    /** URI matcher code for the content URI for the suppliers of the items */
+    private static final int ITEMS_SUPPLIERS = 107;
 
     private ItemDbHelper mDbHelper;
 
+    /** The database once it has been opened. Every call shares it and its connection pool */
+    private volatile SQLiteDatabase mDatabase;
+
+    /** Holds the image files that the image_ref column of each row points to */
+    private ImageStore mImageStore;
+
+    /** Reads the first rows in as the process starts, see {@link #startPrewarm} */
+    private Thread mPrewarmThread;
+
+    /** Moves the data left over from an upgrade, see {@link #startPendingMigrations} */
+    private Thread mMigrationThread;
+
+    /** Set by {@link #shutdown}, to stop the migrations after the chunk they are moving */
+    private volatile boolean mShuttingDown;
+
+    /**
+     * Whether the thread is applying a batch. Notifications and the removal of images no longer
+     * used wait until the batch has committed
+     */
+    private final ThreadLocal<Boolean> mApplyingBatch = new ThreadLocal<>();
+
+    /**
+     * The image files saved by the bulk insert or batch the thread is in, if any, so they can be
+     * given up if it fails
+     */
+    private final ThreadLocal<List<String>> mSavedImageRefs = new ThreadLocal<>();
+
+    /** How long each kind of call takes, and how much it reads or writes */
+    private final ProviderMetrics mMetrics = new ProviderMetrics();
+
+    /** Precompiled statements for the hot writes, which the calls take turns with */
+    private final ItemStatements.Pool mStatements = new ItemStatements.Pool();
+
     /**
      * UriMatcher object to match a content URI to a corresponding code.
      * The input passed into the constructor represents the code to return for the root URI.
@@ -38,25 +103,170 @@ public class ItemProvider extends ContentProvider {
      */
     private static final UriMatcher sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
 
+    /** The path pattern of each URI matcher code */
+    private static final SparseArray<String> sUriPatterns = new SparseArray<>();
+
     // Static initializer. This is run the first time anything is called from this class.
     static {
         // The calls to addURI() go here, for all of the content URI patterns that the provider
         // should recognize. All paths added to the UriMatcher have a corresponding code to return
         // when a match is found.
-        sUriMatcher.addURI(ItemContract.CONTENT_AUTHORITY, ItemContract.PATH_ITEMS, ITEMS);
-        sUriMatcher.addURI(ItemContract.CONTENT_AUTHORITY, ItemContract.PATH_ITEMS + "/#", ITEMS_ID);
+        addUri(ItemContract.PATH_ITEMS, ITEMS);
+        addUri(ItemContract.PATH_ITEMS + "/#", ITEMS_ID);
+        addUri(ItemContract.PATH_ITEMS + "/search", ITEMS_SEARCH);
+        addUri(ItemContract.PATH_ITEMS + "/summary", ITEMS_SUMMARY);
+        addUri(ItemContract.PATH_ITEMS + "/low_stock", ITEMS_LOW_STOCK);
+        addUri(ItemContract.PATH_ITEMS + "/suppliers", ITEMS_SUPPLIERS);
+        addUri(ItemContract.PATH_ITEMS + "/#/" + ItemEntry.PATH_IMAGE, ITEMS_ID_IMAGE);
+        addUri(ItemContract.PATH_ITEMS + "/#/" + ItemEntry.PATH_THUMBNAIL, ITEMS_ID_THUMBNAIL);
+    }
+
+    /** Add the path to the matcher, and keep it to name the URIs matched in the metrics */
+    private static void addUri(String path, int code) {
+        sUriMatcher.addURI(ItemContract.CONTENT_AUTHORITY, path, code);
+        sUriPatterns.put(code, path);
     }
 
-    /** Initialise database helper object to gain access to items database */
+    /** @return the path pattern the URI matcher code stands for, to name it in the metrics */
+    private static String getUriPattern(int match) {
+        return sUriPatterns.get(match, "unknown");
+    }
+
+    /** Number of rows read when pre-warming, enough for the first screen of the list */
+    private static final int PREWARM_ROWS = 50;
+
+    /**
+     * Initialise database helper object to gain access to items database, and start opening the
+     * database in the background
+     */
     @Override
     public boolean onCreate() {
-        mDbHelper = new ItemDbHelper(getContext());
+        TraceCompat.beginSection("ItemProvider.onCreate");
+        try {
+            mDbHelper = new ItemDbHelper(getContext());
+            mImageStore = new ImageStore(getContext());
+            startPrewarm();
+        } finally {
+            TraceCompat.endSection();
+        }
+        LaunchMilestones.reached(LaunchMilestones.PROVIDER_CREATE);
         return true;
     }
 
+    /**
+     * Open the database and read the first rows of the items table on a background thread, as
+     * soon as the process starts. By the time the list's loader first queries, the database is
+     * open (or being opened, which the query waits for) and the pages it reads are cached
+     */
+    private void startPrewarm() {
+        mPrewarmThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                TraceCompat.beginSection("ItemProvider.prewarm");
+                try {
+                    Cursor cursor = getDatabase().query(ItemEntry.TABLE_NAME, null, null, null,
+                            null, null, ItemEntry._ID, String.valueOf(PREWARM_ROWS));
+                    try {
+                        // Fills the cursor window, reading the rows in
+                        cursor.getCount();
+                    } finally {
+                        cursor.close();
+                    }
+                } catch (SQLException e) {
+                    // The first real query will open the database, and report the error
+                    Log.e(LOG, "Failed to pre-warm the database", e);
+                } finally {
+                    TraceCompat.endSection();
+                }
+            }
+        }, "ItemPrewarm");
+        mPrewarmThread.start();
+    }
+
+    /**
+     * Close the precompiled statements and the database. Only tests call this, on a provider they
+     * created, once they are done with it. The pre-warm and any migrations still running are
+     * waited for first, since they may still be using the database; the migrations stop after
+     * the chunk they are moving, and carry on the next time the database is opened
+     */
+    @Override
+    public void shutdown() {
+        mShuttingDown = true;
+        try {
+            mPrewarmThread.join();
+            Thread migrationThread;
+            synchronized (mDbHelper) {
+                migrationThread = mMigrationThread;
+            }
+            if (migrationThread != null) {
+                migrationThread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mStatements.close();
+        mDbHelper.close();
+    }
+
+    /**
+     * Get the database, opening it the first time. It isn't opened in onCreate, which runs on the
+     * main thread, since opening it may have to upgrade it. The database is always opened
+     * writable: in WAL mode reads go through the same object and are served by its pool of reader
+     * connections
+     */
+    private SQLiteDatabase getDatabase() {
+        SQLiteDatabase database = mDatabase;
+        if (database == null) {
+            synchronized (mDbHelper) {
+                if (mDatabase == null) {
+                    TraceCompat.beginSection("ItemDbHelper.open");
+                    try {
+                        mDatabase = mDbHelper.getWritableDatabase();
+                    } finally {
+                        TraceCompat.endSection();
+                    }
+                    LaunchMilestones.reached(LaunchMilestones.DB_OPEN);
+                    if (mDbHelper.hasPendingMigrations()) {
+                        startPendingMigrations();
+                    }
+                }
+                database = mDatabase;
+            }
+        }
+        return database;
+    }
+
+    /**
+     * Move the data left over from a database upgrade on a background thread, so the provider
+     * can answer calls meanwhile. Once each version's data is in place the lists are told to
+     * reload, to pick up the images, thumbnails or search results it brings
+     */
+    private void startPendingMigrations() {
+        mMigrationThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                mDbHelper.runPendingMigrations(new ItemDbHelper.MigrationListener() {
+                    @Override
+                    public boolean onMigrationProgress(int version, int done, int total) {
+                        Log.v(LOG, "Migrating data to version " + version + ": " + done + "/" + total);
+                        return !mShuttingDown;
+                    }
+
+                    @Override
+                    public void onMigrationFinished(int version) {
+                        notifyChange(ItemEntry.CONTENT_URI);
+                    }
+                });
+            }
+        }, "ItemMigrations");
+        mMigrationThread.start();
+    }
+
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
-        SQLiteDatabase database = mDbHelper.getReadableDatabase();
+        long start = ProviderMetrics.start();
+        SQLiteDatabase database = getDatabase();
         Cursor cursor; // This cursor will hold the result of the query
 
         // Figure out if the URI matcher can match the URI to a specific code
@@ -64,9 +274,38 @@ public class ItemProvider extends ContentProvider {
         switch (match) {
             case ITEMS:
                 // query ITEMS table with given projection, selection, selection args and sort order.
-                // result cursor may contain several rows
+                // result cursor may contain several rows. If a page is asked for, only the rows
+                // after the given sort key are returned, up to the limit
+                String supplier = uri.getQueryParameter(ItemEntry.QUERY_PARAM_SUPPLIER);
+                if (supplier != null) {
+                    // Compared the way the supplier index is ordered, so the index can find them
+                    selection = DatabaseUtils.concatenateWhere(selection,
+                            ItemEntry.COLUMN_ITEM_SUPPLIER + " = ? COLLATE NOCASE");
+                    selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
+                            new String[] { supplier });
+                }
+                if ("1".equals(uri.getQueryParameter(ItemEntry.QUERY_PARAM_IN_STOCK))) {
+                    selection = DatabaseUtils.concatenateWhere(selection,
+                            ItemEntry.COLUMN_ITEM_QUANTITY + " > 0");
+                }
+                String limit = uri.getQueryParameter(ItemEntry.QUERY_PARAM_LIMIT);
+                List<String> afterKey = uri.getQueryParameters(ItemEntry.QUERY_PARAM_AFTER);
+                if (limit != null || !afterKey.isEmpty()) {
+                    ItemSortOrder order = ItemSortOrder.fromSql(sortOrder);
+                    if (order == null) {
+                        throw new IllegalArgumentException("Cannot page through sort order " + sortOrder);
+                    }
+                    if (limit != null && !TextUtils.isDigitsOnly(limit)) {
+                        throw new IllegalArgumentException("Invalid page size " + limit);
+                    }
+                    if (!afterKey.isEmpty()) {
+                        selection = order.appendAfterSelection(selection);
+                        selectionArgs = order.appendAfterArgs(selectionArgs, afterKey);
+                    }
+                    sortOrder = order.toSql();
+                }
                 cursor = database.query(ItemEntry.TABLE_NAME, projection, selection, selectionArgs,
-                        null, null, sortOrder);
+                        null, null, sortOrder, limit);
                 break;
             case ITEMS_ID:
                 // Extracting out exact ID given
@@ -79,24 +318,176 @@ public class ItemProvider extends ContentProvider {
                 cursor = database.query(ItemEntry.TABLE_NAME, projection, selection, selectionArgs,
                         null, null, sortOrder);
                 break;
+            case ITEMS_SEARCH:
+                if (sortOrder != null) {
+                    throw new IllegalArgumentException("Search results are ordered by relevance");
+                }
+                cursor = searchItems(database, uri, projection, selection, selectionArgs);
+                break;
+            case ITEMS_LOW_STOCK:
+                if (sortOrder != null) {
+                    throw new IllegalArgumentException("Low stock is ordered by stock margin");
+                }
+                cursor = queryLowStock(database, uri, projection, selection, selectionArgs);
+                break;
+            case ITEMS_SUPPLIERS:
+                if (selection != null || sortOrder != null) {
+                    throw new IllegalArgumentException("Suppliers cannot be filtered or sorted");
+                }
+                cursor = querySuppliers(database, projection);
+                break;
+            case ITEMS_SUMMARY:
+                // The triggers keep the totals in a single row, so nothing is added up here
+                cursor = database.query(SummaryEntry.TABLE_NAME, projection, selection,
+                        selectionArgs, null, null, sortOrder);
+                break;
             default:
                 throw new IllegalArgumentException("Cannot query unknown URI " + uri);
         }
         // Set notification URI on the Cursor
         // so we know what content URI the Cursor was created for.
-        // If the data at this URI changes, then we know we need to update the Cursor
-        cursor.setNotificationUri(getContext().getContentResolver(), uri);
+        // If the data at this URI changes, then we know we need to update the Cursor.
+        // List cursors are only requeried for changes to many items, see BULK_CHANGE_URI.
+        // Search results, low stock and suppliers are few, and the summary is a single row, so
+        // they are requeried for any change to any item
+        Uri notificationUri;
+        if (match == ITEMS) {
+            notificationUri = ItemEntry.BULK_CHANGE_URI;
+        } else if (match == ITEMS_SEARCH || match == ITEMS_LOW_STOCK || match == ITEMS_SUMMARY
+                || match == ITEMS_SUPPLIERS) {
+            notificationUri = ItemEntry.CONTENT_URI;
+        } else {
+            notificationUri = uri;
+        }
+        cursor.setNotificationUri(getContext().getContentResolver(), notificationUri);
+        // SQLite runs the query lazily, when the cursor first fills its window. Counting the rows
+        // fills it here, so the time recorded is that of the query itself. The caller would fill
+        // the window straight away in any case
+        int rows = cursor.getCount();
+        mMetrics.record(ProviderMetrics.Operation.QUERY, getUriPattern(match),
+                ProviderMetrics.since(start), rows,
+                mMetrics.isMeasuringBytes() ? ProviderMetrics.countBytes(cursor) : 0);
         return cursor;
     }
 
+    /**
+     * Find the items at or below their reorder level through the index on their stock margin,
+     * the furthest below first. Only the items with a margin of 0 or less are read, however
+     * many items there are
+     */
+    private Cursor queryLowStock(SQLiteDatabase database, Uri uri, String[] projection,
+                                 String selection, String[] selectionArgs) {
+        String limit = uri.getQueryParameter(ItemEntry.QUERY_PARAM_LIMIT);
+        if (limit != null && !TextUtils.isDigitsOnly(limit)) {
+            throw new IllegalArgumentException("Invalid limit " + limit);
+        }
+        String lowStock = ItemEntry.COLUMN_ITEM_STOCK_MARGIN + " <= 0";
+        if (!TextUtils.isEmpty(selection)) {
+            lowStock += " AND (" + selection + ")";
+        }
+        return database.query(ItemEntry.TABLE_NAME, projection, lowStock, selectionArgs,
+                null, null, ItemEntry.COLUMN_ITEM_STOCK_MARGIN + ", " + ItemEntry._ID, limit);
+    }
+
+    /**
+     * List each supplier once with its number of items. They are grouped in the order of the
+     * supplier sort index, so SQLite reads them off the index alone, without reading the items
+     * or sorting
+     */
+    private Cursor querySuppliers(SQLiteDatabase database, String[] projection) {
+        String byName = ItemEntry.COLUMN_ITEM_SUPPLIER + " COLLATE NOCASE";
+        if (projection == null) {
+            projection = new String[] { SupplierEntry.COLUMN_SUPPLIER_NAME,
+                    SupplierEntry.COLUMN_ITEM_COUNT };
+        }
+        String[] columns = new String[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            if (SupplierEntry.COLUMN_ITEM_COUNT.equals(projection[i])) {
+                columns[i] = "COUNT(*) AS " + SupplierEntry.COLUMN_ITEM_COUNT;
+            } else if (SupplierEntry.COLUMN_SUPPLIER_NAME.equals(projection[i])) {
+                columns[i] = SupplierEntry.COLUMN_SUPPLIER_NAME;
+            } else {
+                throw new IllegalArgumentException("Unknown supplier column " + projection[i]);
+            }
+        }
+        return database.query(ItemEntry.TABLE_NAME, columns, null, null, byName, null, byName);
+    }
+
+    /**
+     * Find the items with a name or supplier containing words that start with the words of the
+     * query, through the full-text index rather than scanning the items table. Items matching on
+     * their name rank first, then those matching only on their supplier, then by name
+     */
+    private Cursor searchItems(SQLiteDatabase database, Uri uri, String[] projection,
+                               String selection, String[] selectionArgs) {
+        String limit = uri.getQueryParameter(ItemEntry.QUERY_PARAM_LIMIT);
+        if (limit != null && !TextUtils.isDigitsOnly(limit)) {
+            throw new IllegalArgumentException("Invalid limit " + limit);
+        }
+        String query = uri.getQueryParameter(ItemEntry.QUERY_PARAM_QUERY);
+        StringBuilder anyColumn = new StringBuilder();
+        StringBuilder nameColumn = new StringBuilder();
+        if (query != null) {
+            // Only letters and digits are kept, so nothing the user types is read as FTS syntax.
+            // Words are lower cased so that AND/OR/NOT/NEAR are searched for, not applied
+            for (String word : query.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+                if (word.isEmpty()) {
+                    continue;
+                }
+                anyColumn.append(word).append("* ");
+                nameColumn.append(ItemEntry.COLUMN_ITEM_NAME).append(':').append(word).append("* ");
+            }
+        }
+        if (anyColumn.length() == 0) {
+            // Nothing to search for, so nothing matches
+            return database.query(ItemEntry.TABLE_NAME, projection, "0", null, null, null, null);
+        }
+
+        String matches = "SELECT docid, 0 AS rank FROM " + ItemEntry.SEARCH_TABLE_NAME
+                + " WHERE " + ItemEntry.SEARCH_TABLE_NAME + " MATCH ?"
+                + " UNION ALL SELECT docid, 1 AS rank FROM " + ItemEntry.SEARCH_TABLE_NAME
+                + " WHERE " + ItemEntry.SEARCH_TABLE_NAME + " MATCH ?";
+        StringBuilder sql = new StringBuilder("SELECT ")
+                .append(projection == null ? ItemEntry.TABLE_NAME + ".*"
+                        : TextUtils.join(", ", projection))
+                .append(" FROM ").append(ItemEntry.TABLE_NAME)
+                .append(" JOIN (SELECT docid, MIN(rank) AS search_rank FROM (").append(matches)
+                .append(") GROUP BY docid) ON ").append(ItemEntry._ID).append(" = docid");
+        if (!TextUtils.isEmpty(selection)) {
+            sql.append(" WHERE (").append(selection).append(')');
+        }
+        sql.append(" ORDER BY search_rank, ").append(ItemSortOrder.NAME.toSql());
+        if (limit != null) {
+            sql.append(" LIMIT ").append(limit);
+        }
+
+        int existing = selectionArgs == null ? 0 : selectionArgs.length;
+        String[] args = new String[existing + 2];
+        args[0] = nameColumn.toString().trim();
+        args[1] = anyColumn.toString().trim();
+        if (existing > 0) {
+            System.arraycopy(selectionArgs, 0, args, 2, existing);
+        }
+        return database.rawQuery(sql.toString(), args);
+    }
+
     @Override
     public String getType(Uri uri) {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case ITEMS:
+            case ITEMS_SEARCH:
+            case ITEMS_LOW_STOCK:
                 return ItemEntry.CONTENT_LIST_TYPE;
             case ITEMS_ID:
                 return ItemEntry.CONTENT_ITEM_TYPE;
+            case ITEMS_SUMMARY:
+                return SummaryEntry.CONTENT_ITEM_TYPE;
+            case ITEMS_SUPPLIERS:
+                return SupplierEntry.CONTENT_LIST_TYPE;
+            case ITEMS_ID_IMAGE:
+            case ITEMS_ID_THUMBNAIL:
+                return ItemEntry.IMAGE_TYPE;
             default:
                 throw new IllegalStateException("Unknown URI " + uri + " with match " + match);
         }
@@ -104,97 +495,402 @@ public class ItemProvider extends ContentProvider {
 
     @Override
     public Uri insert(Uri uri, ContentValues values) {
+        long start = ProviderMetrics.start();
+        // Counted before the image is moved out of the values into the store
+        long bytes = mMetrics.isMeasuringBytes() ? ProviderMetrics.countBytes(values) : 0;
         final int match = sUriMatcher.match(uri);
+        Uri itemUri;
         switch (match) {
             case ITEMS:
-                return insertItem(uri, values);
+                itemUri = insertItem(uri, values);
+                break;
             default:
                 throw new IllegalArgumentException("Insertion is not supported for " + uri);
         }
+        mMetrics.record(ProviderMetrics.Operation.INSERT, getUriPattern(match),
+                ProviderMetrics.since(start), itemUri == null ? 0 : 1, bytes);
+        return itemUri;
     }
 
     private Uri insertItem(Uri uri, ContentValues values) {
-        // Some values cannot be null. Check if they are valid
+        // Some values cannot be null. Check if they are valid. The message of the exception says
+        // which value is wrong, for the caller to show; a Toast can't be shown from here, since
+        // callers write from background threads
+        validateNewItem(values);
+        normalizeSupplier(values, true);
+        // The image bytes go into the image store, the row only keeps the references. Their
+        // files mustn't be deleted until the row counting them is in
+        long id;
+        Lock imageLock = ItemDbHelper.IMAGE_FILES_LOCK.readLock();
+        imageLock.lock();
+        try {
+            if (!prepareNewItemImages(values)) {
+                return null;
+            }
+            // Insert the item into database with the value given
+            ItemStatements statements = mStatements.acquire(getDatabase());
+            try {
+                id = statements.insert(values);
+            } finally {
+                mStatements.release(statements);
+            }
+        } catch (SQLException e) {
+            // If insertion failed, log error and return null
+            Log.e(LOG, "Failed to insert row for " + uri, e);
+            return null;
+        } finally {
+            imageLock.unlock();
+        }
+        // Always notify a change in the database to the client, on the URI of the new item
+        Uri itemUri = ContentUris.withAppendedId(uri, id);
+        notifyChange(itemUri);
+
+        // return the new URI with the ID appended
+        return itemUri;
+    }
+
+    /**
+     * Insert all the items in a single transaction, with a single change notification at the end,
+     * rather than the default of one transaction and one notification (and so one list reload)
+     * per row. Every row is validated before anything is written, so an invalid row means nothing
+     * is inserted. If an image can't be saved, or an insert fails, the images already saved for
+     * the other rows are given up.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        final int match = sUriMatcher.match(uri);
+        if (match != ITEMS) {
+            throw new IllegalArgumentException("Insertion is not supported for " + uri);
+        }
+        long start = ProviderMetrics.start();
+        long bytes = 0;
+        for (ContentValues row : values) {
+            validateNewItem(row);
+            normalizeSupplier(row, true);
+            if (mMetrics.isMeasuringBytes()) {
+                bytes += ProviderMetrics.countBytes(row);
+            }
+        }
+
+        SQLiteDatabase database = getDatabase();
+        List<String> savedImageRefs = new ArrayList<>();
+        mSavedImageRefs.set(savedImageRefs);
+        boolean inserted = false;
+        Lock imageLock = ItemDbHelper.IMAGE_FILES_LOCK.readLock();
+        imageLock.lock();
+        try {
+            for (ContentValues row : values) {
+                if (!prepareNewItemImages(row)) {
+                    return 0;
+                }
+            }
+            ItemStatements statements = mStatements.acquire(database);
+            database.beginTransaction();
+            try {
+                for (ContentValues row : values) {
+                    statements.insert(row);
+                }
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+                mStatements.release(statements);
+            }
+            inserted = true;
+        } finally {
+            imageLock.unlock();
+            mSavedImageRefs.set(null);
+            if (!inserted) {
+                discardImages(database, savedImageRefs);
+            }
+        }
+        if (values.length > 0) {
+            notifyChange(uri);
+        }
+        mMetrics.record(ProviderMetrics.Operation.BULK_INSERT, getUriPattern(match),
+                ProviderMetrics.since(start), values.length, bytes);
+        return values.length;
+    }
+
+    /**
+     * Apply all the operations in a single transaction: either all of them are applied or none,
+     * along with the image files they saved. Observers are notified once, after the transaction
+     * has committed, instead of once per operation. The URIs of all the operations are checked
+     * before anything is written
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        for (ContentProviderOperation operation : operations) {
+            if (sUriMatcher.match(operation.getUri()) == UriMatcher.NO_MATCH) {
+                throw new OperationApplicationException("Unknown URI " + operation.getUri());
+            }
+        }
+
+        long start = ProviderMetrics.start();
+        SQLiteDatabase database = getDatabase();
+        ContentProviderResult[] results = null;
+        List<String> savedImageRefs = new ArrayList<>();
+        mApplyingBatch.set(Boolean.TRUE);
+        mSavedImageRefs.set(savedImageRefs);
+        // The images saved by the operations are only counted once the batch commits
+        Lock imageLock = ItemDbHelper.IMAGE_FILES_LOCK.readLock();
+        imageLock.lock();
+        try {
+            database.beginTransaction();
+            try {
+                results = super.applyBatch(operations);
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+        } finally {
+            imageLock.unlock();
+            mApplyingBatch.set(null);
+            mSavedImageRefs.set(null);
+            if (results == null) {
+                discardImages(database, savedImageRefs);
+            }
+        }
+        // Images can only be removed once the rows that used them are gone for good
+        releaseImages(database);
+        getContext().getContentResolver().notifyChange(ItemEntry.CONTENT_URI, null);
+        // The operations are also counted one by one, as they go through insert, update or delete
+        mMetrics.record(ProviderMetrics.Operation.APPLY_BATCH, ItemContract.PATH_ITEMS,
+                ProviderMetrics.since(start), operations.size(), 0);
+        return results;
+    }
+
+    /** Check the values of a new item are valid, throwing IllegalArgumentException if not */
+    private static void validateNewItem(ContentValues values) {
         String name = values.getAsString(ItemEntry.COLUMN_ITEM_NAME);
         Integer price = values.getAsInteger(ItemEntry.COLUMN_ITEM_PRICE);
         Integer quantity = values.getAsInteger(ItemEntry.COLUMN_ITEM_QUANTITY);
-        byte[] imageByteArray = values.getAsByteArray(ItemEntry.COLUMN_ITEM_IMAGE);
         if (name == null) {
-            Toast.makeText(getContext(), "Item requires a name", Toast.LENGTH_SHORT).show();
             throw new IllegalArgumentException("Item requires a name");
         }
         if (price == null || price < 0) {
-            Toast.makeText(getContext(), "Item requires valid price", Toast.LENGTH_SHORT).show();
             throw new IllegalArgumentException("Item requires valid price");
         }
         if (quantity == null || quantity < 0) {
-            Toast.makeText(getContext(), "Item requires valid quantity", Toast.LENGTH_SHORT).show();
             throw new IllegalArgumentException("Item requires valid quantity");
         }
-        // If no image is provided, since image column cannot be null, provide placeholder image
-        if (imageByteArray == null) {
-            Bitmap placeholderBitmap =  BitmapFactory.decodeResource(getContext().getResources(),
-                    R.drawable.placeholder_thumbnail);
-            imageByteArray = Utils.convertBitmapToByteArray(placeholderBitmap);
-            values.put(ItemEntry.COLUMN_ITEM_IMAGE, imageByteArray);
-        }
-
-        // Insert the item into database with the value given
-        SQLiteDatabase database = mDbHelper.getWritableDatabase();
-        long id = database.insert(ItemEntry.TABLE_NAME, null, values);
-        // If the ID is -1, then insertion failed. Log error and return null
-        if (id == -1) {
-            Log.e(LOG, "Failed to insert row for " + uri);
-            return null;
+        validateReorderLevel(values);
+    }
+
+    /**
+     * Check the reorder level, if given, is valid and that the stock margin isn't being set,
+     * throwing IllegalArgumentException if not
+     */
+    private static void validateReorderLevel(ContentValues values) {
+        if (values.containsKey(ItemEntry.COLUMN_ITEM_REORDER_LEVEL)) {
+            Integer reorderLevel = values.getAsInteger(ItemEntry.COLUMN_ITEM_REORDER_LEVEL);
+            if (reorderLevel == null || reorderLevel < 0) {
+                throw new IllegalArgumentException("Item requires a valid reorder level");
+            }
+        }
+        if (values.containsKey(ItemEntry.COLUMN_ITEM_STOCK_MARGIN)) {
+            throw new IllegalArgumentException("Stock margin is worked out by the database");
         }
-        // Always notify a change in the database to the client
-        getContext().getContentResolver().notifyChange(uri, null);
+    }
 
-        // return the new URI with the ID appended
-        return ContentUris.withAppendedId(uri, id);
+    /**
+     * Store a missing supplier as an empty one. The supplier is a key column of the supplier sort
+     * order, and paging by key can't step over nulls
+     * @param isNewItem whether the values are of a new item, rather than an update, which leaves
+     *                  the supplier alone unless it is given
+     */
+    private static void normalizeSupplier(ContentValues values, boolean isNewItem) {
+        if ((isNewItem || values.containsKey(ItemEntry.COLUMN_ITEM_SUPPLIER))
+                && values.getAsString(ItemEntry.COLUMN_ITEM_SUPPLIER) == null) {
+            values.put(ItemEntry.COLUMN_ITEM_SUPPLIER, "");
+        }
+    }
+
+    /**
+     * Move the new item's image into the image store. If no image is provided the item is left
+     * without one, and the placeholder image is shown for it
+     * @return false if the image could not be saved
+     */
+    private boolean prepareNewItemImages(ContentValues values) {
+        return !values.containsKey(ItemEntry.COLUMN_ITEM_IMAGE) || moveImagesToStore(values);
     }
 
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
-        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        long start = ProviderMetrics.start();
+        SQLiteDatabase database = getDatabase();
         int rowsDeleted;
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case ITEMS:
                 // Delete all rows that match the selection and selection Args
-                rowsDeleted = database.delete(ItemEntry.TABLE_NAME, selection, selectionArgs);
                 break;
             case ITEMS_ID:
                 // Delete a single row given by the ID in the URI
                 selection = ItemEntry._ID + "=?";
                 selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
-                rowsDeleted = database.delete(ItemEntry.TABLE_NAME, selection, selectionArgs);
                 break;
             default:
                 throw new IllegalArgumentException("Deletion is not supported for " + uri);
         }
+        rowsDeleted = database.delete(ItemEntry.TABLE_NAME, selection, selectionArgs);
         if (rowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            // The images of the deleted rows are no longer needed, unless other items share them
+            releaseImages(database);
+            notifyChange(uri);
         }
+        mMetrics.record(ProviderMetrics.Operation.DELETE, getUriPattern(match),
+                ProviderMetrics.since(start), rowsDeleted, 0);
         return rowsDeleted;
     }
 
+    /**
+     * Open an item's image or thumbnail file to be read as a stream, so the bytes are never
+     * copied into a cursor or a byte array before being decoded. The default openAssetFile()
+     * wraps this, so openInputStream() works as well
+     * @throws FileNotFoundException if the item has no image, and the placeholder is shown for
+     * it, or the file is missing
+     */
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        long start = ProviderMetrics.start();
+        final int match = sUriMatcher.match(uri);
+        String column;
+        switch (match) {
+            case ITEMS_ID_IMAGE:
+                column = ItemEntry.COLUMN_ITEM_IMAGE_REF;
+                break;
+            case ITEMS_ID_THUMBNAIL:
+                column = ItemEntry.COLUMN_ITEM_THUMBNAIL_REF;
+                break;
+            default:
+                throw new FileNotFoundException("No file at " + uri);
+        }
+        if (!"r".equals(mode)) {
+            throw new IllegalArgumentException("Images can only be read, not opened with " + mode);
+        }
+        // The item is the second path segment, i.e. items/#/image
+        String id = uri.getPathSegments().get(1);
+        String ref;
+        try {
+            ref = DatabaseUtils.stringForQuery(getDatabase(), "SELECT " + column + " FROM "
+                    + ItemEntry.TABLE_NAME + " WHERE " + ItemEntry._ID + " = ?",
+                    new String[] { id });
+        } catch (SQLiteDoneException e) {
+            throw new FileNotFoundException("No item " + id);
+        }
+        if (ref == null) {
+            throw new FileNotFoundException("Item " + id + " has no image");
+        }
+        File file = mImageStore.getFile(ref);
+        ParcelFileDescriptor descriptor =
+                ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+        mMetrics.record(ProviderMetrics.Operation.OPEN_FILE, getUriPattern(match),
+                ProviderMetrics.since(start), 1, file.length());
+        return descriptor;
+    }
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        switch (method) {
+            case ItemEntry.METHOD_SELL:
+                long start = ProviderMetrics.start();
+                Bundle result = sellItem(extras);
+                mMetrics.record(ProviderMetrics.Operation.CALL, ItemEntry.METHOD_SELL,
+                        ProviderMetrics.since(start),
+                        result.getInt(ItemEntry.EXTRA_SOLD_COUNT) > 0 ? 1 : 0, 0);
+                return result;
+            case ItemEntry.METHOD_GET_METRICS:
+                return mMetrics.toBundle();
+            case ItemEntry.METHOD_RESET_METRICS:
+                mMetrics.reset(extras != null
+                        && extras.getBoolean(ItemEntry.EXTRA_MEASURE_BYTES, false));
+                return null;
+            default:
+                return super.call(method, arg, extras);
+        }
+    }
+
+    /**
+     * Print the metrics of the provider's calls, with
+     * adb shell dumpsys activity provider com.example.android.inventory
+     */
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        mMetrics.dump(writer);
+    }
+
+    /**
+     * Sell units of an item, as many of them as are in stock. The stock is read and decreased in
+     * one transaction, so the quantity can't be changed by someone else in between, and a sale
+     * never takes it below 0
+     */
+    private Bundle sellItem(Bundle extras) {
+        long id = extras == null ? -1 : extras.getLong(ItemEntry.EXTRA_ITEM_ID, -1);
+        int count = extras == null ? 1 : extras.getInt(ItemEntry.EXTRA_COUNT, 1);
+        if (id < 0) {
+            throw new IllegalArgumentException("Sale requires an item id");
+        }
+        if (count <= 0) {
+            throw new IllegalArgumentException("Sale requires a positive count");
+        }
+
+        SQLiteDatabase database = getDatabase();
+        ItemStatements statements = mStatements.acquire(database);
+        int soldCount;
+        int quantity;
+        database.beginTransaction();
+        try {
+            soldCount = statements.sell(id, count);
+            // Read the quantity back in the same transaction, so it is the one the sale left
+            quantity = (int) statements.queryQuantity(id);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            mStatements.release(statements);
+        }
+
+        if (soldCount > 0) {
+            notifyChange(ContentUris.withAppendedId(ItemEntry.CONTENT_URI, id));
+        }
+        Bundle result = new Bundle();
+        result.putInt(ItemEntry.EXTRA_SOLD_COUNT, soldCount);
+        result.putInt(ItemEntry.EXTRA_QUANTITY, quantity);
+        return result;
+    }
+
     @Override
     public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        long start = ProviderMetrics.start();
+        // Counted before an image is moved out of the values into the store
+        long bytes = mMetrics.isMeasuringBytes() ? ProviderMetrics.countBytes(values) : 0;
         final int match = sUriMatcher.match(uri);
+        int rowsUpdated;
         switch (match) {
             case ITEMS:
-                return updateItem(uri, values, selection, selectionArgs);
+                rowsUpdated = updateItem(uri, values, selection, selectionArgs, -1);
+                break;
             case ITEMS_ID:
+                long id = ContentUris.parseId(uri);
                 selection = ItemEntry._ID + "=?";
-                selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
-                return updateItem(uri, values, selection, selectionArgs);
+                selectionArgs = new String[] { String.valueOf(id) };
+                rowsUpdated = updateItem(uri, values, selection, selectionArgs, id);
+                break;
             default:
                 throw new IllegalArgumentException("Update is not supported for " + uri);
         }
+        mMetrics.record(ProviderMetrics.Operation.UPDATE, getUriPattern(match),
+                ProviderMetrics.since(start), rowsUpdated, bytes);
+        return rowsUpdated;
     }
 
-    private int updateItem(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+    /**
+     * Update the items matching the selection
+     * @param id the _ID of the single item the selection picks out, or -1 for any other selection.
+     *           Single items are updated with a precompiled statement
+     */
+    private int updateItem(Uri uri, ContentValues values, String selection, String[] selectionArgs,
+                           long id) {
         // First need to check which columns are being updated by using .containsKey() method
         // Then check if the ContentValues are suitable to change
         if (values.containsKey(ItemEntry.COLUMN_ITEM_NAME)) {
@@ -215,29 +911,133 @@ public class ItemProvider extends ContentProvider {
                 throw new IllegalArgumentException("Item requires a valid quantity");
             }
         }
-        if (values.containsKey(ItemEntry.COLUMN_ITEM_IMAGE)) {
-            byte[] imageByteArray = values.getAsByteArray(ItemEntry.COLUMN_ITEM_IMAGE);
-            if (imageByteArray == null) {
-                Bitmap placeholderBitmap =  BitmapFactory.decodeResource(getContext().getResources(),
-                        R.drawable.placeholder_thumbnail);
-                imageByteArray = Utils.convertBitmapToByteArray(placeholderBitmap);
-                values.put(ItemEntry.COLUMN_ITEM_IMAGE, imageByteArray);
+        validateReorderLevel(values);
+        normalizeSupplier(values, false);
+
+        SQLiteDatabase database = getDatabase();
+        int rowsUpdated;
+        // The new image's files mustn't be deleted until the rows counting them are updated
+        Lock imageLock = ItemDbHelper.IMAGE_FILES_LOCK.readLock();
+        imageLock.lock();
+        try {
+            if (values.containsKey(ItemEntry.COLUMN_ITEM_IMAGE)) {
+                if (!moveImagesToStore(values)) {
+                    return 0;
+                }
             }
-        }
 
-        // If there are no values to update, then don't try to update the database
-        if (values.size() == 0) {
-            return 0;
-        }
+            // If there are no values to update, then don't try to update the database
+            if (values.size() == 0) {
+                return 0;
+            }
 
-        // Update the rows in the database with the provided content values
-        SQLiteDatabase database = mDbHelper.getWritableDatabase();
-        int rowsUpdated = database.update(ItemEntry.TABLE_NAME, values, selection, selectionArgs);
+            // Update the rows in the database with the provided content values
+            if (id == -1) {
+                rowsUpdated = database.update(ItemEntry.TABLE_NAME, values, selection,
+                        selectionArgs);
+            } else {
+                ItemStatements statements = mStatements.acquire(database);
+                try {
+                    rowsUpdated = statements.updateById(id, values);
+                } finally {
+                    mStatements.release(statements);
+                }
+            }
+        } finally {
+            imageLock.unlock();
+        }
         // notify change
         if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            // If the image was replaced, the old image files may no longer be needed
+            if (values.containsKey(ItemEntry.COLUMN_ITEM_IMAGE_REF)
+                    || values.containsKey(ItemEntry.COLUMN_ITEM_THUMBNAIL_REF)) {
+                releaseImages(database);
+            }
+            notifyChange(uri);
         }
         return rowsUpdated;
     }
 
+    /**
+     * Save the image bytes given under {@link ItemEntry#COLUMN_ITEM_IMAGE}, and the thumbnail
+     * given under {@link ItemEntry#COLUMN_ITEM_THUMBNAIL}, into the image store and replace them
+     * in the values with their references. If no thumbnail is given, one is made from the image.
+     * A null image stands for the placeholder image, which isn't stored: the references are
+     * set to null, and the placeholder is shown for null references.
+     * @return false if the images could not be saved
+     */
+    private boolean moveImagesToStore(ContentValues values) {
+        byte[] imageByteArray = values.getAsByteArray(ItemEntry.COLUMN_ITEM_IMAGE);
+        byte[] thumbnailByteArray = values.getAsByteArray(ItemEntry.COLUMN_ITEM_THUMBNAIL);
+        values.remove(ItemEntry.COLUMN_ITEM_IMAGE);
+        values.remove(ItemEntry.COLUMN_ITEM_THUMBNAIL);
+        if (imageByteArray == null) {
+            values.putNull(ItemEntry.COLUMN_ITEM_IMAGE_REF);
+            values.putNull(ItemEntry.COLUMN_ITEM_THUMBNAIL_REF);
+            return true;
+        }
+        if (thumbnailByteArray == null) {
+            thumbnailByteArray = Utils.createThumbnailByteArray(imageByteArray);
+        }
+        try {
+            values.put(ItemEntry.COLUMN_ITEM_IMAGE_REF, saveImage(imageByteArray));
+            if (thumbnailByteArray != null) {
+                values.put(ItemEntry.COLUMN_ITEM_THUMBNAIL_REF, saveImage(thumbnailByteArray));
+            } else {
+                values.putNull(ItemEntry.COLUMN_ITEM_THUMBNAIL_REF);
+            }
+            return true;
+        } catch (IOException e) {
+            Log.e(LOG, "Failed to save image", e);
+            return false;
+        }
+    }
+
+    /** Save the image into the store, noting it if the thread is in a bulk insert or batch */
+    private String saveImage(byte[] image) throws IOException {
+        String ref = mImageStore.put(image);
+        List<String> savedImageRefs = mSavedImageRefs.get();
+        if (savedImageRefs != null) {
+            savedImageRefs.add(ref);
+        }
+        return ref;
+    }
+
+    /**
+     * Give up the image files saved by a bulk insert or batch that failed. The store keeps one
+     * file per distinct image, which other items may already use, so the files are counted
+     * rather than deleted outright, and only removed if no item refers to them
+     */
+    private void discardImages(SQLiteDatabase database, List<String> refs) {
+        if (refs.isEmpty()) {
+            return;
+        }
+        // Called as the failure is thrown, so this mustn't hide it with one of its own
+        try {
+            for (String ref : refs) {
+                ItemDbHelper.countDiscardedImage(database, ref);
+            }
+            releaseImages(database);
+        } catch (SQLException e) {
+            Log.e(LOG, "Failed to give up images", e);
+        }
+    }
+
+    /**
+     * Remove the image files whose reference count has dropped to 0. While a batch is being
+     * applied this waits until the batch has committed, since a rolled back batch still needs them
+     */
+    private void releaseImages(SQLiteDatabase database) {
+        if (mApplyingBatch.get() == null) {
+            ItemDbHelper.deleteUnreferencedImages(database, mImageStore);
+        }
+    }
+
+    /** Notify observers of a change, unless a batch is being applied: it notifies once at the end */
+    private void notifyChange(Uri uri) {
+        if (mApplyingBatch.get() == null) {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
 }
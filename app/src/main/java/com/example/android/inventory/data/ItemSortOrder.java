@@ -0,0 +1,180 @@
+package com.example.android.inventory.data;
+
+import com.example.android.inventory.data.ItemContract.ItemEntry;
+
+import java.util.List;
+
+/**
+ * The sort orders the provider can page through with a keyset: instead of skipping rows with
+ * OFFSET, each page starts after the sort key of the last row of the previous page. That way a
+ * page is found with an index seek however deep into the list it is.
+ *
+ * Every sort order ends with the _ID column, so that the key of each row is unique. Each one has
+ * an index on exactly its key columns, with the same collations, see
+ * {@link ItemDbHelper#createSortIndex}, so SQLite reads the rows in order from the index and
+ * never sorts them. The key columns must not be null, or the keyset would skip those rows.
+ */
+
+public enum ItemSortOrder {
+    /** Order the items were added in */
+    ID(ItemEntry._ID),
+    /** Alphabetical by name */
+    NAME(ItemEntry.COLUMN_ITEM_NAME + " COLLATE NOCASE", ItemEntry._ID),
+    /** Alphabetical by supplier, and by name within each supplier */
+    SUPPLIER(ItemEntry.COLUMN_ITEM_SUPPLIER + " COLLATE NOCASE",
+            ItemEntry.COLUMN_ITEM_NAME + " COLLATE NOCASE", ItemEntry._ID),
+    /** Cheapest first */
+    PRICE(ItemEntry.COLUMN_ITEM_PRICE, ItemEntry._ID),
+    /** Fewest in stock first */
+    QUANTITY(ItemEntry.COLUMN_ITEM_QUANTITY, ItemEntry._ID);
+
+    /** Suffix of the key columns compared ignoring case */
+    private static final String NOCASE = " COLLATE NOCASE";
+
+    /** Columns (with their collation) that make up the sort key, in order */
+    private final String[] mKeyColumns;
+
+    ItemSortOrder(String... keyColumns) {
+        mKeyColumns = keyColumns;
+    }
+
+    /** @return the names of the columns that make up the sort key, in order */
+    public String[] getColumnNames() {
+        String[] names = new String[mKeyColumns.length];
+        for (int i = 0; i < mKeyColumns.length; i++) {
+            names[i] = mKeyColumns[i].split(" ")[0];
+        }
+        return names;
+    }
+
+    /**
+     * @return the column list of the index this sort order reads from, which is its key. The
+     * ID order reads the table itself, so has none
+     */
+    String getIndexColumns() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < mKeyColumns.length; i++) {
+            builder.append(i > 0 ? ", " : "").append(mKeyColumns[i]);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Compare two sort keys, as read by {@link com.example.android.inventory.Item#getSortKey},
+     * the way SQLite orders them: numbers by value, and NOCASE columns ignoring the case of
+     * ASCII letters only
+     * @return less than 0 if a comes first, 0 if they are the same key, more than 0 if b does
+     */
+    public int compareKeys(String[] a, String[] b) {
+        for (int i = 0; i < mKeyColumns.length; i++) {
+            int result = mKeyColumns[i].endsWith(NOCASE)
+                    ? compareNoCase(a[i], b[i])
+                    : compareNumbers(Long.parseLong(a[i]), Long.parseLong(b[i]));
+            if (result != 0) {
+                return result;
+            }
+        }
+        return 0;
+    }
+
+    private static int compareNumbers(long a, long b) {
+        return a < b ? -1 : (a == b ? 0 : 1);
+    }
+
+    private static int compareNoCase(String a, String b) {
+        int length = Math.min(a.length(), b.length());
+        for (int i = 0; i < length; i++) {
+            char charA = a.charAt(i);
+            char charB = b.charAt(i);
+            if (charA >= 'A' && charA <= 'Z') {
+                charA += 'a' - 'A';
+            }
+            if (charB >= 'A' && charB <= 'Z') {
+                charB += 'a' - 'A';
+            }
+            if (charA != charB) {
+                return charA - charB;
+            }
+        }
+        return a.length() - b.length();
+    }
+
+    /** @return the ORDER BY clause for this sort order */
+    public String toSql() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < mKeyColumns.length; i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            builder.append(mKeyColumns[i]).append(" ASC");
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Find the sort order matching an ORDER BY clause passed to the provider
+     * @return the sort order, or null if the clause is not one that can be paged through
+     */
+    public static ItemSortOrder fromSql(String sortOrder) {
+        if (sortOrder == null) {
+            return ID;
+        }
+        for (ItemSortOrder order : values()) {
+            if (order.toSql().equals(sortOrder)) {
+                return order;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Build the selection for the rows that come after the given sort key. For key columns
+     * a, b, _id this is
+     * a >= ? AND (a > ? OR (b >= ? AND (b > ? OR _id > ?)))
+     * which is the same as (a, b, _id) > (?, ?, ?), but written so that SQLite can seek an
+     * index on the leading column instead of scanning.
+     * @param selection the selection to add the keyset condition to, may be null
+     */
+    public String appendAfterSelection(String selection) {
+        StringBuilder builder = new StringBuilder();
+        int last = mKeyColumns.length - 1;
+        for (int i = 0; i < last; i++) {
+            builder.append(mKeyColumns[i]).append(" >= ? AND (")
+                    .append(mKeyColumns[i]).append(" > ? OR (");
+        }
+        builder.append(mKeyColumns[last]).append(" > ?");
+        for (int i = 0; i < last; i++) {
+            builder.append("))");
+        }
+        if (selection == null || selection.isEmpty()) {
+            return builder.toString();
+        }
+        return "(" + selection + ") AND " + builder;
+    }
+
+    /**
+     * Build the selection args matching {@link #appendAfterSelection(String)}
+     * @param selectionArgs the args of the original selection, may be null
+     * @param afterKey the sort key values of the last row of the previous page
+     */
+    public String[] appendAfterArgs(String[] selectionArgs, List<String> afterKey) {
+        if (afterKey.size() != mKeyColumns.length) {
+            throw new IllegalArgumentException("Sort order " + name() + " needs "
+                    + mKeyColumns.length + " key values, got " + afterKey.size());
+        }
+        int existing = selectionArgs == null ? 0 : selectionArgs.length;
+        String[] args = new String[existing + mKeyColumns.length * 2 - 1];
+        if (existing > 0) {
+            System.arraycopy(selectionArgs, 0, args, 0, existing);
+        }
+        int index = existing;
+        int last = mKeyColumns.length - 1;
+        for (int i = 0; i < last; i++) {
+            // Once for the >= and once for the >
+            args[index++] = afterKey.get(i);
+            args[index++] = afterKey.get(i);
+        }
+        args[index] = afterKey.get(last);
+        return args;
+    }
+}
@@ -0,0 +1,261 @@
+package com.example.android.inventory.data;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.inventory.data.ItemContract.ItemEntry;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Precompiled statements for the provider's hot writes: sales, updates of a single item by id,
+ * and inserts. Each statement is compiled the first time it is needed and then reused, so the
+ * SQL isn't built and compiled again on every call the way SQLiteDatabase.update/insert do.
+ *
+ * Updates and inserts get a statement per set of columns written, since that is what the SQL
+ * depends on. Only the most recently used few are kept.
+ *
+ * A statement holds the arguments bound to it, so an ItemStatements must only be used by one
+ * thread at a time. The provider takes one from a {@link Pool} for each call and gives it back
+ * at the end of the call.
+ */
+
+final class ItemStatements {
+
+    /** Number of update and of insert statements kept for different sets of columns */
+    private static final int MAX_CACHED_STATEMENTS = 8;
+
+    /** Number of sets of statements a pool keeps for the calls to take turns with */
+    private static final int MAX_POOLED = 4;
+
+    private final SQLiteDatabase mDatabase;
+
+    private SQLiteStatement mSell;
+    private SQLiteStatement mUpdateQuantity;
+    private SQLiteStatement mQueryQuantity;
+
+    /** Update statements by id, keyed by the sorted columns they set */
+    private final Map<String, SQLiteStatement> mUpdates = new StatementCache();
+
+    /** Insert statements, keyed by the sorted columns they insert */
+    private final Map<String, SQLiteStatement> mInserts = new StatementCache();
+
+    ItemStatements(SQLiteDatabase database) {
+        mDatabase = database;
+    }
+
+    /**
+     * Take up to count units off the quantity of the item, as many as it has in stock. Call it
+     * inside a transaction, so the quantity read first is still the one the update changes
+     * @return the number of units sold, 0 if the item had none or there is no such item
+     */
+    int sell(long id, int count) {
+        long quantity = queryQuantity(id);
+        if (quantity <= 0) {
+            return 0;
+        }
+        if (mSell == null) {
+            mSell = mDatabase.compileStatement("UPDATE " + ItemEntry.TABLE_NAME
+                    + " SET " + ItemEntry.COLUMN_ITEM_QUANTITY + " = MAX("
+                    + ItemEntry.COLUMN_ITEM_QUANTITY + " - ?, 0)"
+                    + " WHERE " + ItemEntry._ID + " = ?");
+        }
+        mSell.bindLong(1, count);
+        mSell.bindLong(2, id);
+        mSell.executeUpdateDelete();
+        return (int) Math.min(count, quantity);
+    }
+
+    /** @return the number of items updated, 0 or 1 */
+    int updateQuantity(long id, int quantity) {
+        if (mUpdateQuantity == null) {
+            mUpdateQuantity = mDatabase.compileStatement("UPDATE " + ItemEntry.TABLE_NAME
+                    + " SET " + ItemEntry.COLUMN_ITEM_QUANTITY + " = ?"
+                    + " WHERE " + ItemEntry._ID + " = ?");
+        }
+        mUpdateQuantity.bindLong(1, quantity);
+        mUpdateQuantity.bindLong(2, id);
+        return mUpdateQuantity.executeUpdateDelete();
+    }
+
+    /** @return the quantity of the item, or -1 if there is no such item */
+    long queryQuantity(long id) {
+        if (mQueryQuantity == null) {
+            mQueryQuantity = mDatabase.compileStatement("SELECT "
+                    + ItemEntry.COLUMN_ITEM_QUANTITY + " FROM " + ItemEntry.TABLE_NAME
+                    + " WHERE " + ItemEntry._ID + " = ?");
+        }
+        mQueryQuantity.bindLong(1, id);
+        try {
+            return mQueryQuantity.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Update the columns given in the values of a single item
+     * @return the number of items updated, 0 or 1
+     */
+    int updateById(long id, ContentValues values) {
+        if (values.size() == 1 && values.containsKey(ItemEntry.COLUMN_ITEM_QUANTITY)) {
+            Integer quantity = values.getAsInteger(ItemEntry.COLUMN_ITEM_QUANTITY);
+            if (quantity != null) {
+                return updateQuantity(id, quantity);
+            }
+        }
+        String[] columns = sortedColumns(values);
+        String key = Arrays.toString(columns);
+        SQLiteStatement update = mUpdates.get(key);
+        if (update == null) {
+            StringBuilder sql = new StringBuilder("UPDATE " + ItemEntry.TABLE_NAME + " SET ");
+            for (int i = 0; i < columns.length; i++) {
+                sql.append(i > 0 ? ", " : "").append(columns[i]).append(" = ?");
+            }
+            sql.append(" WHERE ").append(ItemEntry._ID).append(" = ?");
+            update = mDatabase.compileStatement(sql.toString());
+            mUpdates.put(key, update);
+        }
+        bindValues(update, columns, values);
+        update.bindLong(columns.length + 1, id);
+        return update.executeUpdateDelete();
+    }
+
+    /**
+     * Insert an item with the values given
+     * @return the _ID of the new item
+     * @throws SQLException if the item could not be inserted
+     */
+    long insert(ContentValues values) {
+        String[] columns = sortedColumns(values);
+        String key = Arrays.toString(columns);
+        SQLiteStatement insert = mInserts.get(key);
+        if (insert == null) {
+            StringBuilder sql = new StringBuilder("INSERT INTO " + ItemEntry.TABLE_NAME + " (");
+            for (int i = 0; i < columns.length; i++) {
+                sql.append(i > 0 ? ", " : "").append(columns[i]);
+            }
+            sql.append(") VALUES (");
+            for (int i = 0; i < columns.length; i++) {
+                sql.append(i > 0 ? ", ?" : "?");
+            }
+            sql.append(')');
+            insert = mDatabase.compileStatement(sql.toString());
+            mInserts.put(key, insert);
+        }
+        bindValues(insert, columns, values);
+        long id = insert.executeInsert();
+        if (id == -1) {
+            throw new SQLException("Failed to insert item");
+        }
+        return id;
+    }
+
+    /** Close every statement compiled so far */
+    void close() {
+        for (SQLiteStatement statement : new SQLiteStatement[] {
+                mSell, mUpdateQuantity, mQueryQuantity }) {
+            if (statement != null) {
+                statement.close();
+            }
+        }
+        for (SQLiteStatement statement : mUpdates.values()) {
+            statement.close();
+        }
+        for (SQLiteStatement statement : mInserts.values()) {
+            statement.close();
+        }
+        mSell = null;
+        mUpdateQuantity = null;
+        mQueryQuantity = null;
+        mUpdates.clear();
+        mInserts.clear();
+    }
+
+    private static String[] sortedColumns(ContentValues values) {
+        String[] columns = values.keySet().toArray(new String[values.size()]);
+        Arrays.sort(columns);
+        return columns;
+    }
+
+    private static void bindValues(SQLiteStatement statement, String[] columns,
+                                   ContentValues values) {
+        statement.clearBindings();
+        for (int i = 0; i < columns.length; i++) {
+            DatabaseUtils.bindObjectToProgram(statement, i + 1, values.get(columns[i]));
+        }
+    }
+
+    /** Keeps the most recently used statements, and closes those it drops */
+    private static class StatementCache extends LinkedHashMap<String, SQLiteStatement> {
+        StatementCache() {
+            super(MAX_CACHED_STATEMENTS, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SQLiteStatement> eldest) {
+            if (size() > MAX_CACHED_STATEMENTS) {
+                eldest.getValue().close();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * The sets of statements the provider's calls take turns with. A call takes a set and gives
+     * it back once done, so only a few are ever compiled and kept, however many threads call the
+     * provider. Taking a set never waits, since a call waiting for a set while holding the
+     * database would deadlock with one holding a set while waiting for the database: if none is
+     * free a new set is made, and closed when given back if the pool is full
+     */
+    static final class Pool {
+        private final Deque<ItemStatements> mFree = new ArrayDeque<>();
+        private boolean mClosed;
+
+        /** @return a set of statements for the calling thread to use until it is released */
+        ItemStatements acquire(SQLiteDatabase database) {
+            synchronized (this) {
+                ItemStatements statements = mFree.poll();
+                if (statements != null) {
+                    return statements;
+                }
+            }
+            return new ItemStatements(database);
+        }
+
+        /** Give back a set of statements taken with {@link #acquire} */
+        void release(ItemStatements statements) {
+            synchronized (this) {
+                if (!mClosed && mFree.size() < MAX_POOLED) {
+                    mFree.push(statements);
+                    return;
+                }
+            }
+            statements.close();
+        }
+
+        /** Close the free sets, and those still in use as they are released */
+        void close() {
+            List<ItemStatements> free;
+            synchronized (this) {
+                mClosed = true;
+                free = new ArrayList<>(mFree);
+                mFree.clear();
+            }
+            for (ItemStatements statements : free) {
+                statements.close();
+            }
+        }
+    }
+}
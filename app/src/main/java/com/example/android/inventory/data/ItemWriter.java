@@ -0,0 +1,186 @@
+package com.example.android.inventory.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.SQLException;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import com.example.android.inventory.data.ItemContract.ItemEntry;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Writes items through the {@link ItemProvider} on a single background thread, so screens can
+ * close as soon as the user saves or deletes, rather than waiting on the main thread for the write.
+ *
+ * There is one writer per process, and it outlives the activities that use it, so a write carries
+ * on after its activity has finished. Writes run one at a time, in the order they were made, so
+ * two writes to the same item are never applied out of order. The result of each write is handed
+ * to its {@link Callback} on the main thread.
+ */
+
+public final class ItemWriter {
+
+    private static final String LOG = ItemWriter.class.getSimpleName();
+
+    /** Told of the result of a write, on the main thread */
+    public interface Callback {
+        /**
+         * @param succeeded whether the item was written
+         * @param errorMessage why the write was refused, if it was, otherwise null
+         */
+        void onWriteFinished(boolean succeeded, String errorMessage);
+    }
+
+    /** Told of the result of a sale, on the main thread */
+    public interface SaleCallback {
+        /**
+         * @param soldCount the number of units sold, fewer than asked for if the stock ran out,
+         *                  0 if there was none or the sale failed
+         */
+        void onSaleFinished(int soldCount);
+    }
+
+    private static ItemWriter sInstance;
+
+    private final ContentResolver mContentResolver;
+    private final ExecutorService mExecutor;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /** Use {@link #getInstance}; tests create their own writer for their own provider */
+    ItemWriter(Context context) {
+        mContentResolver = context.getContentResolver();
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, "ItemWriter");
+            }
+        });
+    }
+
+    /** Get the process's writer, creating it the first time */
+    public static synchronized ItemWriter getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ItemWriter(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /** Insert a new item with the values given */
+    public void insert(final ContentValues values, Callback callback) {
+        submit(new Write(callback) {
+            @Override
+            boolean write() {
+                return mContentResolver.insert(ItemEntry.CONTENT_URI, values) != null;
+            }
+        });
+    }
+
+    /** Update the item at the uri with the values given */
+    public void update(final Uri uri, final ContentValues values, Callback callback) {
+        submit(new Write(callback) {
+            @Override
+            boolean write() {
+                return mContentResolver.update(uri, values, null, null) != 0;
+            }
+        });
+    }
+
+    /**
+     * Sell units of the item, see {@link ItemEntry#METHOD_SELL}. As many are sold as there are
+     * in stock, up to count
+     */
+    public void sell(final long id, final int count, final SaleCallback callback) {
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                int soldCount = 0;
+                try {
+                    Bundle extras = new Bundle();
+                    extras.putLong(ItemEntry.EXTRA_ITEM_ID, id);
+                    extras.putInt(ItemEntry.EXTRA_COUNT, count);
+                    Bundle result = mContentResolver.call(ItemEntry.CONTENT_URI,
+                            ItemEntry.METHOD_SELL, null, extras);
+                    soldCount = result == null ? 0 : result.getInt(ItemEntry.EXTRA_SOLD_COUNT);
+                } catch (SQLException e) {
+                    Log.e(LOG, "Failed to sell item", e);
+                }
+                if (callback == null) {
+                    return;
+                }
+                final int sold = soldCount;
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onSaleFinished(sold);
+                    }
+                });
+            }
+        });
+    }
+
+    /** Delete the item at the uri */
+    public void delete(final Uri uri, Callback callback) {
+        submit(new Write(callback) {
+            @Override
+            boolean write() {
+                return mContentResolver.delete(uri, null, null) != 0;
+            }
+        });
+    }
+
+    private void submit(Runnable write) {
+        mExecutor.execute(write);
+    }
+
+    /** A single write, which reports its result to its callback on the main thread */
+    private abstract class Write implements Runnable {
+        private final Callback mCallback;
+
+        Write(Callback callback) {
+            mCallback = callback;
+        }
+
+        /** @return true if the item was written */
+        abstract boolean write();
+
+        @Override
+        public void run() {
+            boolean succeeded = false;
+            String errorMessage = null;
+            try {
+                succeeded = write();
+            } catch (IllegalArgumentException e) {
+                // The provider refused the values, and says why
+                errorMessage = e.getMessage();
+            } catch (SQLException e) {
+                Log.e(LOG, "Failed to write item", e);
+            }
+            if (mCallback == null) {
+                return;
+            }
+            final boolean result = succeeded;
+            final String message = errorMessage;
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onWriteFinished(result, message);
+                }
+            });
+        }
+    }
+}
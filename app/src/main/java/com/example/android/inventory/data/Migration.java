@@ -0,0 +1,68 @@
+package com.example.android.inventory.data;
+
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Upgrades the database from the version before {@link #getVersion()} to that version.
+ *
+ * A migration comes in two parts. {@link #upgradeSchema} changes the tables, and runs inside
+ * onUpgrade, so it must be quick: it holds up the first call to the database. Anything that reads
+ * every row, copying, counting or building an index, belongs in {@link #migrateChunk}, which
+ * moves the existing data over. {@link ItemDbHelper} calls it again and again in the
+ * background, each time in its own transaction along with saving how far it got.
+ * If the app is killed, the migration carries on from the last chunk committed.
+ *
+ * While the data is being moved the database is in use, so the new schema has to work (if
+ * incompletely, e.g. without images) with data that hasn't been moved yet.
+ */
+
+abstract class Migration {
+
+    private final int mVersion;
+    private final int mRowsPerChunk;
+
+    /**
+     * @param version the database version this migration upgrades to
+     * @param rowsPerChunk the most rows to move in one transaction. The more work a row takes, the
+     *                     fewer should be moved at once, so other writers aren't held up for long
+     */
+    Migration(int version, int rowsPerChunk) {
+        mVersion = version;
+        mRowsPerChunk = rowsPerChunk;
+    }
+
+    /** @return the database version this migration upgrades to */
+    int getVersion() {
+        return mVersion;
+    }
+
+    int getRowsPerChunk() {
+        return mRowsPerChunk;
+    }
+
+    /** Change the schema. Runs inside onUpgrade, after the migrations of earlier versions */
+    abstract void upgradeSchema(SQLiteDatabase db);
+
+    /** @return true if there is data to move once the schema has been upgraded */
+    boolean hasData() {
+        return false;
+    }
+
+    /**
+     * Count the rows left to move, to report progress
+     * @param position where the last chunk left off, empty at the start
+     */
+    int countRemaining(SQLiteDatabase db, String position) {
+        return 0;
+    }
+
+    /**
+     * Move the next chunk of data, of at most {@link #getRowsPerChunk()} rows. Runs inside a
+     * transaction, after all the data of earlier migrations has been moved
+     * @param position where the last chunk left off, empty at the start
+     * @return where to carry on from, or null once all the data has been moved
+     */
+    String migrateChunk(SQLiteDatabase db, String position) {
+        return null;
+    }
+}
@@ -0,0 +1,242 @@
+package com.example.android.inventory.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.os.Bundle;
+
+import com.example.android.inventory.data.ItemContract.ItemEntry;
+
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counts the calls {@link ItemProvider} serves, per operation and URI pattern (or method, for
+ * call()): how many, a histogram of how long they took, the rows they touched and the bytes they
+ * carried. They are read with {@link ItemEntry#METHOD_GET_METRICS}, or in the provider's dump():
+ * adb shell dumpsys activity provider com.example.android.inventory
+ *
+ * Recording a call costs a map lookup and a few additions under the lock of its counters, which
+ * is only ever held for those additions, never while waiting for the database. Counting the bytes
+ * of query results means reading every value of the cursor a second time, so it is off unless
+ * asked for when the metrics are reset, see {@link ItemEntry#EXTRA_MEASURE_BYTES}.
+ */
+
+final class ProviderMetrics {
+
+    /** The provider operations that are counted */
+    enum Operation {
+        QUERY, INSERT, BULK_INSERT, UPDATE, DELETE, APPLY_BATCH, OPEN_FILE, CALL
+    }
+
+    /**
+     * Upper bounds of the latency histogram's buckets, in milliseconds, each exclusive. Calls
+     * taking the last or longer fall in one more bucket after it
+     */
+    private static final long[] BUCKET_BOUNDS_MILLIS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000 };
+
+    /** Bytes counted for an integer or a float in a cursor or ContentValues */
+    private static final int NUMBER_BYTES = 8;
+
+    /** Strings are counted in the encoding SQLite stores them in */
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Map<Operation, ConcurrentHashMap<String, Counters>> mCounters =
+            new EnumMap<>(Operation.class);
+
+    private volatile boolean mMeasuringBytes;
+
+    ProviderMetrics() {
+        for (Operation operation : Operation.values()) {
+            mCounters.put(operation, new ConcurrentHashMap<String, Counters>());
+        }
+    }
+
+    /** @return the time the call began, to pass to {@link #since} once it is done */
+    static long start() {
+        return System.nanoTime();
+    }
+
+    /** @return the nanoseconds since what {@link #start} returned */
+    static long since(long startNanos) {
+        return System.nanoTime() - startNanos;
+    }
+
+    /**
+     * Count a call that has finished
+     * @param target the URI pattern of the call, or its method for call()
+     * @param nanos how long the call took, see {@link #since}. Arguments are evaluated in order,
+     * so the bytes counted after it aren't part of the time
+     * @param rows the rows the call read or wrote
+     * @param bytes the bytes the call returned or was given, if known, otherwise 0
+     */
+    void record(Operation operation, String target, long nanos, long rows, long bytes) {
+        ConcurrentHashMap<String, Counters> counters = mCounters.get(operation);
+        Counters counter = counters.get(target);
+        if (counter == null) {
+            Counters created = new Counters();
+            counter = counters.putIfAbsent(target, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        counter.add(nanos, rows, bytes);
+    }
+
+    /** @return whether the bytes of query results and written values are counted */
+    boolean isMeasuringBytes() {
+        return mMeasuringBytes;
+    }
+
+    /**
+     * Forget every count, and start again
+     * @param measureBytes whether to count the bytes of query results and written values
+     */
+    void reset(boolean measureBytes) {
+        for (Map<String, Counters> counters : mCounters.values()) {
+            counters.clear();
+        }
+        mMeasuringBytes = measureBytes;
+    }
+
+    /**
+     * Count the bytes of every value in the cursor, as it would be read. The cursor is left
+     * before the first row. Only worth calling when {@link #isMeasuringBytes()}
+     */
+    static long countBytes(Cursor cursor) {
+        long bytes = 0;
+        int columns = cursor.getColumnCount();
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            for (int i = 0; i < columns; i++) {
+                switch (cursor.getType(i)) {
+                    case Cursor.FIELD_TYPE_BLOB:
+                        bytes += cursor.getBlob(i).length;
+                        break;
+                    case Cursor.FIELD_TYPE_STRING:
+                        bytes += cursor.getString(i).getBytes(UTF_8).length;
+                        break;
+                    case Cursor.FIELD_TYPE_INTEGER:
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        bytes += NUMBER_BYTES;
+                        break;
+                }
+            }
+        }
+        cursor.moveToPosition(-1);
+        return bytes;
+    }
+
+    /** Count the bytes of the values to be written. Only worth calling when measuring bytes */
+    static long countBytes(ContentValues values) {
+        long bytes = 0;
+        for (String key : values.keySet()) {
+            Object value = values.get(key);
+            if (value instanceof byte[]) {
+                bytes += ((byte[]) value).length;
+            } else if (value instanceof String) {
+                bytes += ((String) value).getBytes(UTF_8).length;
+            } else if (value != null) {
+                bytes += NUMBER_BYTES;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the counts as a bundle holding a bundle per operation and target, under the key
+     * "operation target", e.g. "query items/#". See {@link ItemEntry#METHOD_GET_METRICS}
+     */
+    Bundle toBundle() {
+        Bundle bundle = new Bundle();
+        bundle.putLongArray(ItemEntry.EXTRA_METRICS_BUCKETS, BUCKET_BOUNDS_MILLIS);
+        for (Operation operation : Operation.values()) {
+            for (Map.Entry<String, Counters> target : mCounters.get(operation).entrySet()) {
+                bundle.putBundle(getName(operation, target.getKey()),
+                        target.getValue().toBundle());
+            }
+        }
+        return bundle;
+    }
+
+    /** Print a line of counts per operation and target, sorted by name */
+    void dump(PrintWriter writer) {
+        Map<String, Counters> sorted = new TreeMap<>();
+        for (Operation operation : Operation.values()) {
+            for (Map.Entry<String, Counters> target : mCounters.get(operation).entrySet()) {
+                sorted.put(getName(operation, target.getKey()), target.getValue());
+            }
+        }
+        writer.println("Provider metrics" + (mMeasuringBytes ? "" : " (bytes not measured)"));
+        StringBuilder header = new StringBuilder("  call: count, mean ms, max ms, rows, bytes |");
+        for (long bound : BUCKET_BOUNDS_MILLIS) {
+            header.append(" <").append(bound);
+        }
+        writer.println(header.append(" >=").append(
+                BUCKET_BOUNDS_MILLIS[BUCKET_BOUNDS_MILLIS.length - 1]).append(" ms"));
+        for (Map.Entry<String, Counters> entry : sorted.entrySet()) {
+            writer.println("  " + entry.getKey() + ": " + entry.getValue());
+        }
+    }
+
+    private static String getName(Operation operation, String target) {
+        return operation.name().toLowerCase(Locale.ROOT) + " " + target;
+    }
+
+    /** The counts of one operation on one target */
+    private static class Counters {
+        private long mCount;
+        private long mTotalNanos;
+        private long mMaxNanos;
+        private long mRows;
+        private long mBytes;
+        private final long[] mHistogram = new long[BUCKET_BOUNDS_MILLIS.length + 1];
+
+        synchronized void add(long nanos, long rows, long bytes) {
+            mCount++;
+            mTotalNanos += nanos;
+            mMaxNanos = Math.max(mMaxNanos, nanos);
+            mRows += rows;
+            mBytes += bytes;
+            long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+            int bucket = 0;
+            while (bucket < BUCKET_BOUNDS_MILLIS.length && millis >= BUCKET_BOUNDS_MILLIS[bucket]) {
+                bucket++;
+            }
+            mHistogram[bucket]++;
+        }
+
+        synchronized Bundle toBundle() {
+            Bundle bundle = new Bundle();
+            bundle.putLong(ItemEntry.EXTRA_METRICS_COUNT, mCount);
+            bundle.putLong(ItemEntry.EXTRA_METRICS_TOTAL_MICROS,
+                    TimeUnit.NANOSECONDS.toMicros(mTotalNanos));
+            bundle.putLong(ItemEntry.EXTRA_METRICS_MAX_MICROS,
+                    TimeUnit.NANOSECONDS.toMicros(mMaxNanos));
+            bundle.putLong(ItemEntry.EXTRA_METRICS_ROWS, mRows);
+            bundle.putLong(ItemEntry.EXTRA_METRICS_BYTES, mBytes);
+            bundle.putLongArray(ItemEntry.EXTRA_METRICS_HISTOGRAM, mHistogram.clone());
+            return bundle;
+        }
+
+        @Override
+        public synchronized String toString() {
+            double meanMillis = mTotalNanos / 1e6 / Math.max(mCount, 1);
+            StringBuilder builder = new StringBuilder()
+                    .append(mCount).append(", ")
+                    .append(String.format(Locale.ROOT, "%.2f", meanMillis))
+                    .append(", ").append(String.format(Locale.ROOT, "%.2f", mMaxNanos / 1e6))
+                    .append(", ").append(mRows)
+                    .append(", ").append(mBytes).append(" |");
+            for (long count : mHistogram) {
+                builder.append(' ').append(count);
+            }
+            return builder.toString();
+        }
+    }
+}
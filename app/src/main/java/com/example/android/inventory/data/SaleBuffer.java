@@ -0,0 +1,146 @@
+package com.example.android.inventory.data;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Write-behind buffer for the sale button. Staff at the counter tap it many times in a row, and
+ * each tap used to be a provider write, a change notification and a reload of the row. Instead,
+ * the sales of each item are added up for {@link #FLUSH_DELAY_MILLIS} after the first tap, and
+ * then written as one sale of that many units, through the {@link ItemWriter}.
+ *
+ * Until a sale is written, the list shows the item's quantity less its pending sales, see
+ * {@link #getPendingCount}. If the stock was changed elsewhere in the meantime and there are no
+ * longer enough units, as many as are left are sold, and the {@link Listener} is told how many.
+ *
+ * The buffer is flushed when the list is paused, which comes before the process can be killed,
+ * so taps aren't lost. It must only be used from the main thread.
+ */
+
+public final class SaleBuffer {
+
+    private static final String LOG = SaleBuffer.class.getSimpleName();
+
+    /** How long taps are added up for before they are written */
+    public static final long FLUSH_DELAY_MILLIS = 1000;
+
+    /** Told when the sales of an item have been written */
+    public interface Listener {
+        /**
+         * @param id the _ID of the item
+         * @param count the number of units tapped
+         * @param soldCount the number of units sold, fewer than count if the stock ran out
+         */
+        void onSalesWritten(long id, int count, int soldCount);
+    }
+
+    private static SaleBuffer sInstance;
+
+    private final ItemWriter mWriter;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private Listener mListener;
+
+    /** Units of each item sold but not yet handed to the writer, by _ID */
+    private final Map<Long, Integer> mBuffered = new HashMap<>();
+
+    /** Units of each item handed to the writer but not yet written, by _ID */
+    private final Map<Long, Integer> mInFlight = new HashMap<>();
+
+    /** Number of taps of the sale button, and number of provider writes they were made with */
+    private long mSaleCount;
+    private long mWriteCount;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /** Use {@link #getInstance}; tests create their own buffer for their own writer */
+    SaleBuffer(ItemWriter writer) {
+        mWriter = writer;
+    }
+
+    /** Get the process's buffer, creating it the first time */
+    public static SaleBuffer getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SaleBuffer(ItemWriter.getInstance(context));
+        }
+        return sInstance;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /** Sell one unit of the item, once the current window of taps is over */
+    public void sell(long id) {
+        // The window starts with the first tap since the last flush
+        if (mBuffered.isEmpty()) {
+            mHandler.postDelayed(mFlushRunnable, FLUSH_DELAY_MILLIS);
+        }
+        mBuffered.put(id, get(mBuffered, id) + 1);
+        mSaleCount++;
+    }
+
+    /** @return the number of units of the item sold but not yet written */
+    public int getPendingCount(long id) {
+        return get(mBuffered, id) + get(mInFlight, id);
+    }
+
+    /** Hand every buffered sale to the writer now */
+    public void flush() {
+        mHandler.removeCallbacks(mFlushRunnable);
+        if (mBuffered.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<Long, Integer> entry : mBuffered.entrySet()) {
+            final long id = entry.getKey();
+            final int count = entry.getValue();
+            mInFlight.put(id, get(mInFlight, id) + count);
+            mWriteCount++;
+            mWriter.sell(id, count, new ItemWriter.SaleCallback() {
+                @Override
+                public void onSaleFinished(int soldCount) {
+                    int left = get(mInFlight, id) - count;
+                    if (left > 0) {
+                        mInFlight.put(id, left);
+                    } else {
+                        mInFlight.remove(id);
+                    }
+                    if (mListener != null) {
+                        mListener.onSalesWritten(id, count, soldCount);
+                    }
+                }
+            });
+        }
+        mBuffered.clear();
+        Log.v(LOG, mSaleCount + " sales written in " + mWriteCount + " writes");
+    }
+
+    /** @return the number of times an item has been sold through the buffer */
+    public long getSaleCount() {
+        return mSaleCount;
+    }
+
+    /** @return the number of provider writes the sales were made with */
+    public long getWriteCount() {
+        return mWriteCount;
+    }
+
+    /** @return the number of provider writes saved by adding up sales */
+    public long getWritesSaved() {
+        return mSaleCount - mWriteCount;
+    }
+
+    private static int get(Map<Long, Integer> counts, long id) {
+        Integer count = counts.get(id);
+        return count == null ? 0 : count;
+    }
+}
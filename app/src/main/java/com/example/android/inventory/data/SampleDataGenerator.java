@@ -0,0 +1,235 @@
+package com.example.android.inventory.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.graphics.Bitmap;
+
+import com.example.android.inventory.data.ItemContract.ItemEntry;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Makes up items to fill the database with a catalog the size of a real shop's, for load and
+ * scroll testing, benchmarks and the debug menu. The same seed always makes the same items.
+ *
+ * Items are drawn from skewed distributions, as real stock is: a few suppliers and kinds of
+ * product account for most items, most prices are low with a long tail of expensive ones, and
+ * most quantities are small, with some items out of stock and a few held in bulk.
+ *
+ * A share of the items can be given an image. Encoding a photo sized image takes tens of
+ * milliseconds, so a small pool of distinct images is made once and shared between the items.
+ * The image store keeps each one once, however many items show it.
+ */
+
+public final class SampleDataGenerator {
+
+    /** Number of items inserted in each transaction by {@link #insertItems} */
+    public static final int ROWS_PER_CHUNK = 500;
+
+    /** Told of the progress of {@link #insertItems}, on the thread running it */
+    public interface Listener {
+        /**
+         * Called after each chunk has been inserted
+         * @param inserted the number of items inserted so far
+         * @return false to stop here
+         */
+        boolean onChunkInserted(int inserted);
+    }
+
+    private static final String[] SUPPLIERS = {
+            "Bunnings Warehouse", "Officeworks", "Kmart", "Big W", "Harvey Norman", "JB Hi-Fi",
+            "Mitre 10", "Coles", "Woolworths", "IKEA", "Target", "Spotlight", "Repco",
+            "Supercheap Auto", "Dick Smith", "Myer", "David Jones", "Costco", "Aldi", "Amazon" };
+
+    /** Share of items without a supplier, which the list shows as unknown */
+    private static final double NO_SUPPLIER_SHARE = 0.05;
+
+    private static final String[] PRODUCTS = {
+            "Box", "Tape", "Screw", "Battery", "Cable", "Light Bulb", "Notebook", "Pen", "Glue",
+            "Hammer", "Drill Bit", "Towel", "Mug", "Paint", "Brush", "Charger", "Storage Tub",
+            "Hose", "Glove", "Padlock", "Extension Lead", "Bin Bag", "Sponge", "Stapler",
+            "Scissors", "Torch", "Ladder", "Fan", "Heater", "Kettle" };
+
+    private static final String[] DESCRIPTIONS = {
+            "Small", "Large", "Heavy Duty", "Compact", "Premium", "Value", "Outdoor", "Wireless",
+            "Stainless", "Recycled", "Clear", "Black", "White", "Blue", "Red", "Eco" };
+
+    private static final String[] VARIANTS = {
+            "", "", "", "2 Pack", "5 Pack", "10 Pack", "20L", "50L", "1m", "3m", "500ml", "AA",
+            "AAA", "Size M", "Size L" };
+
+    /** Reorder levels items are given, the default the most common */
+    private static final int[] REORDER_LEVELS = {
+            ItemEntry.DEFAULT_REORDER_LEVEL, ItemEntry.DEFAULT_REORDER_LEVEL,
+            ItemEntry.DEFAULT_REORDER_LEVEL, 0, 2, 10, 20 };
+
+    /** Scale and shape of the distribution of quantities, see {@link #nextQuantity()} */
+    private static final double QUANTITY_SCALE = 20;
+    private static final double QUANTITY_SHAPE = 1.5;
+    private static final int MAX_QUANTITY = 5000;
+
+    /** Exponent of the Zipf distributions of suppliers and products. Higher is more skewed */
+    private static final double ZIPF_EXPONENT = 1.1;
+
+    private final long mSeed;
+    private final Random mRandom;
+    private final double[] mSupplierWeights = zipfCumulativeWeights(SUPPLIERS.length);
+    private final double[] mProductWeights = zipfCumulativeWeights(PRODUCTS.length);
+
+    private double mImageShare;
+    private int mImageWidth;
+    private int mImageHeight;
+    private int mDistinctImages;
+    /** Encoded image and thumbnail of each image of the pool, made when first needed */
+    private byte[][] mImages;
+    private byte[][] mThumbnails;
+
+    /** @param seed items are the same for the same seed */
+    public SampleDataGenerator(long seed) {
+        mSeed = seed;
+        mRandom = new Random(seed);
+    }
+
+    /**
+     * Give a share of the items an image. Images are made on first use, which takes a moment and
+     * needs the platform's image encoder, so items without images can be made anywhere
+     * @param share between 0 and 1, the share of items to give an image
+     * @param width width of the images, in pixels
+     * @param height height of the images, in pixels
+     * @param distinctImages number of different images shared between the items
+     * @return this generator
+     */
+    public SampleDataGenerator setImages(double share, int width, int height, int distinctImages) {
+        if (share < 0 || share > 1) {
+            throw new IllegalArgumentException("Image share must be between 0 and 1: " + share);
+        }
+        if (share > 0 && (width <= 0 || height <= 0 || distinctImages <= 0)) {
+            throw new IllegalArgumentException("Images require a size and a number of images");
+        }
+        mImageShare = share;
+        mImageWidth = width;
+        mImageHeight = height;
+        mDistinctImages = distinctImages;
+        mImages = null;
+        mThumbnails = null;
+        return this;
+    }
+
+    /** @return the values of the next item, ready to be inserted through {@link ItemProvider} */
+    public ContentValues nextItem() {
+        ContentValues values = new ContentValues();
+        String product = PRODUCTS[pick(mProductWeights)];
+        String variant = VARIANTS[mRandom.nextInt(VARIANTS.length)];
+        String name = DESCRIPTIONS[mRandom.nextInt(DESCRIPTIONS.length)] + " " + product;
+        values.put(ItemEntry.COLUMN_ITEM_NAME, variant.isEmpty() ? name : name + " " + variant);
+        if (mRandom.nextDouble() >= NO_SUPPLIER_SHARE) {
+            values.put(ItemEntry.COLUMN_ITEM_SUPPLIER, SUPPLIERS[pick(mSupplierWeights)]);
+        }
+        // Log-normal, with a median of about 12
+        values.put(ItemEntry.COLUMN_ITEM_PRICE,
+                Math.max(1, (int) Math.round(Math.exp(2.5 + mRandom.nextGaussian()))));
+        values.put(ItemEntry.COLUMN_ITEM_QUANTITY, nextQuantity());
+        values.put(ItemEntry.COLUMN_ITEM_REORDER_LEVEL,
+                REORDER_LEVELS[mRandom.nextInt(REORDER_LEVELS.length)]);
+        if (mImageShare > 0 && mRandom.nextDouble() < mImageShare) {
+            int image = mRandom.nextInt(mDistinctImages);
+            ensureImages();
+            values.put(ItemEntry.COLUMN_ITEM_IMAGE, mImages[image]);
+            // Saves the provider decoding the image again for each item to make its thumbnail
+            values.put(ItemEntry.COLUMN_ITEM_THUMBNAIL, mThumbnails[image]);
+        }
+        return values;
+    }
+
+    /**
+     * Insert the next count items, in transactions of {@link #ROWS_PER_CHUNK}. Must not be
+     * called on the main thread
+     * @param listener told of the progress, may be null
+     * @return the number of items inserted
+     */
+    public int insertItems(ContentResolver resolver, int count, Listener listener) {
+        int made = 0;
+        int inserted = 0;
+        ContentValues[] chunk = new ContentValues[ROWS_PER_CHUNK];
+        while (made < count) {
+            int size = Math.min(ROWS_PER_CHUNK, count - made);
+            made += size;
+            for (int i = 0; i < size; i++) {
+                chunk[i] = nextItem();
+            }
+            inserted += resolver.bulkInsert(ItemEntry.CONTENT_URI,
+                    size == chunk.length ? chunk : Arrays.copyOf(chunk, size));
+            if (listener != null && !listener.onChunkInserted(inserted)) {
+                break;
+            }
+        }
+        return inserted;
+    }
+
+    /**
+     * Make a bitmap that compresses about as well as a photo: smooth gradients with some noise.
+     * A plain colour would compress to almost nothing
+     */
+    public static Bitmap createPhotoLikeBitmap(Random random, int width, int height) {
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        int hue = random.nextInt(256);
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int noise = random.nextInt(32);
+                int red = (x * 255 / width + hue + noise) & 0xff;
+                int green = (y * 255 / height + noise) & 0xff;
+                int blue = ((x + y) * 127 / (width + height) + 255 - hue + noise) & 0xff;
+                row[x] = 0xff000000 | (red << 16) | (green << 8) | blue;
+            }
+            bitmap.setPixels(row, 0, width, 0, y, width, 1);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Most items have a dozen or so in stock, about a third are at or below the default reorder
+     * level, some are out of stock, and a few are held by the hundred: a Lomax (shifted Pareto)
+     * distribution with a median of about 12
+     */
+    private int nextQuantity() {
+        double lomax =
+                QUANTITY_SCALE * (Math.pow(1 - mRandom.nextDouble(), -1 / QUANTITY_SHAPE) - 1);
+        return (int) Math.min(lomax, MAX_QUANTITY);
+    }
+
+    private void ensureImages() {
+        if (mImages != null) {
+            return;
+        }
+        mImages = new byte[mDistinctImages][];
+        mThumbnails = new byte[mDistinctImages][];
+        // A generator of their own, so making them doesn't change the items that follow
+        Random random = new Random(mSeed);
+        for (int i = 0; i < mDistinctImages; i++) {
+            Bitmap bitmap = createPhotoLikeBitmap(random, mImageWidth, mImageHeight);
+            mImages[i] = Utils.convertBitmapToByteArray(bitmap);
+            mThumbnails[i] = Utils.convertBitmapToThumbnailByteArray(bitmap);
+            bitmap.recycle();
+        }
+    }
+
+    /** @return the index of a weight, picked in proportion to it */
+    private int pick(double[] cumulativeWeights) {
+        double target = mRandom.nextDouble() * cumulativeWeights[cumulativeWeights.length - 1];
+        int index = Arrays.binarySearch(cumulativeWeights, target);
+        return index >= 0 ? index : Math.min(-index - 1, cumulativeWeights.length - 1);
+    }
+
+    /** @return the running totals of the weights 1/k^s, for k from 1 to n */
+    private static double[] zipfCumulativeWeights(int n) {
+        double[] weights = new double[n];
+        double total = 0;
+        for (int k = 0; k < n; k++) {
+            total += 1 / Math.pow(k + 1, ZIPF_EXPONENT);
+            weights[k] = total;
+        }
+        return weights;
+    }
+}
@@ -1,9 +1,16 @@
 package com.example.android.inventory.data;
 
+import android.content.ContentResolver;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.net.Uri;
+import android.support.media.ExifInterface;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 
 /**
  * Utility class to help with processing images
@@ -12,22 +19,215 @@ import java.io.ByteArrayOutputStream;
  * The second is to store the image in the phone internal or external storage and then
  * save the path to this file into the database.
  *
- * The current method will store the image as BLOB into the database:
- * We need to convert our image path to a bitmap then to bytes (byte array).
+ * The current method stores the image as a file in the {@link ImageStore} and saves its
+ * reference into the database. Storing BLOBs made every list query carry the full images.
+ * We still need to convert our image to a bitmap then to bytes (byte array) to save it.
  *
  * Completed by following: http://www.coderzheaven.com/2012/12/23/store-image-android-sqlite-retrieve-it/
  */
 
 public class Utils {
+
+    /** Longest side, in pixels, of the thumbnails shown in the item list */
+    public static final int THUMBNAIL_MAX_SIZE = 256;
+
+    /** JPEG quality of thumbnails. They are only ever shown small, so this can be low */
+    private static final int THUMBNAIL_QUALITY = 80;
+
+    /**
+     * Longest side, in pixels, that picked images are scaled down to. A 12 MP photo would
+     * otherwise take about 48 MB of memory to decode
+     */
+    public static final int IMAGE_MAX_SIZE = 1280;
+
+    /** JPEG quality of saved images. Above this the files grow a lot for no visible difference */
+    private static final int IMAGE_QUALITY = 90;
+
     /** Convert bitmap to byte array */
     public static byte[] convertBitmapToByteArray(Bitmap bitmap) {
         ByteArrayOutputStream stream = new ByteArrayOutputStream();
-        bitmap.compress(Bitmap.CompressFormat.JPEG, 100, stream);
+        bitmap.compress(Bitmap.CompressFormat.JPEG, IMAGE_QUALITY, stream);
         return stream.toByteArray();
     }
 
+    /**
+     * Decode the image at the uri, scaled down so its longest side is at most maxSize and turned
+     * the right way up according to its EXIF orientation. The image's size is read first, so only
+     * about as many pixels as are needed are decoded, rather than the whole image. This reads the
+     * image more than once, and is slow, so it must not be called on the main thread
+     * @throws IOException if the image could not be read or decoded
+     */
+    public static Bitmap decodeSampledBitmap(ContentResolver resolver, Uri uri, int maxSize)
+            throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        InputStream in = openInputStream(resolver, uri);
+        try {
+            BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IOException("Unable to read the size of image " + uri);
+        }
+        options.inSampleSize = calculateInSampleSize(options, maxSize);
+        options.inJustDecodeBounds = false;
+        Bitmap bitmap;
+        in = openInputStream(resolver, uri);
+        try {
+            bitmap = BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+        if (bitmap == null) {
+            throw new IOException("Unable to decode image " + uri);
+        }
+
+        Bitmap scaled = scaleDown(bitmap, maxSize);
+        if (scaled != bitmap) {
+            bitmap.recycle();
+        }
+        Bitmap oriented = applyOrientation(scaled, readOrientation(resolver, uri));
+        if (oriented != scaled) {
+            scaled.recycle();
+        }
+        return oriented;
+    }
+
+    private static InputStream openInputStream(ContentResolver resolver, Uri uri)
+            throws IOException {
+        InputStream in = resolver.openInputStream(uri);
+        if (in == null) {
+            throw new IOException("Unable to open image " + uri);
+        }
+        return in;
+    }
+
+    /** @return the EXIF orientation of the image, or normal if it has none */
+    private static int readOrientation(ContentResolver resolver, Uri uri) {
+        try {
+            InputStream in = openInputStream(resolver, uri);
+            try {
+                return new ExifInterface(in).getAttributeInt(ExifInterface.TAG_ORIENTATION,
+                        ExifInterface.ORIENTATION_NORMAL);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // Not every image format has EXIF data, so show it as it is
+            return ExifInterface.ORIENTATION_NORMAL;
+        }
+    }
+
+    /** Rotate and flip the bitmap as the EXIF orientation says */
+    private static Bitmap applyOrientation(Bitmap bitmap, int orientation) {
+        Matrix matrix = new Matrix();
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+                matrix.setScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                matrix.setRotate(180);
+                break;
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                matrix.setScale(1, -1);
+                break;
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                matrix.setRotate(90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                matrix.setRotate(90);
+                break;
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                matrix.setRotate(-90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                matrix.setRotate(-90);
+                break;
+            default:
+                return bitmap;
+        }
+        return Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix,
+                true);
+    }
+
     /** Convert the image (as byte array) into Bitmap */
     public static Bitmap convertByteArrayToBitmap(byte[] image) {
         return BitmapFactory.decodeByteArray(image, 0, image.length);
     }
+
+    /** Scale the bitmap down to thumbnail size and convert it to a byte array */
+    public static byte[] convertBitmapToThumbnailByteArray(Bitmap bitmap) {
+        Bitmap thumbnail = scaleDown(bitmap, THUMBNAIL_MAX_SIZE);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        thumbnail.compress(Bitmap.CompressFormat.JPEG, THUMBNAIL_QUALITY, stream);
+        if (thumbnail != bitmap) {
+            thumbnail.recycle();
+        }
+        return stream.toByteArray();
+    }
+
+    /**
+     * Make a thumbnail (as byte array) from a full size image (as byte array). Only as many
+     * pixels as the thumbnail needs are decoded, rather than the whole image.
+     * @return the thumbnail, or null if the image could not be decoded
+     */
+    public static byte[] createThumbnailByteArray(byte[] image) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(image, 0, image.length, options);
+        options.inSampleSize = calculateInSampleSize(options, THUMBNAIL_MAX_SIZE);
+        options.inJustDecodeBounds = false;
+        Bitmap bitmap = BitmapFactory.decodeByteArray(image, 0, image.length, options);
+        if (bitmap == null) {
+            return null;
+        }
+        byte[] thumbnail = convertBitmapToThumbnailByteArray(bitmap);
+        bitmap.recycle();
+        return thumbnail;
+    }
+
+    /** Same as {@link #createThumbnailByteArray(byte[])} for an image saved in a file */
+    public static byte[] createThumbnailByteArray(File imageFile) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(imageFile.getPath(), options);
+        options.inSampleSize = calculateInSampleSize(options, THUMBNAIL_MAX_SIZE);
+        options.inJustDecodeBounds = false;
+        Bitmap bitmap = BitmapFactory.decodeFile(imageFile.getPath(), options);
+        if (bitmap == null) {
+            return null;
+        }
+        byte[] thumbnail = convertBitmapToThumbnailByteArray(bitmap);
+        bitmap.recycle();
+        return thumbnail;
+    }
+
+    /**
+     * Find the largest power of 2 sample size that still keeps the decoded image's longest side
+     * at or above maxSize. Decoders are fastest with powers of 2.
+     */
+    private static int calculateInSampleSize(BitmapFactory.Options options, int maxSize) {
+        int longestSide = Math.max(options.outWidth, options.outHeight);
+        int inSampleSize = 1;
+        while (longestSide / (inSampleSize * 2) >= maxSize) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+
+    /** Scale the bitmap so its longest side is at most maxSize */
+    private static Bitmap scaleDown(Bitmap bitmap, int maxSize) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int longestSide = Math.max(width, height);
+        if (longestSide <= maxSize) {
+            return bitmap;
+        }
+        float scale = (float) maxSize / longestSide;
+        return Bitmap.createScaledBitmap(bitmap, Math.round(width * scale),
+                Math.round(height * scale), true);
+    }
 }
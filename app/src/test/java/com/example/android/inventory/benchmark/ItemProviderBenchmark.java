@@ -0,0 +1,219 @@
+package com.example.android.inventory.benchmark;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+
+import com.example.android.inventory.BuildConfig;
+import com.example.android.inventory.data.ItemContract;
+import com.example.android.inventory.data.ItemContract.ItemEntry;
+import com.example.android.inventory.data.ItemProvider;
+import com.example.android.inventory.data.ItemSortOrder;
+import com.example.android.inventory.data.SampleDataGenerator;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.ParameterizedRobolectricTestRunner;
+import org.robolectric.Robolectric;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Microbenchmark of {@link ItemProvider}'s queries and writes on tables of 1k, 10k and 100k
+ * items. Robolectric runs the provider on the JVM against a real SQLite, so the cost of the
+ * queries and of the indexes they use grows with the table as it would on a device, though the
+ * times themselves are the host's.
+ *
+ * Only run when asked for, and the results of each table size written to build/benchmarks:
+ * ./gradlew testDebugUnitTest -Pbenchmark --tests '*.benchmark.*'
+ */
+@RunWith(ParameterizedRobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 25)
+public class ItemProviderBenchmark {
+
+    /** Untimed runs of each operation before it is timed */
+    private static final int WARMUP = 50;
+
+    /** Timed runs of each operation */
+    private static final int ITERATIONS = 500;
+
+    /** Items inserted in each transaction while filling the table */
+    private static final int SEED_CHUNK = 1000;
+
+    /** Seed of the items, so every run measures the same table */
+    private static final long SEED = 1;
+
+    /** Number of item names searched for in turn */
+    private static final int SEARCH_TERMS = 100;
+
+    /** Rows in a page of the list, as the list loads them */
+    private static final int PAGE_SIZE = 50;
+
+    private static final String[] LIST_PROJECTION = {
+            ItemEntry._ID,
+            ItemEntry.COLUMN_ITEM_NAME,
+            ItemEntry.COLUMN_ITEM_SUPPLIER,
+            ItemEntry.COLUMN_ITEM_PRICE,
+            ItemEntry.COLUMN_ITEM_QUANTITY,
+            ItemEntry.COLUMN_ITEM_THUMBNAIL_REF };
+
+    @ParameterizedRobolectricTestRunner.Parameters(name = "rows={0}")
+    public static Collection<Object[]> tableSizes() {
+        return Arrays.asList(new Object[][] { { 1000 }, { 10000 }, { 100000 } });
+    }
+
+    private final int mRows;
+    private ItemProvider mProvider;
+    private SampleDataGenerator mGenerator;
+    private long mFirstId;
+    private final List<String> mSearchTerms = new ArrayList<>();
+
+    public ItemProviderBenchmark(int rows) {
+        mRows = rows;
+    }
+
+    @Before
+    public void setUp() {
+        mProvider = Robolectric.buildContentProvider(ItemProvider.class)
+                .create(ItemContract.CONTENT_AUTHORITY).get();
+        // Without images, which Robolectric can't encode
+        mGenerator = new SampleDataGenerator(SEED);
+        ContentValues[] chunk = new ContentValues[SEED_CHUNK];
+        for (int i = 0; i < mRows; i += SEED_CHUNK) {
+            for (int j = 0; j < SEED_CHUNK; j++) {
+                chunk[j] = mGenerator.nextItem();
+                if (mSearchTerms.size() < SEARCH_TERMS) {
+                    mSearchTerms.add(chunk[j].getAsString(ItemEntry.COLUMN_ITEM_NAME));
+                }
+            }
+            mProvider.bulkInsert(ItemEntry.CONTENT_URI, chunk);
+        }
+        Cursor cursor = mProvider.query(ItemEntry.CONTENT_URI,
+                new String[] { "MIN(" + ItemEntry._ID + ")", "COUNT(*)" }, null, null, null);
+        assertNotNull(cursor);
+        try {
+            cursor.moveToFirst();
+            mFirstId = cursor.getLong(0);
+            assertEquals(mRows, cursor.getInt(1));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void crud() throws Exception {
+        BenchmarkReport report = new BenchmarkReport(
+                getClass().getSimpleName() + "_" + mRows, System.getProperty("benchmark.commit"));
+
+        report.add(Benchmark.measure("query_first_page", WARMUP, ITERATIONS,
+                new Benchmark.Operation() {
+                    @Override
+                    public void run(int iteration) {
+                        readAll(ItemEntry.buildPageUri(PAGE_SIZE, null),
+                                ItemSortOrder.NAME.toSql());
+                    }
+                }), "rows", mRows);
+
+        report.add(Benchmark.measure("query_by_id", WARMUP, ITERATIONS,
+                new Benchmark.Operation() {
+                    @Override
+                    public void run(int iteration) {
+                        readAll(ContentUris.withAppendedId(ItemEntry.CONTENT_URI,
+                                pickId(iteration)), null);
+                    }
+                }), "rows", mRows);
+
+        report.add(Benchmark.measure("query_low_stock", WARMUP, ITERATIONS,
+                new Benchmark.Operation() {
+                    @Override
+                    public void run(int iteration) {
+                        readAll(ItemEntry.LOW_STOCK_URI.buildUpon()
+                                .appendQueryParameter(ItemEntry.QUERY_PARAM_LIMIT,
+                                        String.valueOf(PAGE_SIZE))
+                                .build(), null);
+                    }
+                }), "rows", mRows);
+
+        report.add(Benchmark.measure("search", WARMUP, ITERATIONS,
+                new Benchmark.Operation() {
+                    @Override
+                    public void run(int iteration) {
+                        readAll(ItemEntry.buildSearchUri(
+                                mSearchTerms.get(iteration % mSearchTerms.size()), PAGE_SIZE),
+                                null);
+                    }
+                }), "rows", mRows);
+
+        final List<Long> insertedIds = new ArrayList<>();
+        report.add(Benchmark.measure("insert", WARMUP, ITERATIONS,
+                new Benchmark.Operation() {
+                    @Override
+                    public void run(int iteration) {
+                        Uri uri = mProvider.insert(ItemEntry.CONTENT_URI, mGenerator.nextItem());
+                        insertedIds.add(ContentUris.parseId(uri));
+                    }
+                }), "rows", mRows);
+
+        report.add(Benchmark.measure("update_quantity", WARMUP, ITERATIONS,
+                new Benchmark.Operation() {
+                    @Override
+                    public void run(int iteration) {
+                        ContentValues values = new ContentValues();
+                        values.put(ItemEntry.COLUMN_ITEM_QUANTITY, 100 + iteration % 20);
+                        mProvider.update(ContentUris.withAppendedId(ItemEntry.CONTENT_URI,
+                                pickId(iteration)), values, null, null);
+                    }
+                }), "rows", mRows);
+
+        // The same items as were updated, so they all have stock to sell
+        report.add(Benchmark.measure("sell", WARMUP, ITERATIONS,
+                new Benchmark.Operation() {
+                    @Override
+                    public void run(int iteration) {
+                        Bundle extras = new Bundle();
+                        extras.putLong(ItemEntry.EXTRA_ITEM_ID, pickId(iteration));
+                        mProvider.call(ItemEntry.METHOD_SELL, null, extras);
+                    }
+                }), "rows", mRows);
+
+        report.add(Benchmark.measure("delete_by_id", WARMUP, ITERATIONS,
+                new Benchmark.Operation() {
+                    @Override
+                    public void run(int iteration) {
+                        mProvider.delete(ContentUris.withAppendedId(ItemEntry.CONTENT_URI,
+                                insertedIds.get(iteration)), null, null);
+                    }
+                }), "rows", mRows);
+
+        report.writeTo(new File(System.getProperty("benchmark.outputDir", "build/benchmarks")));
+    }
+
+    /** @return the id of an item spread across the table, a different one for each iteration */
+    private long pickId(int iteration) {
+        return mFirstId + (iteration * 7919L) % mRows;
+    }
+
+    /** Query the uri and read every row, as a list would */
+    private void readAll(Uri uri, String sortOrder) {
+        Cursor cursor = mProvider.query(uri, LIST_PROJECTION, null, null, sortOrder);
+        assertNotNull(cursor);
+        try {
+            while (cursor.moveToNext()) {
+                cursor.getString(1);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+}
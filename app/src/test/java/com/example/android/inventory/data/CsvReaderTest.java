@@ -0,0 +1,65 @@
+package com.example.android.inventory.data;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Local unit test for {@link CsvReader}, and for reading back what {@link CsvWriter} writes.
+ */
+public class CsvReaderTest {
+
+    @Test
+    public void readsPlainRecords() throws IOException {
+        CsvReader reader = new CsvReader(new StringReader("name,price\nBox,5\r\nTape,2\rGlue,3"));
+        assertArrayEquals(new String[] { "name", "price" }, reader.readRecord());
+        assertArrayEquals(new String[] { "Box", "5" }, reader.readRecord());
+        assertArrayEquals(new String[] { "Tape", "2" }, reader.readRecord());
+        assertArrayEquals(new String[] { "Glue", "3" }, reader.readRecord());
+        assertNull(reader.readRecord());
+    }
+
+    @Test
+    public void readsQuotedFields() throws IOException {
+        CsvReader reader = new CsvReader(new StringReader(
+                "\"Box, large\",\"Says \"\"hi\"\"\",\"two\nlines\"\nnext,,\n"));
+        assertArrayEquals(new String[] { "Box, large", "Says \"hi\"", "two\nlines" },
+                reader.readRecord());
+        assertEquals(3, reader.getLineNumber());
+        assertArrayEquals(new String[] { "next", "", "" }, reader.readRecord());
+        assertNull(reader.readRecord());
+    }
+
+    @Test
+    public void skipsByteOrderMark() throws IOException {
+        CsvReader reader = new CsvReader(new StringReader("\uFEFFname\n"));
+        assertArrayEquals(new String[] { "name" }, reader.readRecord());
+    }
+
+    @Test(expected = IOException.class)
+    public void unclosedQuote_throws() throws IOException {
+        new CsvReader(new StringReader("\"Box,5\n")).readRecord();
+    }
+
+    @Test
+    public void readsBackWhatIsWritten() throws IOException {
+        String[] record = { "Box, \"large\"", " padded ", "two\r\nlines", "", null, "5" };
+        StringWriter out = new StringWriter();
+        CsvWriter writer = new CsvWriter(out);
+        writer.writeRecord(record);
+        writer.writeRecord("plain");
+        writer.close();
+
+        CsvReader reader = new CsvReader(new StringReader(out.toString()));
+        assertArrayEquals(new String[] { "Box, \"large\"", " padded ", "two\r\nlines", "", "", "5" },
+                reader.readRecord());
+        assertArrayEquals(new String[] { "plain" }, reader.readRecord());
+        assertNull(reader.readRecord());
+    }
+}
@@ -0,0 +1,41 @@
+package com.example.android.inventory.data;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit test for comparing sort keys with {@link ItemSortOrder#compareKeys}, which must
+ * put them in the same order as the provider's ORDER BY.
+ */
+public class ItemSortOrderTest {
+
+    @Test
+    public void numbers_compareByValue() {
+        assertTrue(ItemSortOrder.PRICE.compareKeys(key("9", "5"), key("10", "1")) < 0);
+        assertTrue(ItemSortOrder.PRICE.compareKeys(key("10", "5"), key("10", "1")) > 0);
+        assertEquals(0, ItemSortOrder.ID.compareKeys(key("7"), key("7")));
+    }
+
+    @Test
+    public void nocaseColumns_ignoreTheCaseOfAsciiLetters() {
+        assertTrue(ItemSortOrder.NAME.compareKeys(key("axe", "9"), key("Box", "1")) < 0);
+        assertTrue(ItemSortOrder.NAME.compareKeys(key("BOX", "1"), key("box", "2")) < 0);
+        assertTrue(ItemSortOrder.NAME.compareKeys(key("Box", "1"), key("Boxes", "1")) < 0);
+        // Only ASCII is folded, so an accented capital sorts after every ASCII letter, as in SQLite
+        assertTrue(ItemSortOrder.NAME.compareKeys(key("\u00C9clair", "1"), key("zip", "2")) > 0);
+    }
+
+    @Test
+    public void laterColumns_breakTies() {
+        assertTrue(ItemSortOrder.SUPPLIER.compareKeys(key("", "zip", "1"),
+                key("Acme", "axe", "2")) < 0);
+        assertTrue(ItemSortOrder.SUPPLIER.compareKeys(key("acme", "Box", "1"),
+                key("ACME", "axe", "2")) > 0);
+    }
+
+    private static String[] key(String... values) {
+        return values;
+    }
+}